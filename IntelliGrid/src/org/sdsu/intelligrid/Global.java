@@ -6,8 +6,9 @@ import org.sdsu.intelligrid.graphics.MainRenderer;
 import org.sdsu.intelligrid.graphics.MainSurfaceView;
 import org.sdsu.intelligrid.graphics.ui.MainUI;
 import org.sdsu.intelligrid.graphs.GraphsPage;
+import org.sdsu.intelligrid.network.ConnectionManager;
+import org.sdsu.intelligrid.network.Endpoint;
 import org.sdsu.intelligrid.network.MainNetworkHandler;
-import org.sdsu.intelligrid.network.NetworkInterface;
 import org.sdsu.intelligrid.simulation.Simulation;
 
 import android.content.res.Resources;
@@ -19,7 +20,8 @@ public class Global {
 
 	static MainActivity mainActivity;
 	static Simulation simulation;
-	static NetworkInterface networkInterface;
+	static Endpoint networkInterface;
+	static ConnectionManager connectionManager;
 	static MainNetworkHandler networkHandler;
 	static MainSurfaceView surface;
 	static MainRenderer renderer;
@@ -56,15 +58,28 @@ public class Global {
 	}
 
 	/**
-	 * Returns the primary instance of NetworkInterface for this application.
+	 * Returns the primary network endpoint for this application, the first
+	 * endpoint of the connection manager.
 	 * 
-	 * @return this application's primary network interface object, as defined
-	 *         by NetworkInterface.java.
+	 * @return this application's primary endpoint, a NetworkInterface or,
+	 *         when the network runs in a daemon process, a DaemonEndpoint.
 	 */
-	public static NetworkInterface getNetworkInterface() {
+	public static Endpoint getNetworkInterface() {
 		return networkInterface;
 	}
 
+	/**
+	 * Returns the primary instance of ConnectionManager for this application,
+	 * which drives every demonstration model at once. Send packets and check
+	 * the connection through this rather than a single network interface.
+	 * 
+	 * @return this application's connection manager, as defined by
+	 *         ConnectionManager.java.
+	 */
+	public static ConnectionManager getConnectionManager() {
+		return connectionManager;
+	}
+
 	/**
 	 * Returns the primary instance of MainNetworkHandler for this application.
 	 * 
@@ -2,10 +2,17 @@
 
 package org.sdsu.intelligrid;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 import org.sdsu.intelligrid.graphics.MainRenderer;
 import org.sdsu.intelligrid.graphics.MainSurfaceView;
 import org.sdsu.intelligrid.graphics.ui.MainUI;
 import org.sdsu.intelligrid.graphs.GraphsPage;
+import org.sdsu.intelligrid.network.ConnectionManager;
+import org.sdsu.intelligrid.network.JournalReplay;
 import org.sdsu.intelligrid.network.MainNetworkHandler;
 import org.sdsu.intelligrid.network.NetworkInterface;
 import org.sdsu.intelligrid.simulation.Simulation;
@@ -21,6 +28,12 @@ import android.view.Window;
  */
 public class MainActivity extends Activity {
 
+	/**
+	 * Traffic journal to replay at recorded speed instead of connecting to
+	 * the model, or null to connect as usual.
+	 */
+	private static final String REPLAY_JOURNAL_PATH = null;
+
 	private MainSurfaceView GLView;
 
 	public MainActivity() {
@@ -55,8 +68,22 @@ public class MainActivity extends Activity {
 		final Simulation simulation = new Simulation();
 		Global.simulation = simulation;
 
-		final NetworkInterface networkInterface = new NetworkInterface();
-		Global.networkInterface = networkInterface;
+		ConnectionManager connectionManager = null;
+		if (REPLAY_JOURNAL_PATH != null) {
+			try {
+				final NetworkInterface replay = JournalReplay.createInterface(
+						new File(REPLAY_JOURNAL_PATH), 1.0);
+				connectionManager = new ConnectionManager(replay);
+			} catch (IOException e) {
+				Logger.getGlobal().log(Level.SEVERE,
+						"Cannot replay journal: " + e.getMessage());
+			}
+		}
+		if (connectionManager == null) {
+			connectionManager = ConnectionManager.createDefault();
+		}
+		Global.connectionManager = connectionManager;
+		Global.networkInterface = connectionManager.getEndpoint(0);
 
 		final MainNetworkHandler networkHandler = new MainNetworkHandler();
 		Global.networkHandler = networkHandler;
@@ -64,7 +91,7 @@ public class MainActivity extends Activity {
 		final MainUI mainUI = new MainUI();
 		Global.mainUI = mainUI;
 
-		new Thread(networkInterface).start();
+		connectionManager.start();
 
 		simulation.init();
 		networkHandler.init();
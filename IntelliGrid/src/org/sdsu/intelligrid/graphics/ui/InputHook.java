@@ -4,7 +4,6 @@ package org.sdsu.intelligrid.graphics.ui;
 
 import org.sdsu.intelligrid.Global;
 import org.sdsu.intelligrid.network.MainNetworkHandler;
-import org.sdsu.intelligrid.network.MainNetworkHandler.PacketTypes;
 import org.sdsu.intelligrid.util.Vector2f;
 
 import android.view.MotionEvent;
@@ -636,8 +635,7 @@ public class InputHook {
 		}
 		if (object.getId().equals("balloonfault")
 				|| object.getId().equals("balloon")) {
-			MainNetworkHandler.constructAndSendPacket(
-					PacketTypes.BALLOON_DETECT_RESET, true);
+			MainNetworkHandler.sendBalloonFault(true);
 			Global.getGlobalSimulation().faultManager.startBalloonFault();
 			MainUI.ClickableObjects.fault_a.setDepth(11);
 			MainUI.ClickableObjects.fault_b.setDepth(11);
@@ -659,8 +657,7 @@ public class InputHook {
 		}
 		if (object.getId().equals("digfault")
 				|| object.getId().equals("trackhoe")) {
-			MainNetworkHandler.constructAndSendPacket(
-					PacketTypes.DIG_DETECT_RESET, true);
+			MainNetworkHandler.sendDigFault(true);
 			Global.getGlobalSimulation().faultManager.startDigFault();
 			MainUI.ClickableObjects.fault_a.setDepth(11);
 			MainUI.ClickableObjects.fault_b.setDepth(11);
@@ -721,7 +718,7 @@ public class InputHook {
 		}
 
 		// If Network is NOT Connected
-		if (!Global.getNetworkInterface().isConnected()) {
+		if (!Global.getConnectionManager().isConnected()) {
 			// Residential 2
 			if (object.getId().equals("house2a")) {
 				MainUI.ClickableObjects.house2apopup.setDepth(-1);
@@ -1421,8 +1418,7 @@ public class InputHook {
 			MainUI.ClickableObjects.house2bsolarcheckoff.setDepth(11);
 		}
 		if (object.getId().equals("turbinehighcheckoff")) {
-			MainNetworkHandler.constructAndSendPacket(
-					PacketTypes.WIND_GENERATION_LEVEL, 3);
+			MainNetworkHandler.sendWindGenerationLevel(3);
 			Global.getGlobalSimulation().data.windGenerationLevel.set(1.0);
 			MainUI.ClickableObjects.turbinehighcheck.setDepth(-2);
 			MainUI.ClickableObjects.turbinehighcheckoff.setDepth(11);
@@ -1434,8 +1430,7 @@ public class InputHook {
 			MainUI.ClickableObjects.turbineoffcheckoff.setDepth(-2);
 		}
 		if (object.getId().equals("turbinemediumcheckoff")) {
-			MainNetworkHandler.constructAndSendPacket(
-					PacketTypes.WIND_GENERATION_LEVEL, 2);
+			MainNetworkHandler.sendWindGenerationLevel(2);
 			Global.getGlobalSimulation().data.windGenerationLevel
 					.set(2.0 / 3.0);
 			MainUI.ClickableObjects.turbinehighcheck.setDepth(11);
@@ -1448,8 +1443,7 @@ public class InputHook {
 			MainUI.ClickableObjects.turbineoffcheckoff.setDepth(-2);
 		}
 		if (object.getId().equals("turbinelowcheckoff")) {
-			MainNetworkHandler.constructAndSendPacket(
-					PacketTypes.WIND_GENERATION_LEVEL, 1);
+			MainNetworkHandler.sendWindGenerationLevel(1);
 			Global.getGlobalSimulation().data.windGenerationLevel
 					.set(1.0 / 3.0);
 			MainUI.ClickableObjects.turbinehighcheck.setDepth(11);
@@ -1462,8 +1456,7 @@ public class InputHook {
 			MainUI.ClickableObjects.turbineoffcheckoff.setDepth(-2);
 		}
 		if (object.getId().equals("turbineoffcheckoff")) {
-			MainNetworkHandler.constructAndSendPacket(
-					PacketTypes.WIND_GENERATION_LEVEL, 0);
+			MainNetworkHandler.sendWindGenerationLevel(0);
 			Global.getGlobalSimulation().data.windGenerationLevel.set(0.0);
 			MainUI.ClickableObjects.turbinehighcheck.setDepth(11);
 			MainUI.ClickableObjects.turbinehighcheckoff.setDepth(-2);
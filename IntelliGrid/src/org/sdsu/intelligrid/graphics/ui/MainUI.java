@@ -15,6 +15,7 @@ import org.sdsu.intelligrid.Global;
 import org.sdsu.intelligrid.R;
 import org.sdsu.intelligrid.graphics.Sprite;
 import org.sdsu.intelligrid.graphics.TextSprite;
+import org.sdsu.intelligrid.network.LatencyTrace;
 import org.sdsu.intelligrid.network.MainNetworkHandler;
 import org.sdsu.intelligrid.simulation.Simulation;
 import org.sdsu.intelligrid.util.Color;
@@ -2907,8 +2908,12 @@ public class MainUI {
 		lightPacketTimer -= amount;
 		if (lightPacketTimer <= 0f) {
 			Global.getMainUI().lightAnimation.advanceState(amount);
-			MainNetworkHandler.constructAndSendPacket(
-					MainNetworkHandler.PacketTypes.LIGHT_ANIMATION, null);
+			final LatencyTrace trace = Global.getConnectionManager()
+					.getLatencyTrace();
+			if (trace != null) {
+				trace.markAnimated();
+			}
+			MainNetworkHandler.sendLightAnimation();
 			lightPacketTimer = LIGHT_PACKET_INTERVAL;
 		}
 
@@ -0,0 +1,100 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+/**
+ * Low-pass and decimation filter for one analog sensor channel.
+ * <p>
+ * Samples pass through two one-pole low-pass stages in a row, which roll off
+ * twice as steeply as one and never overshoot, and every
+ * {@link #getFactor()}th filtered sample is kept. The cutoff should be well
+ * under half the output rate, so what is thrown away by decimating has
+ * already been filtered out rather than aliasing into the values kept.
+ * <p>
+ * Not thread safe; one thread feeds and reads a filter.
+ */
+public final class AnalogFilter {
+
+	private final double cutoff;
+	private final double outputRate;
+
+	private int sampleRate = 0;
+	// Weight of each new sample in both stages
+	private double alpha;
+	private int factor;
+
+	private double first;
+	private double second;
+	private boolean primed = false;
+	private int count = 0;
+
+	/**
+	 * @param cutoff
+	 *            the low-pass cutoff frequency in Hz
+	 * @param outputRate
+	 *            the number of values to keep per second
+	 */
+	public AnalogFilter(final double cutoff, final double outputRate) {
+		this.cutoff = cutoff;
+		this.outputRate = outputRate;
+	}
+
+	/**
+	 * Sets how many samples per second are fed in. Filter state is kept
+	 * across changes, so a sensor may change its rate on the fly.
+	 */
+	public void setSampleRate(final int rate) {
+		if (rate == sampleRate) {
+			return;
+		}
+		sampleRate = rate;
+		alpha = 1.0 - Math.exp(-2.0 * Math.PI * cutoff / rate);
+		factor = Math.max(1, (int) Math.round(rate / outputRate));
+		count = Math.min(count, factor - 1);
+	}
+
+	/**
+	 * Feeds one sample. The sample rate must have been set.
+	 * 
+	 * @return <tt>true</tt> if this sample completes an output value, which
+	 *         {@link #getValue()} then returns
+	 */
+	public boolean add(final double sample) {
+		if (!primed) {
+			// Start from the first reading rather than ramping up from 0
+			first = sample;
+			second = sample;
+			primed = true;
+		} else {
+			first += alpha * (sample - first);
+			second += alpha * (first - second);
+		}
+		if (++count < factor) {
+			return false;
+		}
+		count = 0;
+		return true;
+	}
+
+	/**
+	 * Returns the filtered value as of the last sample.
+	 */
+	public double getValue() {
+		return second;
+	}
+
+	/**
+	 * Returns the decimation factor for the current sample rate.
+	 */
+	public int getFactor() {
+		return factor;
+	}
+
+	/**
+	 * Forgets the filter state, so the next sample starts afresh.
+	 */
+	public void reset() {
+		primed = false;
+		count = 0;
+	}
+}
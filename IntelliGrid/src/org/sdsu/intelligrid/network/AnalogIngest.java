@@ -0,0 +1,149 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Takes in streams of analog sensor readings from the model, for hardware
+ * that measures generation rather than reporting a coarse level.
+ * <p>
+ * Readings arrive in {@link PacketTypes#ANALOG_READING} packets, only on
+ * framed links, numbers stored little endian:
+ * 
+ * <pre>
+ * readings: channel[1] rate[2] sample[2]...
+ * </pre>
+ * 
+ * <tt>rate</tt> is the channel's sample rate in Hz, up to a few hundred, and
+ * each sample a fraction of full scale from 0 to 65535; a packet holds 1 to
+ * {@link #MAX_SAMPLES} samples. Channels 0 to 2 are the renewable, middle
+ * and lower solar banks and channel 3 is wind generation, as for
+ * {@link ModelCommand}.
+ * <p>
+ * The network thread runs each channel through an {@link AnalogFilter} as
+ * the packets are decoded and publishes the newest filtered value,
+ * decimated to {@link #OUTPUT_RATE}. The GL thread polls the newest value
+ * once a tick, so however fast a sensor samples, the simulation sees at most
+ * one value per channel per tick. Publishing and polling are a single
+ * atomic store and swap each.
+ */
+public final class AnalogIngest {
+
+	public static final int CHANNELS = 4;
+	public static final int SOLAR_RENEWABLE = 0;
+	public static final int SOLAR_MIDDLE = 1;
+	public static final int SOLAR_LOWER = 2;
+	public static final int WIND = 3;
+
+	public static final int MAX_SAMPLES = 32;
+	public static final int HEADER_LENGTH = 3;
+
+	/**
+	 * Filtered values kept per second, about the simulation's tick rate.
+	 */
+	public static final double OUTPUT_RATE = 60.0;
+	/**
+	 * Low-pass cutoff in Hz. Well under half of OUTPUT_RATE, so decimating
+	 * does not alias, and low enough to smooth out sensor noise the model
+	 * would otherwise flicker with.
+	 */
+	private static final double CUTOFF_HZ = 5.0;
+
+	private static final double FULL_SCALE = 65535.0;
+	private static final int NONE = Float.floatToIntBits(Float.NaN);
+
+	// Owned by the network thread
+	private final AnalogFilter[] filters = new AnalogFilter[CHANNELS];
+
+	// Newest filtered value of each channel as float bits, NONE once taken
+	private final AtomicIntegerArray latest = new AtomicIntegerArray(CHANNELS);
+
+	private volatile long samples = 0;
+	private volatile long outputs = 0;
+	private volatile long malformed = 0;
+
+	public AnalogIngest() {
+		for (int i = 0; i < CHANNELS; i++) {
+			filters[i] = new AnalogFilter(CUTOFF_HZ, OUTPUT_RATE);
+			latest.set(i, NONE);
+		}
+	}
+
+	/**
+	 * Filters the readings in a packet body. Network thread only.
+	 * 
+	 * @return <tt>false</tt> if the body was malformed and ignored
+	 */
+	public boolean onPacket(final byte[] payload, final int length) {
+		final int count = (length - HEADER_LENGTH) / 2;
+		final int channel = length > 0 ? payload[0] & 0xFF : CHANNELS;
+		if (count < 1 || count > MAX_SAMPLES
+				|| (length - HEADER_LENGTH) % 2 != 0 || channel >= CHANNELS) {
+			malformed++;
+			return false;
+		}
+		final int rate = (payload[1] & 0xFF) | (payload[2] & 0xFF) << 8;
+		if (rate == 0) {
+			malformed++;
+			return false;
+		}
+
+		final AnalogFilter filter = filters[channel];
+		filter.setSampleRate(rate);
+		boolean ready = false;
+		for (int i = 0; i < count; i++) {
+			final int at = HEADER_LENGTH + 2 * i;
+			final int raw = (payload[at] & 0xFF) | (payload[at + 1] & 0xFF) << 8;
+			if (filter.add(raw / FULL_SCALE)) {
+				ready = true;
+				outputs++;
+			}
+		}
+		samples += count;
+		if (ready) {
+			latest.lazySet(channel,
+					Float.floatToIntBits((float) filter.getValue()));
+		}
+		return true;
+	}
+
+	/**
+	 * Starts every channel afresh, for a new connection. Network thread
+	 * only.
+	 */
+	public void reset() {
+		for (AnalogFilter filter : filters) {
+			filter.reset();
+		}
+	}
+
+	/**
+	 * Takes the newest filtered value of a channel. GL thread only.
+	 * 
+	 * @return the value from 0 to 1, or NaN if there has been none since
+	 *         the last call
+	 */
+	public float poll(final int channel) {
+		return Float.intBitsToFloat(latest.getAndSet(channel, NONE));
+	}
+
+	/**
+	 * Returns the number of raw samples taken in.
+	 */
+	public long getSamples() {
+		return samples;
+	}
+
+	/**
+	 * Returns the number of filtered values produced, whether or not the
+	 * simulation took them.
+	 */
+	public long getOutputs() {
+		return outputs;
+	}
+
+	public long getMalformed() {
+		return malformed;
+	}
+}
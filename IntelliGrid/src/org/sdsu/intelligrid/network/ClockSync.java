@@ -0,0 +1,227 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+/**
+ * Estimates the offset between the application's clock and the model's, in
+ * the style of NTP, over {@link PacketTypes#CLOCK_SYNC} packets.
+ * <p>
+ * Both clocks count milliseconds in a wrapping 32 bit integer; the
+ * application's is {@link #appClock(long)}. Three kinds of packet exist,
+ * told apart by their first byte, with numbers stored little endian:
+ * 
+ * <pre>
+ * request: 'Q' token[8]                    application to model
+ * answer:  'A' token[8] t1[4] t2[4]        model to application
+ * offset:  'O' offset[4]                   application to model
+ * </pre>
+ * 
+ * The model answers a request by echoing its token along with its own clock
+ * when the request arrived (t1) and when the answer left (t2). From the
+ * send and receive times of the exchange, the application works out the
+ * round trip and the offset, model clock minus application clock. Out of the
+ * last {@link #WINDOW} exchanges, the one with the shortest round trip was
+ * held up least by queues and gives the estimate. Whenever the estimate
+ * changes, it is sent to the model so the model can convert application
+ * times, such as LED frame display times, to its own clock; the same frame
+ * then suits every model, whatever its clock.
+ * <p>
+ * An estimator is not thread safe; only the network thread uses it.
+ */
+public final class ClockSync {
+
+	public static final byte REQUEST = 'Q';
+	public static final byte ANSWER = 'A';
+	public static final byte OFFSET = 'O';
+
+	public static final int REQUEST_LENGTH = 9;
+	public static final int ANSWER_LENGTH = 17;
+	public static final int OFFSET_LENGTH = 5;
+
+	private static final int WINDOW = 8;
+
+	private final int[] offsets = new int[WINDOW];
+	private final int[] roundTrips = new int[WINDOW];
+	private int samples = 0;
+
+	private volatile boolean synced = false;
+	private volatile int offset = 0;
+	private volatile int roundTrip = 0;
+
+	/**
+	 * Returns the application clock, in milliseconds, at the given
+	 * {@link System#nanoTime()}.
+	 */
+	public static int appClock(final long nanos) {
+		return (int) (nanos / 1000000L);
+	}
+
+	/**
+	 * Writes a request stamped with the current time.
+	 * 
+	 * @return the number of bytes written, {@link #REQUEST_LENGTH}
+	 */
+	public static int encodeRequest(final long now, final byte[] out) {
+		out[0] = REQUEST;
+		putLong(out, 1, now);
+		return REQUEST_LENGTH;
+	}
+
+	/**
+	 * Writes the model's answer to a request. Model side.
+	 * 
+	 * @param request
+	 *            the body of the request
+	 * @param receiveTime
+	 *            the model clock when the request arrived
+	 * @param sendTime
+	 *            the model clock now
+	 * @return the number of bytes written, or -1 if the request was
+	 *         malformed
+	 */
+	public static int encodeAnswer(final byte[] request, final int length,
+			final int receiveTime, final int sendTime, final byte[] out) {
+		if (length != REQUEST_LENGTH || request[0] != REQUEST) {
+			return -1;
+		}
+		out[0] = ANSWER;
+		System.arraycopy(request, 1, out, 1, 8);
+		putInt(out, 9, receiveTime);
+		putInt(out, 13, sendTime);
+		return ANSWER_LENGTH;
+	}
+
+	/**
+	 * Writes the current estimate for the model.
+	 * 
+	 * @return the number of bytes written, {@link #OFFSET_LENGTH}
+	 */
+	public int encodeOffset(final byte[] out) {
+		out[0] = OFFSET;
+		putInt(out, 1, offset);
+		return OFFSET_LENGTH;
+	}
+
+	/**
+	 * Returns <tt>true</tt> if a packet body is an offset packet. Model
+	 * side.
+	 */
+	public static boolean isOffset(final byte[] data, final int length) {
+		return length == OFFSET_LENGTH && data[0] == OFFSET;
+	}
+
+	/**
+	 * Returns the offset carried by an offset packet. Model side.
+	 */
+	public static int readOffset(final byte[] data) {
+		return getInt(data, 1);
+	}
+
+	/**
+	 * Takes in the model's answer to a request.
+	 * 
+	 * @param data
+	 *            the body of the packet
+	 * @param length
+	 *            the length of the body
+	 * @param receiveTime
+	 *            {@link System#nanoTime()} when the answer arrived
+	 * @return <tt>true</tt> if the estimate changed and should be sent to
+	 *         the model
+	 */
+	public boolean onAnswer(final byte[] data, final int length,
+			final long receiveTime) {
+		if (length != ANSWER_LENGTH || data[0] != ANSWER) {
+			return false;
+		}
+		final long sendTime = getLong(data, 1);
+		if (sendTime > receiveTime) {
+			return false;
+		}
+		final int t0 = appClock(sendTime);
+		final int t1 = getInt(data, 9);
+		final int t2 = getInt(data, 13);
+		final int t3 = appClock(receiveTime);
+
+		final int sample = samples % WINDOW;
+		roundTrips[sample] = Math.max(0, (t3 - t0) - (t2 - t1));
+		// Each difference fits an int even across a wrap; their sum may not
+		offsets[sample] = (int) (((long) (t1 - t0) + (t2 - t3)) / 2);
+		samples++;
+
+		int best = 0;
+		for (int i = 1; i < Math.min(samples, WINDOW); i++) {
+			if (roundTrips[i] < roundTrips[best]) {
+				best = i;
+			}
+		}
+		roundTrip = roundTrips[best];
+		if (synced && offsets[best] == offset) {
+			return false;
+		}
+		offset = offsets[best];
+		synced = true;
+		return true;
+	}
+
+	/**
+	 * Forgets every exchange, such as when a model has reconnected and may
+	 * have restarted its clock.
+	 */
+	public void reset() {
+		samples = 0;
+		synced = false;
+	}
+
+	/**
+	 * Returns <tt>true</tt> once at least one exchange has completed.
+	 */
+	public boolean isSynchronized() {
+		return synced;
+	}
+
+	/**
+	 * Returns the model clock minus the application clock, in milliseconds.
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Returns the round trip of the exchange the estimate is based on, in
+	 * milliseconds.
+	 */
+	public int getRoundTrip() {
+		return roundTrip;
+	}
+
+	private static void putInt(final byte[] out, final int at,
+			final int value) {
+		for (int i = 0; i < 4; i++) {
+			out[at + i] = (byte) (value >>> (8 * i));
+		}
+	}
+
+	private static void putLong(final byte[] out, final int at,
+			final long value) {
+		for (int i = 0; i < 8; i++) {
+			out[at + i] = (byte) (value >>> (8 * i));
+		}
+	}
+
+	private static int getInt(final byte[] in, final int at) {
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			value |= (in[at + i] & 0xFF) << (8 * i);
+		}
+		return value;
+	}
+
+	private static long getLong(final byte[] in, final int at) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value |= (long) (in[at + i] & 0xFF) << (8 * i);
+		}
+		return value;
+	}
+}
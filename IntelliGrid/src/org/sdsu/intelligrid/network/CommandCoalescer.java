@@ -0,0 +1,72 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+/**
+ * Collapses a batch of commands to the last one for each sensor.
+ * <p>
+ * A noisy sensor can send many readings between two simulation ticks, and
+ * every applied reading restarts the value's interpolation, so all but the
+ * last are wasted work. Commands {@link #add(ModelCommand)}ed to the
+ * coalescer replace any earlier command with the same kind and target; the
+ * survivors come back out of {@link #poll()} in the order their sensors
+ * first appeared in the batch. The work per tick is then bounded by the
+ * number of sensors rather than by the traffic.
+ * <p>
+ * Nothing is allocated after construction. Only one thread may use a
+ * coalescer.
+ */
+public final class CommandCoalescer {
+
+	// Latest command per sensor, indexed by kind and target
+	private final ModelCommand[] latest = new ModelCommand[ModelCommand.Kind
+			.values().length * ModelCommand.MAX_TARGETS];
+	// Sensors in the batch, in order of first appearance
+	private final int[] order = new int[latest.length];
+	private int count = 0;
+	private int next = 0;
+
+	private long collapsed = 0;
+
+	/**
+	 * Adds a command to the current batch, replacing any earlier command for
+	 * the same sensor.
+	 */
+	public void add(final ModelCommand command) {
+		final int slot = command.kind.ordinal() * ModelCommand.MAX_TARGETS
+				+ command.target;
+		if (latest[slot] == null) {
+			order[count] = slot;
+			count++;
+		} else {
+			collapsed++;
+		}
+		latest[slot] = command;
+	}
+
+	/**
+	 * Removes and returns the next surviving command of the batch, or
+	 * <tt>null</tt> once the batch is used up, after which a new batch may
+	 * be added.
+	 */
+	public ModelCommand poll() {
+		if (next >= count) {
+			next = 0;
+			count = 0;
+			return null;
+		}
+		final int slot = order[next];
+		next++;
+		final ModelCommand command = latest[slot];
+		latest[slot] = null;
+		return command;
+	}
+
+	/**
+	 * Returns the number of commands replaced by a later one for the same
+	 * sensor.
+	 */
+	public long getCollapsedCount() {
+		return collapsed;
+	}
+}
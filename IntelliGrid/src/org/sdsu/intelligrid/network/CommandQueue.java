@@ -0,0 +1,127 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer, single-consumer queue of commands decoded from
+ * the model's traffic.
+ * <p>
+ * The network thread {@link #offer(ModelCommand, long)}s commands as it
+ * decodes them; the simulation {@link #poll()}s them all at the start of
+ * each tick. Like {@link PacketRing}, no locks are taken, nothing is
+ * allocated after construction and a full queue counts and drops new
+ * commands rather than overwriting old ones.
+ */
+public final class CommandQueue {
+
+	private final ModelCommand[] commands;
+	// Receive time of each command, for dispatch latency
+	private final long[] times;
+	private final int mask;
+
+	private final NetworkTelemetry telemetry;
+
+	// Next slot to read; written only by the consumer
+	private final AtomicLong head = new AtomicLong();
+	// Next slot to write; written only by the producer
+	private final AtomicLong tail = new AtomicLong();
+
+	private long headCache = 0;
+	private long tailCache = 0;
+	// Receive time of the command last polled
+	private long polledTime = 0;
+
+	private volatile long overflows = 0;
+
+	/**
+	 * @param capacity
+	 *            the number of commands the queue holds; must be a power of
+	 *            two
+	 * @param telemetry
+	 *            where to record how long commands waited, or <tt>null</tt>
+	 */
+	public CommandQueue(final int capacity, final NetworkTelemetry telemetry) {
+		if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+			throw new IllegalArgumentException(
+					"Capacity must be a power of two: " + capacity);
+		}
+		commands = new ModelCommand[capacity];
+		times = new long[capacity];
+		mask = capacity - 1;
+		this.telemetry = telemetry;
+	}
+
+	/**
+	 * Adds a command to the queue. Producer only.
+	 * 
+	 * @param command
+	 *            the command
+	 * @param time
+	 *            {@link System#nanoTime()} when its bytes were read
+	 * @return <tt>false</tt> if the queue was full and the command dropped
+	 */
+	public boolean offer(final ModelCommand command, final long time) {
+		final long t = tail.get();
+		if (t - headCache >= commands.length) {
+			headCache = head.get();
+			if (t - headCache >= commands.length) {
+				overflows++;
+				return false;
+			}
+		}
+		final int index = (int) t & mask;
+		commands[index] = command;
+		times[index] = time;
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Removes and returns the oldest command, or <tt>null</tt> if the queue
+	 * is empty. Consumer only.
+	 */
+	public ModelCommand poll() {
+		final long h = head.get();
+		if (h >= tailCache) {
+			tailCache = tail.get();
+			if (h >= tailCache) {
+				return null;
+			}
+		}
+		final int index = (int) h & mask;
+		final ModelCommand command = commands[index];
+		polledTime = times[index];
+		if (telemetry != null) {
+			telemetry.recordDispatched(command.kind.packetType, times[index],
+					System.nanoTime());
+		}
+		head.lazySet(h + 1);
+		return command;
+	}
+
+	/**
+	 * Returns the receive time of the command last returned by
+	 * {@link #poll()}, as passed to {@link #offer(ModelCommand, long)}.
+	 * Consumer only.
+	 */
+	public long getPolledTime() {
+		return polledTime;
+	}
+
+	/**
+	 * Returns the number of commands waiting. Safe to call from any thread,
+	 * though the value may be stale.
+	 */
+	public int size() {
+		return (int) (tail.get() - head.get());
+	}
+
+	/**
+	 * Returns the number of commands dropped because the queue was full.
+	 */
+	public long getOverflowCount() {
+		return overflows;
+	}
+}
@@ -0,0 +1,329 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drives any number of demonstration models at once.
+ * <p>
+ * Each model is an {@link Endpoint} with a {@link NetworkInterface} of its
+ * own, in this process or in a {@link NetworkDaemon}, and so its own socket,
+ * output queue, command queue and connection health; a board that drops off
+ * does not hold up the others. Outgoing packets are encoded once by the
+ * caller and the same bytes are queued to every ready endpoint. Inbound
+ * commands from all endpoints are merged by {@link #poll()}, which tags each
+ * with the endpoint it came from.
+ * <p>
+ * Apart from {@link #start()}, every method must be called from the GL
+ * thread.
+ */
+public class ConnectionManager {
+
+	/**
+	 * MODEL CONFIGURATION
+	 */
+	/**
+	 * Further models to drive alongside the one at the network interface's
+	 * default address, each as "host:port".
+	 */
+	private static final String[] ADDITIONAL_MODELS = {};
+	/**
+	 * Directory of the rings shared with a network daemon process that
+	 * drives the default model, or null to drive it from this process. See
+	 * NetworkDaemon.
+	 */
+	private static final String DAEMON_DIRECTORY = null;
+	/**
+	 * END MODEL CONFIGURATION
+	 */
+
+	private final Endpoint[] endpoints;
+
+	// Connection count of each endpoint when it was last seen ready, or -1
+	private final int[] readyConnection;
+	// Endpoint to poll first next time, so no endpoint starves the others
+	private int pollCursor = 0;
+	private int origin = -1;
+	private LatencyTrace trace = null;
+
+	/**
+	 * @param endpoints
+	 *            the interfaces to drive; the first is the primary endpoint
+	 */
+	public ConnectionManager(final Endpoint... endpoints) {
+		if (endpoints.length == 0) {
+			throw new IllegalArgumentException("No endpoints");
+		}
+		this.endpoints = endpoints.clone();
+		readyConnection = new int[endpoints.length];
+		for (int i = 0; i < readyConnection.length; i++) {
+			readyConnection[i] = -1;
+		}
+	}
+
+	/**
+	 * Creates a manager for the default model plus the configured additional
+	 * models. Entries that cannot be parsed are logged and skipped. The
+	 * default model is driven through the network daemon if one is
+	 * configured and its rings can be opened.
+	 */
+	public static ConnectionManager createDefault() {
+		final Endpoint[] endpoints = new Endpoint[1 + ADDITIONAL_MODELS.length];
+		Endpoint primary = null;
+		if (DAEMON_DIRECTORY != null) {
+			try {
+				primary = new DaemonEndpoint(new File(DAEMON_DIRECTORY));
+			} catch (IOException e) {
+				Logger.getGlobal().log(Level.SEVERE,
+						"Cannot open network daemon rings: " + e.getMessage());
+			}
+		}
+		int count = 0;
+		endpoints[count++] = primary != null ? primary : new NetworkInterface();
+		for (String model : ADDITIONAL_MODELS) {
+			final int colon = model.lastIndexOf(':');
+			try {
+				endpoints[count] = new NetworkInterface(model.substring(0,
+						colon), Integer.parseInt(model.substring(colon + 1)));
+				count++;
+			} catch (RuntimeException e) {
+				Logger.getGlobal().log(Level.SEVERE,
+						"Bad model address: " + model);
+			}
+		}
+
+		final Endpoint[] used = new Endpoint[count];
+		System.arraycopy(endpoints, 0, used, 0, count);
+		return new ConnectionManager(used);
+	}
+
+	/**
+	 * Starts a network thread for every endpoint.
+	 */
+	public void start() {
+		for (Endpoint endpoint : endpoints) {
+			final Thread thread = new Thread(endpoint, "Network "
+					+ endpoint.getName());
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	public int getEndpointCount() {
+		return endpoints.length;
+	}
+
+	public Endpoint getEndpoint(final int index) {
+		return endpoints[index];
+	}
+
+	/**
+	 * Sets the wire format on every endpoint.
+	 * 
+	 * @see NetworkInterface#setProtocol(ProtocolMode)
+	 */
+	public void setProtocol(final ProtocolMode protocol) {
+		for (Endpoint endpoint : endpoints) {
+			endpoint.setProtocol(protocol);
+		}
+	}
+
+	/**
+	 * Turns on heartbeats on every endpoint.
+	 * 
+	 * @see NetworkInterface#setHeartbeat(byte[], int)
+	 */
+	public void setHeartbeat(final byte[] data, final int length) {
+		for (Endpoint endpoint : endpoints) {
+			endpoint.setHeartbeat(data, length);
+		}
+	}
+
+	/**
+	 * Turns clock offset measurement on or off on every endpoint.
+	 * 
+	 * @see NetworkInterface#setClockSync(boolean)
+	 */
+	public void setClockSync(final boolean enabled) {
+		for (Endpoint endpoint : endpoints) {
+			endpoint.setClockSync(enabled);
+		}
+	}
+
+	/**
+	 * Turns acknowledged delivery of control packets on or off on every
+	 * endpoint.
+	 * 
+	 * @see NetworkInterface#setAcknowledgedDelivery(boolean)
+	 */
+	public void setAcknowledgedDelivery(final boolean enabled) {
+		for (Endpoint endpoint : endpoints) {
+			endpoint.setAcknowledgedDelivery(enabled);
+		}
+	}
+
+	/**
+	 * Queues an encoded packet to every endpoint that is ready for it.
+	 * Endpoints that are not connected are skipped; they are brought up to
+	 * date when they connect.
+	 * 
+	 * @see NetworkInterface#sendMessage(PacketTypes, int, byte[], int, int)
+	 */
+	public void sendMessage(final PacketTypes type, final int key,
+			final byte[] data, final int length, final int repeat) {
+		for (Endpoint endpoint : endpoints) {
+			if (endpoint.isConnected()) {
+				endpoint.sendMessage(type, key, data, length, repeat);
+			}
+		}
+	}
+
+	/**
+	 * Returns <tt>true</tt> if any endpoint is ready for packets.
+	 */
+	public boolean isConnected() {
+		for (Endpoint endpoint : endpoints) {
+			if (endpoint.isConnected()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns <tt>true</tt> if any ready endpoint still holds an unsent
+	 * packet of the given type. Since packets are encoded once for all
+	 * endpoints, a delta must wait for the slowest one.
+	 */
+	public boolean isPending(final PacketTypes type) {
+		for (Endpoint endpoint : endpoints) {
+			if (endpoint.isConnected() && endpoint.isPending(type)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns <tt>true</tt> once for every connection that has become ready
+	 * since the last call, so the caller can send the full state to it.
+	 */
+	public boolean checkNewConnections() {
+		boolean found = false;
+		for (int i = 0; i < endpoints.length; i++) {
+			final Endpoint endpoint = endpoints[i];
+			if (!endpoint.isConnected()) {
+				continue;
+			}
+			final int connection = endpoint.getConnectionCount();
+			if (connection != readyConnection[i]) {
+				readyConnection[i] = connection;
+				found = true;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Removes and returns the next command from any endpoint, or
+	 * <tt>null</tt> if none has one waiting. Endpoints take turns.
+	 * 
+	 * @see #getOrigin()
+	 */
+	public ModelCommand poll() {
+		for (int i = 0; i < endpoints.length; i++) {
+			final int index = (pollCursor + i) % endpoints.length;
+			final ModelCommand command = endpoints[index].pollCommand();
+			if (command != null) {
+				origin = index;
+				pollCursor = index + 1;
+				return command;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the time the command last returned by {@link #poll()} was read
+	 * from its model.
+	 * 
+	 * @see Endpoint#getPolledTime()
+	 */
+	public long getPolledTime() {
+		return endpoints[origin].getPolledTime();
+	}
+
+	/**
+	 * Takes the newest filtered reading of an analog channel from every
+	 * endpoint and returns the last one found, or NaN if no endpoint has a
+	 * new one.
+	 * 
+	 * @see AnalogIngest
+	 */
+	public float pollAnalog(final int channel) {
+		float reading = Float.NaN;
+		for (Endpoint endpoint : endpoints) {
+			final float value = endpoint.pollAnalog(channel);
+			if (!Float.isNaN(value)) {
+				reading = value;
+			}
+		}
+		return reading;
+	}
+
+	/**
+	 * Returns the index of the endpoint the command last returned by
+	 * {@link #poll()} came from.
+	 */
+	public int getOrigin() {
+		return origin;
+	}
+
+	/**
+	 * Starts tracing sensor readings through to the LED frames of every
+	 * endpoint, or stops if <tt>null</tt>.
+	 */
+	public void setLatencyTrace(final LatencyTrace trace) {
+		this.trace = trace;
+		for (Endpoint endpoint : endpoints) {
+			endpoint.setLatencyTrace(trace);
+		}
+	}
+
+	/**
+	 * Returns the trace of sensor readings, or <tt>null</tt> if none is
+	 * being taken.
+	 */
+	public LatencyTrace getLatencyTrace() {
+		return trace;
+	}
+
+	/**
+	 * Returns the number of outgoing packets thrown away by all endpoints.
+	 */
+	public long getDroppedSends() {
+		long count = 0;
+		for (Endpoint endpoint : endpoints) {
+			count += endpoint.getDroppedSends();
+		}
+		return count;
+	}
+
+	/**
+	 * Formats the telemetry of every endpoint for the log.
+	 */
+	public String report() {
+		final StringBuilder out = new StringBuilder();
+		for (Endpoint endpoint : endpoints) {
+			if (out.length() > 0) {
+				out.append('\n');
+			}
+			out.append(endpoint.report());
+		}
+		return out.toString();
+	}
+}
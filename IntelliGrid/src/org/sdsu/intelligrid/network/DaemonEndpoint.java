@@ -0,0 +1,319 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The application's side of a {@link NetworkDaemon}: an endpoint that hands
+ * packets to the daemon's outbound ring and takes the model's commands from
+ * its inbound ring, so nothing on the GL thread waits on a system call or
+ * another thread.
+ * <p>
+ * Settings are kept and written to the ring again whenever a new daemon
+ * instance shows up, so a daemon that restarts carries on as before. The
+ * link counts as down while the daemon has not shown signs of life for
+ * {@link #ALIVE_TIMEOUT_MS}.
+ * <p>
+ * Settings may be made from another thread before the GL thread starts
+ * sending, so every write to the outbound ring holds a lock, which is
+ * uncontended once running. Commands are only taken by the GL thread.
+ */
+public final class DaemonEndpoint implements Endpoint {
+
+	private static final int ALIVE_TIMEOUT_MS = 500;
+
+	private final File directory;
+	private final MappedRing outbound;
+	private final MappedRing inbound;
+
+	// Guarded by outbound
+	private final byte[] record = new byte[NetworkDaemon.MAX_RECORD_LENGTH];
+	private ProtocolMode protocol = null;
+	private byte[] heartbeat = null;
+	private boolean clockSync = false;
+	private boolean acknowledgedDelivery = false;
+	private int instance = 0;
+	private long droppedSends = 0;
+	private LatencyTrace trace = null;
+
+	// Owned by the GL thread
+	private final byte[] command = new byte[NetworkDaemon.COMMAND_LENGTH];
+	private long polledTime = 0;
+	// Analog status words last taken
+	private final int[] analogSeen = new int[AnalogIngest.CHANNELS];
+	// Time from the daemon reading a command to the simulation taking it
+	private final LatencyHistogram dispatch = new LatencyHistogram();
+
+	/**
+	 * Opens the rings in the directory, creating them if the daemon has not
+	 * yet. Commands left over from an earlier run are thrown away.
+	 */
+	public DaemonEndpoint(final File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create " + directory);
+		}
+		this.directory = directory;
+		outbound = MappedRing.open(new File(directory,
+				NetworkDaemon.OUTBOUND_FILE), NetworkDaemon.RING_CAPACITY);
+		inbound = MappedRing.open(new File(directory,
+				NetworkDaemon.INBOUND_FILE), NetworkDaemon.RING_CAPACITY);
+		inbound.discard();
+	}
+
+	/**
+	 * Does nothing; the daemon does the work.
+	 */
+	@Override
+	public void run() {
+	}
+
+	@Override
+	public String getName() {
+		return "daemon at " + directory;
+	}
+
+	@Override
+	public void setProtocol(final ProtocolMode protocol) {
+		synchronized (outbound) {
+			this.protocol = protocol;
+			writeProtocol();
+		}
+	}
+
+	@Override
+	public void setHeartbeat(final byte[] data, final int length) {
+		synchronized (outbound) {
+			final byte[] copy = new byte[length];
+			System.arraycopy(data, 0, copy, 0, length);
+			heartbeat = copy;
+			writeHeartbeat();
+		}
+	}
+
+	@Override
+	public void setClockSync(final boolean enabled) {
+		synchronized (outbound) {
+			clockSync = enabled;
+			writeFlag(NetworkDaemon.CLOCK_SYNC, enabled);
+		}
+	}
+
+	@Override
+	public void setAcknowledgedDelivery(final boolean enabled) {
+		synchronized (outbound) {
+			acknowledgedDelivery = enabled;
+			writeFlag(NetworkDaemon.ACKNOWLEDGED, enabled);
+		}
+	}
+
+	@Override
+	public void sendMessage(final PacketTypes type, final int key,
+			final byte[] data, final int length, final int repeat) {
+		synchronized (outbound) {
+			final int count = Math.min(length, record.length - 4);
+			record[0] = NetworkDaemon.PACKET;
+			record[1] = (byte) type.ordinal();
+			record[2] = (byte) key;
+			record[3] = (byte) repeat;
+			System.arraycopy(data, 0, record, 4, count);
+			final long time = System.nanoTime();
+			write(4 + count);
+			if (trace != null && type == PacketTypes.LIGHT_ANIMATION) {
+				trace.markWritten(time, System.nanoTime());
+			}
+		}
+	}
+
+	/**
+	 * Sets the trace to tell when LED frames are written. The daemon's
+	 * writes cannot be seen from here, so a frame counts as written once it
+	 * is in the ring.
+	 */
+	@Override
+	public void setLatencyTrace(final LatencyTrace trace) {
+		synchronized (outbound) {
+			this.trace = trace;
+		}
+	}
+
+	/**
+	 * Returns <tt>true</tt> if the daemon is running and its model is ready
+	 * for packets. Also passes the settings on to a daemon that has just
+	 * started.
+	 */
+	@Override
+	public boolean isConnected() {
+		if (!isAlive()) {
+			return false;
+		}
+		final int current = inbound.getStatus(NetworkDaemon.STATUS_INSTANCE);
+		synchronized (outbound) {
+			if (current != instance) {
+				instance = current;
+				writeSettings();
+			}
+		}
+		return inbound.getStatus(NetworkDaemon.STATUS_CONNECTED) != 0;
+	}
+
+	private boolean isAlive() {
+		final int alive = inbound.getStatus(NetworkDaemon.STATUS_ALIVE);
+		final int now = (int) (System.nanoTime() / 1000000L);
+		return alive != 0 && now - alive < ALIVE_TIMEOUT_MS;
+	}
+
+	/**
+	 * Returns <tt>true</tt> if the daemon has not taken every packet yet, or
+	 * still holds an unsent packet of the given type.
+	 */
+	@Override
+	public boolean isPending(final PacketTypes type) {
+		return !outbound.isEmpty()
+				|| (inbound.getStatus(NetworkDaemon.STATUS_PENDING) & 1 << type
+						.ordinal()) != 0;
+	}
+
+	@Override
+	public int getConnectionCount() {
+		return inbound.getStatus(NetworkDaemon.STATUS_CONNECTIONS);
+	}
+
+	@Override
+	public ModelCommand pollCommand() {
+		while (true) {
+			final int length = inbound.peek(command);
+			if (length < 0) {
+				return null;
+			}
+			inbound.release();
+			if (length != NetworkDaemon.COMMAND_LENGTH
+					|| command[0] != NetworkDaemon.COMMAND) {
+				continue;
+			}
+			final ModelCommand next = ModelCommand.byId((command[1] & 0xFF)
+					| (command[2] & 0xFF) << 8);
+			if (next == null) {
+				continue;
+			}
+			long time = 0;
+			for (int i = 7; i >= 0; i--) {
+				time = time << 8 | (command[3 + i] & 0xFF);
+			}
+			dispatch.record(System.nanoTime() - time);
+			polledTime = time;
+			return next;
+		}
+	}
+
+	/**
+	 * Returns the time the daemon read the command last polled.
+	 */
+	@Override
+	public long getPolledTime() {
+		return polledTime;
+	}
+
+	/**
+	 * Takes the newest filtered reading the daemon published for a channel.
+	 * A reading equal to the one before it is not taken again.
+	 */
+	@Override
+	public float pollAnalog(final int channel) {
+		final int word = inbound.getStatus(NetworkDaemon.STATUS_ANALOG
+				+ channel);
+		if (word == 0 || word == analogSeen[channel]) {
+			return Float.NaN;
+		}
+		analogSeen[channel] = word;
+		return Float.intBitsToFloat(word & ~NetworkDaemon.ANALOG_SIGN);
+	}
+
+	/**
+	 * Returns the number of outgoing packets thrown away by the daemon, plus
+	 * those that did not fit in the ring.
+	 */
+	@Override
+	public long getDroppedSends() {
+		final long dropped;
+		synchronized (outbound) {
+			dropped = droppedSends;
+		}
+		return dropped + unsigned(NetworkDaemon.STATUS_DROPPED_SENDS);
+	}
+
+	/**
+	 * Reports what the application sees; the daemon logs the link's own
+	 * telemetry.
+	 */
+	@Override
+	public String report() {
+		final int current;
+		synchronized (outbound) {
+			current = instance;
+		}
+		final StringBuilder out = new StringBuilder();
+		out.append(getName()).append(": ")
+				.append(isAlive() ? "running" : "not responding")
+				.append(", instance ").append(Integer.toHexString(current))
+				.append(", commands ").append(dispatch.getCount())
+				.append(", dispatch p50 ")
+				.append(toMillis(dispatch.getPercentile(0.5))).append(" p99 ")
+				.append(toMillis(dispatch.getPercentile(0.99))).append(" max ")
+				.append(toMillis(dispatch.getMax()))
+				.append("\ndropped sends ").append(getDroppedSends())
+				.append(", input overflows ")
+				.append(unsigned(NetworkDaemon.STATUS_INPUT_OVERFLOWS))
+				.append(", corrupt ring records ")
+				.append(inbound.getCorruptCount());
+		return out.toString();
+	}
+
+	private long unsigned(final int word) {
+		return inbound.getStatus(word) & 0xFFFFFFFFL;
+	}
+
+	private static double toMillis(final long nanos) {
+		return Math.round(nanos / 1e4) / 100.0;
+	}
+
+	// The rest must hold the lock on outbound
+
+	private void writeSettings() {
+		if (protocol != null) {
+			writeProtocol();
+		}
+		if (heartbeat != null) {
+			writeHeartbeat();
+		}
+		writeFlag(NetworkDaemon.CLOCK_SYNC, clockSync);
+		writeFlag(NetworkDaemon.ACKNOWLEDGED, acknowledgedDelivery);
+	}
+
+	private void writeProtocol() {
+		record[0] = NetworkDaemon.PROTOCOL;
+		record[1] = (byte) (protocol == null ? NetworkDaemon.NO_PROTOCOL
+				: protocol.ordinal());
+		write(2);
+	}
+
+	private void writeHeartbeat() {
+		final int length = Math.min(heartbeat.length, record.length - 1);
+		record[0] = NetworkDaemon.HEARTBEAT;
+		System.arraycopy(heartbeat, 0, record, 1, length);
+		write(1 + length);
+	}
+
+	private void writeFlag(final byte kind, final boolean enabled) {
+		record[0] = kind;
+		record[1] = (byte) (enabled ? 1 : 0);
+		write(2);
+	}
+
+	private void write(final int length) {
+		if (!outbound.offer(record, 0, length)) {
+			droppedSends++;
+		}
+	}
+}
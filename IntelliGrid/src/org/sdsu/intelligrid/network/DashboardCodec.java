@@ -0,0 +1,314 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire format of the dashboard stream sent by {@link DashboardServer}.
+ * <p>
+ * The stream is a sequence of messages, each a little endian two byte
+ * length followed by that many bytes of body. Three kinds of body exist:
+ * 
+ * <pre>
+ * header: 'H' count (length name[length])*
+ * full:   'F' seq[4] value[4]*count led[177]
+ * delta:  'D' seq[4] n (index value[4])*n m (start length led[length])*m
+ * </pre>
+ * 
+ * The header names the values, in order, and comes first on every
+ * connection. A full snapshot carries every value as a float and every LED
+ * state as an ASCII digit. A delta carries only the values and runs of LEDs
+ * that changed since the message with sequence number <tt>seq - 1</tt>; a
+ * full snapshot has the sequence number of the last delta before it.
+ */
+public final class DashboardCodec {
+
+	public static final byte HEADER = 'H';
+	public static final byte FULL = 'F';
+	public static final byte DELTA = 'D';
+
+	public static final int LENGTH_PREFIX = 2;
+	public static final int MAX_VALUES = 255;
+	public static final int MAX_MESSAGE_LENGTH = 0xFFFF;
+
+	private static final int SEQUENCE_LENGTH = 4;
+	private static final int VALUE_LENGTH = 4;
+
+	private DashboardCodec() {
+	}
+
+	/**
+	 * Returns the largest full snapshot for the given number of values,
+	 * length prefix included.
+	 */
+	public static int fullLength(final int count) {
+		return LENGTH_PREFIX + 1 + SEQUENCE_LENGTH + count * VALUE_LENGTH
+				+ LedFrameCodec.LED_COUNT;
+	}
+
+	/**
+	 * Returns the largest delta for the given number of values, length
+	 * prefix included.
+	 */
+	public static int maxDeltaLength(final int count) {
+		// One run per LED is the worst case at two header bytes each
+		return LENGTH_PREFIX + 1 + SEQUENCE_LENGTH + 1 + count
+				* (1 + VALUE_LENGTH) + 1 + LedFrameCodec.LED_COUNT * 3;
+	}
+
+	/**
+	 * Writes the header naming the values.
+	 */
+	public static void encodeHeader(final String[] names, final ByteBuffer out) {
+		final int start = begin(out);
+		out.put(HEADER);
+		out.put((byte) names.length);
+		for (String name : names) {
+			out.put((byte) name.length());
+			for (int i = 0; i < name.length(); i++) {
+				out.put((byte) name.charAt(i));
+			}
+		}
+		end(out, start);
+	}
+
+	/**
+	 * Writes a full snapshot.
+	 */
+	public static void encodeFull(final int sequence, final float[] values,
+			final byte[] leds, final ByteBuffer out) {
+		final int start = begin(out);
+		out.put(FULL);
+		out.putInt(sequence);
+		for (float value : values) {
+			out.putFloat(value);
+		}
+		out.put(leds, 0, LedFrameCodec.LED_COUNT);
+		end(out, start);
+	}
+
+	/**
+	 * Writes what changed between two snapshots.
+	 * 
+	 * @return <tt>false</tt>, with nothing written, if nothing changed
+	 */
+	public static boolean encodeDelta(final int sequence,
+			final float[] values, final float[] previous, final byte[] leds,
+			final byte[] previousLeds, final ByteBuffer out) {
+		final int start = begin(out);
+		out.put(DELTA);
+		out.putInt(sequence);
+
+		final int valueCountAt = out.position();
+		out.put((byte) 0);
+		int changed = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (Float.floatToIntBits(values[i]) != Float
+					.floatToIntBits(previous[i])) {
+				out.put((byte) i);
+				out.putFloat(values[i]);
+				changed++;
+			}
+		}
+		out.put(valueCountAt, (byte) changed);
+
+		final int runCountAt = out.position();
+		out.put((byte) 0);
+		int runs = 0;
+		int i = 0;
+		while (i < LedFrameCodec.LED_COUNT) {
+			if (leds[i] == previousLeds[i]) {
+				i++;
+				continue;
+			}
+			int end = i + 1;
+			while (end < LedFrameCodec.LED_COUNT
+					&& leds[end] != previousLeds[end]) {
+				end++;
+			}
+			out.put((byte) i);
+			out.put((byte) (end - i));
+			out.put(leds, i, end - i);
+			runs++;
+			i = end;
+		}
+		out.put(runCountAt, (byte) runs);
+
+		if (changed == 0 && runs == 0) {
+			out.position(start);
+			return false;
+		}
+		end(out, start);
+		return true;
+	}
+
+	private static int begin(final ByteBuffer out) {
+		out.order(ByteOrder.LITTLE_ENDIAN);
+		final int start = out.position();
+		out.position(start + LENGTH_PREFIX);
+		return start;
+	}
+
+	private static void end(final ByteBuffer out, final int start) {
+		out.putShort(start, (short) (out.position() - start - LENGTH_PREFIX));
+	}
+
+	/**
+	 * Client side of the codec. Rebuilds the dashboard state from the
+	 * stream, which may arrive in chunks of any size.
+	 */
+	public static final class Decoder {
+
+		private final ByteBuffer pending = ByteBuffer.allocate(
+				LENGTH_PREFIX + MAX_MESSAGE_LENGTH).order(
+				ByteOrder.LITTLE_ENDIAN);
+
+		private String[] names = new String[0];
+		private float[] values = new float[0];
+		private final byte[] leds = new byte[LedFrameCodec.LED_COUNT];
+		private int sequence = 0;
+		private boolean synced = false;
+
+		private long fulls = 0;
+		private long deltas = 0;
+		private long gaps = 0;
+
+		/**
+		 * Decodes a chunk of the stream.
+		 * 
+		 * @param in
+		 *            the bytes received, from its position to its limit;
+		 *            all of them are consumed
+		 */
+		public void feed(final ByteBuffer in) {
+			while (in.hasRemaining()) {
+				final int room = pending.remaining();
+				if (in.remaining() <= room) {
+					pending.put(in);
+				} else {
+					final int limit = in.limit();
+					in.limit(in.position() + room);
+					pending.put(in);
+					in.limit(limit);
+				}
+
+				pending.flip();
+				while (pending.remaining() >= LENGTH_PREFIX) {
+					final int length = pending.getShort(pending.position()) & 0xFFFF;
+					if (pending.remaining() < LENGTH_PREFIX + length) {
+						break;
+					}
+					pending.position(pending.position() + LENGTH_PREFIX);
+					final int end = pending.position() + length;
+					decode(pending, end);
+					pending.position(end);
+				}
+				pending.compact();
+			}
+		}
+
+		private void decode(final ByteBuffer body, final int end) {
+			if (body.position() >= end) {
+				return;
+			}
+			final byte kind = body.get();
+			switch (kind) {
+			case HEADER:
+				final int count = body.get() & 0xFF;
+				names = new String[count];
+				for (int i = 0; i < count; i++) {
+					final byte[] name = new byte[body.get() & 0xFF];
+					body.get(name);
+					names[i] = new String(name, StandardCharsets.US_ASCII);
+				}
+				values = new float[count];
+				synced = false;
+				break;
+			case FULL:
+				sequence = body.getInt();
+				for (int i = 0; i < values.length; i++) {
+					values[i] = body.getFloat();
+				}
+				body.get(leds);
+				synced = true;
+				fulls++;
+				break;
+			case DELTA:
+				final int seq = body.getInt();
+				if (!synced || seq != sequence + 1) {
+					synced = false;
+					gaps++;
+					return;
+				}
+				final int changed = body.get() & 0xFF;
+				for (int i = 0; i < changed; i++) {
+					final int index = body.get() & 0xFF;
+					final float value = body.getFloat();
+					if (index < values.length) {
+						values[index] = value;
+					}
+				}
+				final int runs = body.get() & 0xFF;
+				for (int i = 0; i < runs; i++) {
+					final int start = body.get() & 0xFF;
+					final int length = body.get() & 0xFF;
+					body.get(leds, start, length);
+				}
+				sequence = seq;
+				deltas++;
+				break;
+			default:
+				break;
+			}
+		}
+
+		/**
+		 * Returns <tt>true</tt> once a full snapshot has been received and no
+		 * delta has been missed since.
+		 */
+		public boolean isSynchronized() {
+			return synced;
+		}
+
+		public String[] getNames() {
+			return names;
+		}
+
+		/**
+		 * Returns the live value array. Do not modify it.
+		 */
+		public float[] getValues() {
+			return values;
+		}
+
+		/**
+		 * Returns the live LED state array, ASCII digits. Do not modify it.
+		 */
+		public byte[] getLeds() {
+			return leds;
+		}
+
+		public int getSequence() {
+			return sequence;
+		}
+
+		public long getFulls() {
+			return fulls;
+		}
+
+		public long getDeltas() {
+			return deltas;
+		}
+
+		/**
+		 * Returns the number of deltas that did not follow on from the
+		 * state, which the server never sends unless the stream is broken.
+		 */
+		public long getGaps() {
+			return gaps;
+		}
+	}
+}
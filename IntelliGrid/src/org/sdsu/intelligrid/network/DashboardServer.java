@@ -0,0 +1,383 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Streams the live simulation state to secondary dashboards, such as a
+ * tablet showing the graphs next to the model, over TCP.
+ * <p>
+ * The GL thread {@link #publish(double[], byte[])}es the latest values and
+ * LED states, which only copies them under a short lock. The server thread
+ * takes the latest copy at most {@link #getRate()} times a second, encodes
+ * what changed once, and appends the same bytes to the output buffer of
+ * every client; see {@link DashboardCodec} for the format. A new client is
+ * sent the header and a full snapshot, then deltas.
+ * <p>
+ * Each client has a bounded output buffer of its own. A delta that does not
+ * fit is dropped for that client only, and once its buffer has room again
+ * the client is sent a full snapshot instead, so a slow viewer skips updates
+ * but never sees a broken state nor holds up the simulation or the other
+ * viewers.
+ */
+public final class DashboardServer implements Runnable {
+
+	// Backlog allowed per client before it skips to a full snapshot, which
+	// bounds how far behind a slow viewer can fall
+	private static final int CLIENT_BACKLOG_SNAPSHOTS = 4;
+	private static final int MAX_CLIENTS = 16;
+	private static final int READ_BUFFER_SIZE = 256;
+
+	private static final class Client {
+
+		final SocketChannel channel;
+		final SelectionKey key;
+		final ByteBuffer out;
+		// Whether the client missed a delta and needs a full snapshot
+		boolean stale = true;
+
+		Client(final SocketChannel channel, final SelectionKey key,
+				final int capacity) {
+			this.channel = channel;
+			this.key = key;
+			out = ByteBuffer.allocate(capacity);
+		}
+	}
+
+	private final int port;
+	private final float rate;
+	private final long intervalNanos;
+	private final String[] names;
+
+	// Latest state from the GL thread, guarded by this
+	private final float[] published;
+	private final byte[] publishedLeds = new byte[LedFrameCodec.LED_COUNT];
+	private boolean dirty = false;
+
+	// Owned by the server thread
+	private final float[] values;
+	private final float[] previous;
+	private final byte[] leds = new byte[LedFrameCodec.LED_COUNT];
+	private final byte[] previousLeds = new byte[LedFrameCodec.LED_COUNT];
+	private boolean hasState = false;
+	private int sequence = 0;
+	private final ByteBuffer header;
+	private final int clientCapacity;
+	private final ByteBuffer full;
+	private final ByteBuffer delta;
+	private final ByteBuffer discard = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	private final List<Client> clients = new ArrayList<>();
+	private long nextSendTime = 0;
+
+	private volatile Selector selector = null;
+	private volatile boolean running = true;
+	private volatile int clientCount = 0;
+	private volatile long skippedUpdates = 0;
+	private volatile long sentBytes = 0;
+
+	/**
+	 * @param port
+	 *            the TCP port to listen on
+	 * @param rate
+	 *            the most updates to send per second
+	 * @param names
+	 *            the names of the values, at most
+	 *            {@link DashboardCodec#MAX_VALUES} of them, each under 256
+	 *            ASCII characters
+	 */
+	public DashboardServer(final int port, final float rate,
+			final String[] names) {
+		if (names.length > DashboardCodec.MAX_VALUES) {
+			throw new IllegalArgumentException("Too many values: "
+					+ names.length);
+		}
+		this.port = port;
+		this.rate = rate;
+		intervalNanos = (long) (1000000000L / rate);
+		this.names = names.clone();
+
+		published = new float[names.length];
+		values = new float[names.length];
+		previous = new float[names.length];
+
+		int headerLength = DashboardCodec.LENGTH_PREFIX + 2;
+		for (String name : names) {
+			headerLength += 1 + name.length();
+		}
+		header = ByteBuffer.allocate(headerLength);
+		DashboardCodec.encodeHeader(this.names, header);
+		header.flip();
+		full = ByteBuffer.allocate(DashboardCodec.fullLength(names.length));
+		delta = ByteBuffer.allocate(DashboardCodec
+				.maxDeltaLength(names.length));
+		clientCapacity = header.remaining()
+				+ Math.max(full.capacity(), delta.capacity())
+				* CLIENT_BACKLOG_SNAPSHOTS;
+	}
+
+	/**
+	 * Hands over the latest state. Never blocks on the network; may be called
+	 * from any thread, as often as convenient.
+	 * 
+	 * @param state
+	 *            the values, in the order of the names
+	 * @param ledStates
+	 *            the LED states as ASCII digits
+	 */
+	public void publish(final double[] state, final byte[] ledStates) {
+		synchronized (this) {
+			for (int i = 0; i < published.length; i++) {
+				published[i] = (float) state[i];
+			}
+			System.arraycopy(ledStates, 0, publishedLeds, 0,
+					LedFrameCodec.LED_COUNT);
+			dirty = true;
+		}
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public float getRate() {
+		return rate;
+	}
+
+	/**
+	 * Returns the number of dashboards connected.
+	 */
+	public int getClientCount() {
+		return clientCount;
+	}
+
+	/**
+	 * Returns the number of deltas dropped for clients that could not keep
+	 * up, summed over all clients.
+	 */
+	public long getSkippedUpdates() {
+		return skippedUpdates;
+	}
+
+	public long getSentBytes() {
+		return sentBytes;
+	}
+
+	/**
+	 * Stops the server thread, closing every connection.
+	 */
+	public void stop() {
+		running = false;
+		final Selector s = selector;
+		if (s != null) {
+			s.wakeup();
+		}
+	}
+
+	/**
+	 * Takes the latest published state, if any, and sends it on.
+	 */
+	private void update() {
+		synchronized (this) {
+			if (!dirty) {
+				return;
+			}
+			System.arraycopy(published, 0, values, 0, values.length);
+			System.arraycopy(publishedLeds, 0, leds, 0, leds.length);
+			dirty = false;
+		}
+
+		delta.clear();
+		final boolean changed = hasState
+				&& DashboardCodec.encodeDelta(sequence + 1, values, previous,
+						leds, previousLeds, delta);
+		if (changed) {
+			sequence++;
+		}
+		delta.flip();
+		full.clear();
+		DashboardCodec.encodeFull(sequence, values, leds, full);
+		full.flip();
+		hasState = true;
+		System.arraycopy(values, 0, previous, 0, values.length);
+		System.arraycopy(leds, 0, previousLeds, 0, leds.length);
+
+		for (Client client : clients) {
+			if (client.stale) {
+				continue;
+			}
+			if (changed) {
+				if (client.out.remaining() >= delta.remaining()) {
+					client.out.put(delta.duplicate());
+				} else {
+					client.stale = true;
+					skippedUpdates++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends a full snapshot to every client that needs one and has room for
+	 * it, then tries to write out every client's buffer.
+	 */
+	private void flush() {
+		final Iterator<Client> iter = clients.iterator();
+		while (iter.hasNext()) {
+			final Client client = iter.next();
+			if (client.stale && hasState
+					&& client.out.remaining() >= full.remaining()) {
+				client.out.put(full.duplicate());
+				client.stale = false;
+			}
+			try {
+				write(client);
+			} catch (IOException e) {
+				close(client);
+				iter.remove();
+			}
+		}
+		clientCount = clients.size();
+	}
+
+	private void write(final Client client) throws IOException {
+		if (client.out.position() > 0) {
+			client.out.flip();
+			sentBytes += client.channel.write(client.out);
+			client.out.compact();
+		}
+		client.key.interestOps(client.out.position() > 0 ? SelectionKey.OP_READ
+				| SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+	}
+
+	private void accept(final ServerSocketChannel server) throws IOException {
+		final SocketChannel channel = server.accept();
+		if (channel == null) {
+			return;
+		}
+		if (clients.size() >= MAX_CLIENTS) {
+			Logger.getGlobal().log(Level.INFO,
+					"Too many dashboards, refusing " + channel);
+			channel.close();
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		// Keep the kernel from queueing up minutes of stale updates
+		channel.socket().setSendBufferSize(clientCapacity);
+		final SelectionKey key = channel.register(selector,
+				SelectionKey.OP_READ);
+		final Client client = new Client(channel, key, clientCapacity);
+		key.attach(client);
+		client.out.put(header.duplicate());
+		clients.add(client);
+		Logger.getGlobal().log(
+				Level.INFO,
+				"Dashboard connected: "
+						+ channel.socket().getRemoteSocketAddress());
+	}
+
+	/**
+	 * Reads and ignores whatever a client sends, noticing when it hangs up.
+	 * 
+	 * @return <tt>false</tt> if the client has gone
+	 */
+	private boolean read(final Client client) {
+		try {
+			int count;
+			do {
+				discard.clear();
+				count = client.channel.read(discard);
+			} while (count > 0);
+			return count == 0;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void close(final Client client) {
+		Logger.getGlobal().log(Level.INFO, "Dashboard disconnected");
+		client.key.cancel();
+		try {
+			client.channel.close();
+		} catch (IOException e) {
+			Logger.getGlobal().log(Level.SEVERE, e.getMessage());
+		}
+	}
+
+	@Override
+	public void run() {
+		final ServerSocketChannel server;
+		try {
+			selector = Selector.open();
+			server = ServerSocketChannel.open();
+			server.socket().setReuseAddress(true);
+			server.socket().bind(new InetSocketAddress(port));
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			Logger.getGlobal().log(Level.SEVERE,
+					"Failed to start dashboard server: " + e.getMessage());
+			return;
+		}
+		try {
+			while (running && !Thread.currentThread().isInterrupted()) {
+				final long now = System.nanoTime();
+				if (now - nextSendTime >= 0) {
+					update();
+					nextSendTime = now + intervalNanos;
+				}
+				flush();
+
+				final long timeout = Math.max(1,
+						(nextSendTime - System.nanoTime()) / 1000000L);
+				selector.select(timeout);
+
+				final Iterator<SelectionKey> iter = selector.selectedKeys()
+						.iterator();
+				while (iter.hasNext()) {
+					final SelectionKey selected = iter.next();
+					iter.remove();
+					if (!selected.isValid()) {
+						continue;
+					}
+					if (selected.isAcceptable()) {
+						accept(server);
+						continue;
+					}
+					final Client client = (Client) selected.attachment();
+					if (selected.isReadable() && !read(client)) {
+						close(client);
+						clients.remove(client);
+					}
+				}
+			}
+		} catch (IOException e) {
+			Logger.getGlobal().log(Level.SEVERE,
+					"Dashboard server failure: " + e.getMessage());
+		}
+
+		for (Client client : clients) {
+			close(client);
+		}
+		clients.clear();
+		clientCount = 0;
+		try {
+			server.close();
+			selector.close();
+		} catch (IOException e) {
+			Logger.getGlobal().log(Level.SEVERE, e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,383 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+/**
+ * Acknowledged delivery of control packets on framed links.
+ * <p>
+ * The sender numbers every packet that must arrive, sends it as a version 2
+ * frame (see {@link FrameCodec}) and keeps a copy until the receiver
+ * acknowledges it. The receiver hands packets on in sequence order, holding
+ * back any that arrive after a gap, and answers every numbered frame with a
+ * {@link PacketTypes#ACK}, numbers stored little endian:
+ * 
+ * <pre>
+ * ack: cumulative[1] selective[4]
+ * </pre>
+ * 
+ * <tt>cumulative</tt> is the sequence number of the last packet received
+ * with none missing before it, and bit <tt>i</tt> of <tt>selective</tt> is
+ * set if packet <tt>cumulative + 2 + i</tt> has been received as well. A
+ * packet still unacknowledged {@link #getTimeout()} ms after it was last
+ * sent is sent again, and nothing else is, so a lost packet costs one more
+ * copy rather than every packet costing {@link PacketTypes#repeat} copies.
+ * <p>
+ * Sequence numbers are 8 bits and wrap. At most {@link #WINDOW} packets may
+ * be unacknowledged at once, which keeps a number from being reused while
+ * an older packet with it might still arrive. Both sides start again from 0
+ * on every connection.
+ * <p>
+ * Neither side is thread safe; only the network thread uses a window, and
+ * only the model's reader a {@link Receiver}.
+ */
+public final class DeliveryWindow {
+
+	public static final int WINDOW = 32;
+	public static final int ACK_LENGTH = 5;
+
+	private static final int MASK = WINDOW - 1;
+
+	private final int timeout;
+	private final NetworkTelemetry telemetry;
+
+	// Packet with sequence number s is in slot s & MASK
+	private final IntelliGridPacket[] slots = new IntelliGridPacket[WINDOW];
+	private final IntelliGridPacket[] spare = new IntelliGridPacket[WINDOW];
+	private final long[] sentTimes = new long[WINDOW];
+	private final boolean[] acknowledged = new boolean[WINDOW];
+	// Oldest unacknowledged sequence number and the next to hand out; only
+	// the low 8 bits go on the wire
+	private int base = 0;
+	private int next = 0;
+	// Slot of the last packet returned by peekDue
+	private int due = -1;
+
+	/**
+	 * @param timeout
+	 *            how long to wait for an acknowledgement before sending a
+	 *            packet again, in milliseconds
+	 * @param telemetry
+	 *            where to record delivery latency and retransmissions
+	 */
+	public DeliveryWindow(final int timeout, final NetworkTelemetry telemetry) {
+		this.timeout = timeout;
+		this.telemetry = telemetry;
+		for (int i = 0; i < WINDOW; i++) {
+			slots[i] = new IntelliGridPacket(FrameCodec.MAX_FRAME_LENGTH);
+		}
+	}
+
+	/**
+	 * Returns <tt>true</tt> for the packet types sent with acknowledged
+	 * delivery: the control packets that change the model's state. Packets
+	 * that are sent again anyway, or go stale, are not.
+	 */
+	public static boolean isAcknowledged(final PacketTypes type) {
+		switch (type) {
+		case HEARTBEAT:
+		case CLOCK_SYNC:
+		case ACK:
+			return false;
+		default:
+			return type.control;
+		}
+	}
+
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Returns the number of packets sent but not acknowledged yet.
+	 */
+	public int size() {
+		return next - base;
+	}
+
+	/**
+	 * Returns <tt>true</tt> if no more packets may be sent until some are
+	 * acknowledged.
+	 */
+	public boolean isFull() {
+		return next - base >= WINDOW;
+	}
+
+	/**
+	 * Numbers a framed packet and keeps a copy until it is acknowledged.
+	 * Must not be called while the window is full.
+	 * 
+	 * @param packet
+	 *            a packet holding one version 1 frame
+	 * @param now
+	 *            the time in milliseconds
+	 * @return the packet to write instead, holding the version 2 frame; it
+	 *         belongs to the window
+	 */
+	public IntelliGridPacket add(final IntelliGridPacket packet, final long now) {
+		final int slot = next & MASK;
+		final IntelliGridPacket copy = slots[slot];
+		copy.type = packet.type;
+		copy.key = packet.key;
+		copy.time = packet.time;
+		copy.repeat = 1;
+		copy.length = FrameCodec.encodeSequenced(packet.type, next,
+				packet.data, FrameCodec.HEADER_LENGTH,
+				packet.data[3] & 0xFF, copy.data, 0);
+		sentTimes[slot] = now;
+		acknowledged[slot] = false;
+		next++;
+		return copy;
+	}
+
+	/**
+	 * Returns the oldest packet whose acknowledgement is overdue, or
+	 * <tt>null</tt> if there is none. Call {@link #markResent(long)} once it
+	 * has been written.
+	 */
+	public IntelliGridPacket peekDue(final long now) {
+		for (int s = base; s != next; s++) {
+			final int slot = s & MASK;
+			if (!acknowledged[slot] && now - sentTimes[slot] >= timeout) {
+				due = slot;
+				return slots[slot];
+			}
+		}
+		due = -1;
+		return null;
+	}
+
+	/**
+	 * Records that the packet last returned by {@link #peekDue(long)} was
+	 * sent again.
+	 */
+	public void markResent(final long now) {
+		if (due < 0) {
+			return;
+		}
+		final IntelliGridPacket packet = slots[due];
+		telemetry.recordRetransmit(packet.type, packet.length);
+		sentTimes[due] = now;
+		due = -1;
+	}
+
+	/**
+	 * Returns how long until the next acknowledgement is overdue, at least 1
+	 * ms, or 0 if nothing is waiting for one.
+	 */
+	public long getWait(final long now) {
+		long wait = 0;
+		for (int s = base; s != next; s++) {
+			final int slot = s & MASK;
+			if (!acknowledged[slot]) {
+				final long left = Math.max(1, sentTimes[slot] + timeout - now);
+				wait = wait == 0 ? left : Math.min(wait, left);
+			}
+		}
+		return wait;
+	}
+
+	/**
+	 * Applies an acknowledgement from the receiver.
+	 * 
+	 * @param payload
+	 *            the body of the {@link PacketTypes#ACK} packet
+	 * @param length
+	 *            the length of the body
+	 * @param now
+	 *            {@link System#nanoTime()} when the acknowledgement was read
+	 * @return the number of packets newly acknowledged, or -1 if the
+	 *         acknowledgement was malformed or refers to packets never sent
+	 */
+	public int onAck(final byte[] payload, final int length, final long now) {
+		if (length != ACK_LENGTH) {
+			return -1;
+		}
+		// Widen the 8 bit number to the one just before or inside the window
+		final int cumulative = base - 1
+				+ ((payload[0] - (base - 1)) & 0xFF);
+		if (cumulative - base >= next - base) {
+			return -1;
+		}
+		final int selective = (payload[1] & 0xFF)
+				| (payload[2] & 0xFF) << 8 | (payload[3] & 0xFF) << 16
+				| (payload[4] & 0xFF) << 24;
+
+		int count = 0;
+		for (int s = base; s != next; s++) {
+			final int bit = s - cumulative - 2;
+			if (s - cumulative <= 0
+					|| (bit >= 0 && bit < 32 && (selective >>> bit & 1) != 0)) {
+				count += acknowledge(s & MASK, now);
+			}
+		}
+		while (base != next && acknowledged[base & MASK]) {
+			base++;
+		}
+		return count;
+	}
+
+	private int acknowledge(final int slot, final long now) {
+		if (acknowledged[slot]) {
+			return 0;
+		}
+		acknowledged[slot] = true;
+		final IntelliGridPacket packet = slots[slot];
+		telemetry.recordDelivered(packet.type, packet.time, now);
+		return 1;
+	}
+
+	/**
+	 * Starts numbering from 0 again for a new connection. Packets still
+	 * unacknowledged are kept, renumbered in their order, and are due to be
+	 * sent again at once.
+	 * 
+	 * @param now
+	 *            the time in milliseconds
+	 */
+	public void restart(final long now) {
+		int count = 0;
+		for (int s = base; s != next; s++) {
+			final int slot = s & MASK;
+			if (acknowledged[slot]) {
+				continue;
+			}
+			final IntelliGridPacket packet = slots[slot];
+			FrameCodec.encodeSequenced(packet.type, count, packet.data,
+					FrameCodec.HEADER_LENGTH + FrameCodec.SEQUENCE_LENGTH,
+					packet.data[3] & 0xFF, packet.data, 0);
+			spare[count++] = packet;
+		}
+		final int pending = count;
+		// Unacknowledged packets move to the front; the rest fill the gaps
+		for (int s = base; s != next; s++) {
+			final int slot = s & MASK;
+			if (acknowledged[slot]) {
+				spare[count++] = slots[slot];
+			}
+		}
+		for (int s = next; s != base + WINDOW; s++) {
+			spare[count++] = slots[s & MASK];
+		}
+		for (int i = 0; i < WINDOW; i++) {
+			slots[i] = spare[i];
+			spare[i] = null;
+			sentTimes[i] = now - timeout;
+			acknowledged[i] = false;
+		}
+		next = pending;
+		base = 0;
+		due = -1;
+	}
+
+	/**
+	 * Model side of acknowledged delivery. Puts numbered packets back in
+	 * order and writes the acknowledgements.
+	 */
+	public static final class Receiver {
+
+		private final PacketTypes[] types = new PacketTypes[WINDOW];
+		private final byte[][] payloads = new byte[WINDOW][FrameCodec.MAX_PAYLOAD_LENGTH];
+		private final int[] lengths = new int[WINDOW];
+		private final boolean[] held = new boolean[WINDOW];
+		// Sequence number of the next packet to hand on, 8 bits
+		private int expected = 0;
+
+		private long delivered = 0;
+		private long duplicates = 0;
+		private long heldBack = 0;
+
+		/**
+		 * Takes a numbered packet and hands it, along with any packets held
+		 * back waiting for it, to the listener in sequence order. A packet
+		 * that arrives after a gap is held back until the gap is filled.
+		 * 
+		 * @return <tt>false</tt> if the packet was a duplicate or too far
+		 *         ahead, and was dropped
+		 */
+		public boolean receive(final int sequence, final PacketTypes type,
+				final byte[] payload, final int length,
+				final PacketDecoder.Listener listener) {
+			final int ahead = (sequence - expected) & 0xFF;
+			if (ahead >= WINDOW) {
+				// Sent again because the acknowledgement was lost
+				duplicates++;
+				return false;
+			}
+			if (ahead > 0) {
+				final int slot = sequence & MASK;
+				if (held[slot]) {
+					duplicates++;
+					return false;
+				}
+				types[slot] = type;
+				System.arraycopy(payload, 0, payloads[slot], 0, length);
+				lengths[slot] = length;
+				held[slot] = true;
+				heldBack++;
+				return true;
+			}
+
+			listener.onPacket(type, payload, length);
+			delivered++;
+			expected = (expected + 1) & 0xFF;
+			while (held[expected & MASK]) {
+				final int slot = expected & MASK;
+				held[slot] = false;
+				listener.onPacket(types[slot], payloads[slot], lengths[slot]);
+				delivered++;
+				expected = (expected + 1) & 0xFF;
+			}
+			return true;
+		}
+
+		/**
+		 * Writes the acknowledgement of everything received so far.
+		 * 
+		 * @return the number of bytes written, {@link #ACK_LENGTH}
+		 */
+		public int encodeAck(final byte[] out) {
+			int selective = 0;
+			for (int i = 0; i < WINDOW - 1; i++) {
+				if (held[(expected + 1 + i) & MASK]) {
+					selective |= 1 << i;
+				}
+			}
+			out[0] = (byte) (expected - 1);
+			out[1] = (byte) selective;
+			out[2] = (byte) (selective >> 8);
+			out[3] = (byte) (selective >> 16);
+			out[4] = (byte) (selective >> 24);
+			return ACK_LENGTH;
+		}
+
+		/**
+		 * Forgets everything for a new connection.
+		 */
+		public void reset() {
+			expected = 0;
+			for (int i = 0; i < WINDOW; i++) {
+				held[i] = false;
+			}
+		}
+
+		public long getDelivered() {
+			return delivered;
+		}
+
+		/**
+		 * Returns the number of packets dropped because they had already
+		 * been received.
+		 */
+		public long getDuplicates() {
+			return duplicates;
+		}
+
+		/**
+		 * Returns the number of packets that arrived after a gap and had to
+		 * wait for it to be filled.
+		 */
+		public long getHeldBack() {
+			return heldBack;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+/**
+ * Link to one demonstration model, as driven by a {@link ConnectionManager}:
+ * either a {@link NetworkInterface} in this process or a
+ * {@link DaemonEndpoint} talking to one in a {@link NetworkDaemon} process.
+ * <p>
+ * {@link #run()} does whatever work the endpoint needs a thread of its own
+ * for. Apart from that, every method must be called from the GL thread.
+ */
+public interface Endpoint extends Runnable {
+
+	/**
+	 * Returns the address of the model, for the log.
+	 */
+	String getName();
+
+	/**
+	 * @see NetworkInterface#setProtocol(ProtocolMode)
+	 */
+	void setProtocol(ProtocolMode protocol);
+
+	/**
+	 * @see NetworkInterface#setHeartbeat(byte[], int)
+	 */
+	void setHeartbeat(byte[] data, int length);
+
+	/**
+	 * @see NetworkInterface#setClockSync(boolean)
+	 */
+	void setClockSync(boolean enabled);
+
+	/**
+	 * @see NetworkInterface#setAcknowledgedDelivery(boolean)
+	 */
+	void setAcknowledgedDelivery(boolean enabled);
+
+	/**
+	 * @see NetworkInterface#sendMessage(PacketTypes, int, byte[], int, int)
+	 */
+	void sendMessage(PacketTypes type, int key, byte[] data, int length,
+			int repeat);
+
+	/**
+	 * @see NetworkInterface#isConnected()
+	 */
+	boolean isConnected();
+
+	/**
+	 * @see NetworkInterface#isPending(PacketTypes)
+	 */
+	boolean isPending(PacketTypes type);
+
+	/**
+	 * @see NetworkInterface#getConnectionCount()
+	 */
+	int getConnectionCount();
+
+	/**
+	 * Removes and returns the oldest command from the model, or
+	 * <tt>null</tt> if none is waiting.
+	 */
+	ModelCommand pollCommand();
+
+	/**
+	 * Returns the {@link System#nanoTime()} when the command last returned
+	 * by {@link #pollCommand()} was read from the model.
+	 */
+	long getPolledTime();
+
+	/**
+	 * Takes the newest filtered reading of an analog channel, or NaN if
+	 * there has been none since the last call.
+	 * 
+	 * @see AnalogIngest
+	 */
+	float pollAnalog(int channel);
+
+	/**
+	 * @see NetworkInterface#getDroppedSends()
+	 */
+	long getDroppedSends();
+
+	/**
+	 * Sets the trace to tell when LED frames are written, or <tt>null</tt>
+	 * for none.
+	 * 
+	 * @see LatencyTrace#markWritten(long, long)
+	 */
+	void setLatencyTrace(LatencyTrace trace);
+
+	/**
+	 * Formats the endpoint's telemetry for the log.
+	 */
+	String report();
+}
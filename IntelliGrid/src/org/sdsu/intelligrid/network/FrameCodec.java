@@ -0,0 +1,186 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+/**
+ * Binary frame format for traffic between the application and the model.
+ * <p>
+ * Version 1 frames are laid out as follows:
+ * 
+ * <pre>
+ * offset  size  field
+ * 0       1     sync byte, always {@link #SYNC}
+ * 1       1     frame format version, currently {@link #VERSION}
+ * 2       1     packet type, the ASCII prefix of {@link PacketTypes}
+ * 3       1     payload length in bytes (0 - 255)
+ * 4       n     payload
+ * 4 + n   2     CRC-16/CCITT of bytes 1 through 3 + n, big endian
+ * </pre>
+ * 
+ * The CRC covers everything after the sync byte, so a frame that lost or
+ * gained a byte is rejected rather than handed to the wrong handler.
+ * <p>
+ * Version 2 frames are the same but for a sequence number, 0 - 255 and
+ * wrapping, inserted after the payload length. They carry packets the
+ * receiver must acknowledge; see {@link DeliveryWindow}.
+ * 
+ * <pre>
+ * offset  size  field
+ * 0       1     sync byte, always {@link #SYNC}
+ * 1       1     frame format version, {@link #VERSION_SEQUENCED}
+ * 2       1     packet type
+ * 3       1     payload length in bytes (0 - 255)
+ * 4       1     sequence number
+ * 5       n     payload
+ * 5 + n   2     CRC-16/CCITT of bytes 1 through 4 + n, big endian
+ * </pre>
+ */
+public final class FrameCodec {
+
+	public static final byte SYNC = (byte) 0xA5;
+	public static final int VERSION = 1;
+	public static final int VERSION_SEQUENCED = 2;
+
+	public static final int HEADER_LENGTH = 4;
+	public static final int SEQUENCE_LENGTH = 1;
+	public static final int CRC_LENGTH = 2;
+	public static final int MAX_PAYLOAD_LENGTH = 255;
+	public static final int MAX_FRAME_LENGTH = HEADER_LENGTH
+			+ SEQUENCE_LENGTH + MAX_PAYLOAD_LENGTH + CRC_LENGTH;
+
+	private static final char[] crcTable = new char[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i << 8;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+			}
+			crcTable[i] = (char) crc;
+		}
+	}
+
+	private FrameCodec() {
+	}
+
+	/**
+	 * Computes the CRC-16/CCITT (polynomial 0x1021, initial value 0xFFFF) of
+	 * a range of bytes.
+	 * 
+	 * @param data
+	 *            the array holding the bytes
+	 * @param offset
+	 *            the index of the first byte
+	 * @param length
+	 *            the number of bytes
+	 * @return the 16 bit CRC
+	 */
+	public static int crc16(final byte[] data, final int offset,
+			final int length) {
+		int crc = 0xFFFF;
+		final int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			crc = ((crc << 8) ^ crcTable[((crc >> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+		}
+		return crc;
+	}
+
+	/**
+	 * Returns the size of a frame carrying the given amount of payload.
+	 */
+	public static int frameLength(final int payloadLength) {
+		return HEADER_LENGTH + payloadLength + CRC_LENGTH;
+	}
+
+	/**
+	 * Returns the size of a version 2 frame carrying the given amount of
+	 * payload.
+	 */
+	public static int sequencedFrameLength(final int payloadLength) {
+		return HEADER_LENGTH + SEQUENCE_LENGTH + payloadLength + CRC_LENGTH;
+	}
+
+	/**
+	 * Writes one frame into an array.
+	 * 
+	 * @param type
+	 *            the type of packet being framed
+	 * @param payload
+	 *            the array holding the packet body, without the prefix
+	 * @param payloadOffset
+	 *            the index of the first payload byte
+	 * @param payloadLength
+	 *            the number of payload bytes
+	 * @param out
+	 *            the array to write the frame to
+	 * @param outOffset
+	 *            the index in <tt>out</tt> to start writing at
+	 * @return the number of bytes written
+	 * @throws IllegalArgumentException
+	 *             if the payload is longer than {@link #MAX_PAYLOAD_LENGTH}
+	 */
+	public static int encode(final PacketTypes type, final byte[] payload,
+			final int payloadOffset, final int payloadLength,
+			final byte[] out, final int outOffset) {
+		return encode(VERSION, type, 0, payload, payloadOffset,
+				payloadLength, out, outOffset);
+	}
+
+	/**
+	 * Writes one version 2 frame, which the receiver acknowledges, into an
+	 * array.
+	 * 
+	 * @param type
+	 *            the type of packet being framed
+	 * @param sequence
+	 *            the sequence number of the frame; only the low 8 bits are
+	 *            sent
+	 * @param payload
+	 *            the array holding the packet body, without the prefix
+	 * @param payloadOffset
+	 *            the index of the first payload byte
+	 * @param payloadLength
+	 *            the number of payload bytes
+	 * @param out
+	 *            the array to write the frame to
+	 * @param outOffset
+	 *            the index in <tt>out</tt> to start writing at
+	 * @return the number of bytes written
+	 * @throws IllegalArgumentException
+	 *             if the payload is longer than {@link #MAX_PAYLOAD_LENGTH}
+	 */
+	public static int encodeSequenced(final PacketTypes type,
+			final int sequence, final byte[] payload, final int payloadOffset,
+			final int payloadLength, final byte[] out, final int outOffset) {
+		return encode(VERSION_SEQUENCED, type, sequence, payload,
+				payloadOffset, payloadLength, out, outOffset);
+	}
+
+	private static int encode(final int version, final PacketTypes type,
+			final int sequence, final byte[] payload, final int payloadOffset,
+			final int payloadLength, final byte[] out, final int outOffset) {
+		if (payloadLength > MAX_PAYLOAD_LENGTH) {
+			throw new IllegalArgumentException("Payload too long: "
+					+ payloadLength);
+		}
+
+		out[outOffset] = SYNC;
+		out[outOffset + 1] = (byte) version;
+		out[outOffset + 2] = (byte) type.getPrefixChar();
+		out[outOffset + 3] = (byte) payloadLength;
+		int header = HEADER_LENGTH;
+		if (version == VERSION_SEQUENCED) {
+			out[outOffset + header] = (byte) sequence;
+			header += SEQUENCE_LENGTH;
+		}
+		System.arraycopy(payload, payloadOffset, out, outOffset + header,
+				payloadLength);
+
+		final int crcOffset = outOffset + header + payloadLength;
+		final int crc = crc16(out, outOffset + 1, header - 1 + payloadLength);
+		out[crcOffset] = (byte) (crc >> 8);
+		out[crcOffset + 1] = (byte) crc;
+
+		return header + payloadLength + CRC_LENGTH;
+	}
+}
@@ -0,0 +1,143 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental decoder for {@link FrameCodec} frames.
+ * <p>
+ * Received bytes are collected in a reusable buffer until a whole frame is
+ * present. A frame with an unknown version or type, or a bad CRC, is thrown
+ * away one byte at a time so the decoder locks back on to the next sync byte
+ * even if it was inside the rejected frame.
+ * <p>
+ * Version 2 frames are decoded too; while the listener handles one,
+ * {@link #getSequence()} returns its sequence number.
+ */
+public final class FrameDecoder implements PacketDecoder {
+
+	private final byte[] frame = new byte[FrameCodec.MAX_FRAME_LENGTH];
+	private final byte[] payload = new byte[FrameCodec.MAX_PAYLOAD_LENGTH];
+	private int frameLength = 0;
+	private int sequence = -1;
+
+	private long framesDecoded = 0;
+	private long framesRejected = 0;
+
+	@Override
+	public void feed(final byte[] data, final int offset, final int count,
+			final Listener listener) {
+		final int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			step(data[i], listener);
+		}
+	}
+
+	@Override
+	public void feed(final ByteBuffer data, final Listener listener) {
+		final int end = data.limit();
+		for (int i = data.position(); i < end; i++) {
+			step(data.get(i), listener);
+		}
+		data.position(end);
+	}
+
+	private void step(final byte b, final Listener listener) {
+		if (frameLength == 0 && b != FrameCodec.SYNC) {
+			return;
+		}
+		frame[frameLength++] = b;
+		process(listener);
+	}
+
+	private void process(final Listener listener) {
+		while (frameLength > 0) {
+			if (frame[0] != FrameCodec.SYNC) {
+				discard(1);
+				continue;
+			}
+			if (frameLength < FrameCodec.HEADER_LENGTH) {
+				return;
+			}
+
+			final PacketTypes type = PacketTypes.fromPrefix(frame[2]);
+			final boolean sequenced = frame[1] == FrameCodec.VERSION_SEQUENCED;
+			if ((frame[1] != FrameCodec.VERSION && !sequenced)
+					|| type == null) {
+				framesRejected++;
+				discard(1);
+				continue;
+			}
+
+			final int length = frame[3] & 0xFF;
+			final int header = sequenced ? FrameCodec.HEADER_LENGTH
+					+ FrameCodec.SEQUENCE_LENGTH : FrameCodec.HEADER_LENGTH;
+			final int total = header + length + FrameCodec.CRC_LENGTH;
+			if (frameLength < total) {
+				return;
+			}
+
+			final int crcOffset = header + length;
+			final int crc = ((frame[crcOffset] & 0xFF) << 8)
+					| (frame[crcOffset + 1] & 0xFF);
+			if (crc != FrameCodec.crc16(frame, 1, crcOffset - 1)) {
+				framesRejected++;
+				discard(1);
+				continue;
+			}
+
+			System.arraycopy(frame, header, payload, 0, length);
+			sequence = sequenced ? frame[FrameCodec.HEADER_LENGTH] & 0xFF : -1;
+			discard(total);
+			framesDecoded++;
+			listener.onPacket(type, payload, length);
+			sequence = -1;
+		}
+	}
+
+	private void discard(final int count) {
+		frameLength -= count;
+		if (frameLength > 0) {
+			System.arraycopy(frame, count, frame, 0, frameLength);
+		}
+	}
+
+	@Override
+	public boolean hasPartialPacket() {
+		return frameLength > 0;
+	}
+
+	@Override
+	public void reset() {
+		frameLength = 0;
+	}
+
+	/**
+	 * Returns the sequence number of the frame being handed to the listener,
+	 * or -1 if it is a version 1 frame or no frame is being handed over.
+	 */
+	public int getSequence() {
+		return sequence;
+	}
+
+	@Override
+	public long getErrorCount() {
+		return framesRejected;
+	}
+
+	/**
+	 * Returns the number of frames that passed every check.
+	 */
+	public long getFramesDecoded() {
+		return framesDecoded;
+	}
+
+	/**
+	 * Returns the number of frames thrown away for a bad version, type or
+	 * CRC.
+	 */
+	public long getFramesRejected() {
+		return framesRejected;
+	}
+}
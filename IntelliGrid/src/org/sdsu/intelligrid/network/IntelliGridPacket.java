@@ -2,21 +2,43 @@
 
 package org.sdsu.intelligrid.network;
 
-import java.util.Date;
-
 /**
  * Packet class for the network API.
+ * <p>
+ * Holds the raw bytes of a message as they go to or come from the model.
+ * Packets are preallocated slots that get refilled, so nothing here should
+ * be kept after the slot has been handed back.
  */
 public class IntelliGridPacket {
 
-	public final String message;
-	public final Date date;
+	public final byte[] data;
+	public int length;
+
+	/**
+	 * {@link System#nanoTime()} when the packet was queued or received.
+	 */
+	public long time;
 	public int repeat;
 
-	public IntelliGridPacket(final String message, final Date date,
-			final int repeat) {
-		this.message = message;
-		this.date = date;
-		this.repeat = repeat;
+	/**
+	 * Type and slot key of outgoing packets; unused for incoming data.
+	 */
+	public PacketTypes type;
+	public int key;
+
+	public IntelliGridPacket(final int capacity) {
+		this.data = new byte[capacity];
+	}
+
+	/**
+	 * Copies the contents of another packet into this one.
+	 */
+	public void copyFrom(final IntelliGridPacket other) {
+		System.arraycopy(other.data, 0, data, 0, other.length);
+		length = other.length;
+		time = other.time;
+		repeat = other.repeat;
+		type = other.type;
+		key = other.key;
 	}
 }
@@ -0,0 +1,150 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Plays the inbound traffic of a {@link TrafficJournal} back as if the model
+ * were sending it.
+ * <p>
+ * The recorded reads are written, in order and with the recorded spacing
+ * scaled by a speed factor, to a channel standing in for the model's end of
+ * a connection; usually the model sink of a {@link PipeTransport}, so the
+ * bytes are read and decoded by {@link NetworkInterface} exactly as live
+ * traffic is. Connection events in the journal are not replayed. For
+ * replaying as fast as the simulation takes commands, without the network
+ * thread in between, see
+ * {@link MainNetworkHandler#replay(TrafficJournal.Reader)}.
+ */
+public final class JournalReplay implements Runnable {
+
+	private static final int DRAIN_BUFFER_SIZE = 4096;
+
+	private final TrafficJournal.Reader reader;
+	private final WritableByteChannel out;
+	private final double speed;
+
+	/**
+	 * @param reader
+	 *            the journal to replay, from its current record on
+	 * @param out
+	 *            the channel to write the model's traffic to; it is closed
+	 *            at the end of the journal
+	 * @param speed
+	 *            how many times faster than recorded to replay, or 0 to
+	 *            replay as fast as the channel takes the bytes
+	 */
+	public JournalReplay(final TrafficJournal.Reader reader,
+			final WritableByteChannel out, final double speed) {
+		this.reader = reader;
+		this.out = out;
+		this.speed = speed;
+	}
+
+	/**
+	 * Creates a network interface that receives a journal's traffic instead
+	 * of connecting to the model, and starts replaying into it. Start the
+	 * interface's thread as usual; it stops once the journal has been read
+	 * to the end. What the interface sends is thrown away.
+	 * 
+	 * @param journal
+	 *            the journal file
+	 * @param speed
+	 *            how many times faster than recorded to replay, or 0 for as
+	 *            fast as possible
+	 * @throws IOException
+	 *             if the journal cannot be opened
+	 */
+	public static NetworkInterface createInterface(final File journal,
+			final double speed) throws IOException {
+		final TrafficJournal.Reader reader = TrafficJournal.open(journal);
+		final PipeTransport pipe = PipeTransport.create();
+		final Thread thread = new Thread(new JournalReplay(reader,
+				pipe.getModelSink(), speed), "Journal replay");
+		thread.setDaemon(true);
+		thread.start();
+		final ReadableByteChannel source = pipe.getModelSource();
+		final Thread drain = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				drain(source);
+			}
+		}, "Journal replay drain");
+		drain.setDaemon(true);
+		drain.start();
+		return new NetworkInterface(pipe, null);
+	}
+
+	// Reads and discards the application's traffic, so its writes never
+	// stall on a full pipe, until the interface closes its end
+	private static void drain(final ReadableByteChannel source) {
+		final ByteBuffer buffer = ByteBuffer.allocate(DRAIN_BUFFER_SIZE);
+		try {
+			do {
+				buffer.clear();
+			} while (source.read(buffer) >= 0);
+		} catch (IOException e) {
+			// The interface closed its end
+		} finally {
+			try {
+				source.close();
+			} catch (IOException e) {
+				Logger.getGlobal().log(Level.SEVERE, e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		final long start = System.nanoTime();
+		long firstRecord = -1;
+		long records = 0;
+		try {
+			while (reader.next()) {
+				if (reader.getKind() != TrafficJournal.INBOUND) {
+					continue;
+				}
+				if (firstRecord < 0) {
+					firstRecord = reader.getTime();
+				}
+
+				if (speed > 0) {
+					final long due = start
+							+ (long) ((reader.getTime() - firstRecord) / speed);
+					final long wait = due - System.nanoTime();
+					if (wait > 0) {
+						Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+					}
+				}
+
+				final ByteBuffer data = ByteBuffer.wrap(reader.getData(), 0,
+						reader.getLength());
+				while (data.hasRemaining()) {
+					out.write(data);
+				}
+				records++;
+			}
+			Logger.getGlobal().log(Level.INFO,
+					"Replayed " + records + " reads");
+		} catch (IOException e) {
+			Logger.getGlobal().log(Level.SEVERE,
+					"Replay failed: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			try {
+				out.close();
+			} catch (IOException e) {
+				Logger.getGlobal().log(Level.SEVERE, e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,116 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds.
+ * <p>
+ * Each power of two is split into four buckets, so a recorded value is off
+ * by at most 25% when read back. Recording is a single atomic increment and
+ * never allocates, so it is safe on the GL and network threads. Any thread
+ * may read the histogram while it is being recorded to.
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT = (63 - SUB_BUCKET_BITS + 1)
+			* SUB_BUCKETS + SUB_BUCKETS;
+
+	// Indices into totals
+	private static final int COUNT = 0;
+	private static final int MAX = 1;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLongArray totals = new AtomicLongArray(2);
+
+	private static int bucketOf(final long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int) Math.max(value, 0);
+		}
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		final int shift = exponent - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS
+				+ (int) ((value >> shift) & (SUB_BUCKETS - 1));
+	}
+
+	private static long upperBoundOf(final int bucket) {
+		if (bucket < 2 * SUB_BUCKETS) {
+			return bucket;
+		}
+		final int shift = bucket / SUB_BUCKETS - 1;
+		final long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	/**
+	 * Records one duration.
+	 * 
+	 * @param nanos
+	 *            the duration in nanoseconds; negative values count as 0
+	 */
+	public void record(final long nanos) {
+		buckets.incrementAndGet(bucketOf(nanos));
+		totals.incrementAndGet(COUNT);
+		long max = totals.get(MAX);
+		while (nanos > max && !totals.compareAndSet(MAX, max, nanos)) {
+			max = totals.get(MAX);
+		}
+	}
+
+	/**
+	 * Returns the number of durations recorded.
+	 */
+	public long getCount() {
+		return totals.get(COUNT);
+	}
+
+	/**
+	 * Returns the longest duration recorded, in nanoseconds.
+	 */
+	public long getMax() {
+		return totals.get(MAX);
+	}
+
+	/**
+	 * Returns the duration that the given fraction of recorded durations do
+	 * not exceed.
+	 * 
+	 * @param fraction
+	 *            the percentile as a fraction, such as 0.99
+	 * @return the duration in nanoseconds, or 0 if nothing was recorded
+	 */
+	public long getPercentile(final double fraction) {
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			total += buckets.get(i);
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		final long target = Math.max(1, (long) Math.ceil(total * fraction));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += buckets.get(i);
+			if (seen >= target) {
+				return Math.min(upperBoundOf(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Clears every recorded duration. Durations recorded while this runs may
+	 * be partly lost.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			buckets.set(i, 0);
+		}
+		totals.set(COUNT, 0);
+		totals.set(MAX, 0);
+	}
+}
@@ -0,0 +1,182 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Follows sensor readings from the model through the application until the
+ * LED frame showing them goes back out, timing every stage on the way.
+ * <p>
+ * One reading is traced at a time. It starts when the simulation takes a
+ * command while no trace is in flight, and each stage is timed from when the
+ * network thread read the command:
+ * <ul>
+ * <li>{@link Stage#DISPATCH}: the simulation took it from the command queue</li>
+ * <li>{@link Stage#APPLY}: the simulation changed its state</li>
+ * <li>{@link Stage#ANIMATE}: the light animation next advanced its state</li>
+ * <li>{@link Stage#QUEUE}: the next LED frame was sent to the models</li>
+ * <li>{@link Stage#WIRE}: a network thread wrote that frame to its socket</li>
+ * </ul>
+ * A reading that has not made it through in {@link #ABANDON_NANOS}, because
+ * the link went down or the frame was thrown away, is given up on when the
+ * next command comes in.
+ * <p>
+ * Every method but {@link #markWritten(long, long)} must be called from the
+ * GL thread, which owns the trace until it hands it to the network threads
+ * by marking the frame sent.
+ */
+public final class LatencyTrace {
+
+	/**
+	 * Points on the way from the model's reading to its LED frame.
+	 */
+	public static enum Stage {
+		DISPATCH, APPLY, ANIMATE, QUEUE, WIRE
+	}
+
+	private static final long ABANDON_NANOS = 2000000000L;
+
+	private static final Stage[] STAGES = Stage.values();
+
+	// Phases of the traced reading, each the stage last reached
+	private static final int IDLE = 0;
+	private static final int DISPATCHED = 1;
+	private static final int APPLIED = 2;
+	private static final int ANIMATED = 3;
+	private static final int QUEUED = 4;
+	// Taken by the network thread that writes the frame
+	private static final int WRITING = 5;
+
+	private final AtomicInteger phase = new AtomicInteger(IDLE);
+	// Read time of the traced command, then the time of each stage; written
+	// by the GL thread before it moves the phase on
+	private long readTime;
+	private final long[] marks = new long[STAGES.length];
+
+	private final LatencyHistogram[] histograms = new LatencyHistogram[STAGES.length];
+	private volatile long abandoned = 0;
+
+	public LatencyTrace() {
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Marks a command taken by the simulation, starting a trace if none is
+	 * in flight.
+	 * 
+	 * @param time
+	 *            the {@link System#nanoTime()} when the command was read
+	 */
+	public void markDispatched(final long time) {
+		final long now = System.nanoTime();
+		final int current = phase.get();
+		if (current != IDLE) {
+			if (current == WRITING || now - readTime < ABANDON_NANOS
+					|| !phase.compareAndSet(current, IDLE)) {
+				return;
+			}
+			abandoned++;
+		}
+		readTime = time;
+		marks[Stage.DISPATCH.ordinal()] = now;
+		phase.set(DISPATCHED);
+	}
+
+	/**
+	 * Marks the simulation done applying the commands it took this tick.
+	 */
+	public void markApplied() {
+		advance(DISPATCHED, Stage.APPLY);
+	}
+
+	/**
+	 * Marks the light animation advanced to show the simulation's state.
+	 */
+	public void markAnimated() {
+		advance(APPLIED, Stage.ANIMATE);
+	}
+
+	/**
+	 * Marks an LED frame about to be sent. Must be called before the frame
+	 * is handed to the endpoints.
+	 */
+	public void markQueued() {
+		advance(ANIMATED, Stage.QUEUE);
+	}
+
+	private void advance(final int from, final Stage stage) {
+		if (phase.get() == from) {
+			marks[stage.ordinal()] = System.nanoTime();
+			phase.set(from + 1);
+		}
+	}
+
+	/**
+	 * Marks an LED frame written by a network thread, completing the trace
+	 * if the frame was sent after the traced reading was animated.
+	 * 
+	 * @param sendTime
+	 *            the {@link System#nanoTime()} when the frame was sent
+	 * @param now
+	 *            the current {@link System#nanoTime()}
+	 */
+	public void markWritten(final long sendTime, final long now) {
+		if (phase.get() != QUEUED
+				|| sendTime - marks[Stage.QUEUE.ordinal()] < 0
+				|| !phase.compareAndSet(QUEUED, WRITING)) {
+			return;
+		}
+		marks[Stage.WIRE.ordinal()] = now;
+		for (int i = 0; i < STAGES.length; i++) {
+			histograms[i].record(marks[i] - readTime);
+		}
+		phase.set(IDLE);
+	}
+
+	/**
+	 * Returns the times from the read of traced commands to the given stage.
+	 */
+	public LatencyHistogram getHistogram(final Stage stage) {
+		return histograms[stage.ordinal()];
+	}
+
+	/**
+	 * Returns the number of readings traced all the way to the wire.
+	 */
+	public long getCompleted() {
+		return histograms[Stage.WIRE.ordinal()].getCount();
+	}
+
+	/**
+	 * Returns the number of readings given up on.
+	 */
+	public long getAbandoned() {
+		return abandoned;
+	}
+
+	/**
+	 * Formats the latency of each stage for the log.
+	 */
+	public String report() {
+		final StringBuilder out = new StringBuilder();
+		out.append("sensor to LED traces ").append(getCompleted())
+				.append(", abandoned ").append(abandoned)
+				.append(", ms from read p50/p99/max:");
+		for (Stage stage : STAGES) {
+			final LatencyHistogram histogram = histograms[stage.ordinal()];
+			out.append(' ').append(stage.name().toLowerCase()).append(' ')
+					.append(toMillis(histogram.getPercentile(0.5)))
+					.append('/')
+					.append(toMillis(histogram.getPercentile(0.99)))
+					.append('/').append(toMillis(histogram.getMax()));
+		}
+		return out.toString();
+	}
+
+	private static double toMillis(final long nanos) {
+		return Math.round(nanos / 1e4) / 100.0;
+	}
+}
@@ -0,0 +1,518 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+/**
+ * Compact encoding for the model's LED strip, used for
+ * {@link PacketTypes#LIGHT_ANIMATION} packets when the link is framed.
+ * <p>
+ * Each LED has one of {@link #STATE_COUNT} states, numbered as in the ASCII
+ * protocol ('0' through '7'), so it fits in {@link #BITS_PER_LED} bits. Two
+ * kinds of LED frame exist, each with a timed variant:
+ * 
+ * <pre>
+ * keyframe:       'K' seq packed[67]
+ * delta:          'D' seq (start count packed[ceil(count * 3 / 8)])*
+ * timed keyframe: 'k' seq time[4] packed[67]
+ * timed delta:    'd' seq time[4] (start count packed[ceil(count * 3 / 8)])*
+ * </pre>
+ * 
+ * A keyframe carries every LED. A delta carries only the ranges of LEDs that
+ * changed since the frame with sequence number <tt>seq - 1</tt>; a decoder
+ * that missed that frame ignores deltas until the next keyframe. Packed
+ * values are stored least significant bit first.
+ * <p>
+ * Timed frames also carry when to show them, as the application clock of
+ * {@link ClockSync}, little endian. The model converts it to its own clock
+ * with the offset the application sends and holds the frame in a
+ * {@link Playout} until then, so network jitter no longer shows in the
+ * animation. Untimed frames are shown as soon as they arrive.
+ */
+public final class LedFrameCodec {
+
+	public static final int LED_COUNT = 177;
+	public static final int STATE_COUNT = 8;
+	public static final int BITS_PER_LED = 3;
+
+	public static final byte KEYFRAME = 'K';
+	public static final byte DELTA = 'D';
+	public static final byte TIMED_KEYFRAME = 'k';
+	public static final byte TIMED_DELTA = 'd';
+
+	private static final int HEADER_LENGTH = 2;
+	private static final int TIMED_HEADER_LENGTH = HEADER_LENGTH + 4;
+	private static final int RUN_HEADER_LENGTH = 2;
+
+	public static final int KEYFRAME_LENGTH = HEADER_LENGTH
+			+ packedLength(LED_COUNT);
+	public static final int TIMED_KEYFRAME_LENGTH = TIMED_HEADER_LENGTH
+			+ packedLength(LED_COUNT);
+	public static final int MAX_FRAME_LENGTH = TIMED_KEYFRAME_LENGTH;
+
+	/**
+	 * Unchanged LEDs between two changed ones that are sent as part of one
+	 * range rather than starting a new range. A range header costs two bytes,
+	 * an unchanged LED three bits.
+	 */
+	private static final int MAX_GAP = 4;
+
+	private LedFrameCodec() {
+	}
+
+	private static int packedLength(final int count) {
+		return (count * BITS_PER_LED + 7) / 8;
+	}
+
+	private static void pack(final byte[] states, final int from,
+			final int count, final byte[] out, final int outOffset) {
+		final int length = packedLength(count);
+		for (int i = 0; i < length; i++) {
+			out[outOffset + i] = 0;
+		}
+		for (int i = 0; i < count; i++) {
+			final int bit = i * BITS_PER_LED;
+			final int value = states[from + i] & (STATE_COUNT - 1);
+			final int index = outOffset + (bit >> 3);
+			final int shift = bit & 7;
+			out[index] |= (byte) (value << shift);
+			if (shift > 8 - BITS_PER_LED) {
+				out[index + 1] |= (byte) (value >> (8 - shift));
+			}
+		}
+	}
+
+	private static void unpack(final byte[] in, final int inOffset,
+			final byte[] states, final int from, final int count) {
+		for (int i = 0; i < count; i++) {
+			final int bit = i * BITS_PER_LED;
+			final int index = inOffset + (bit >> 3);
+			final int shift = bit & 7;
+			int value = (in[index] & 0xFF) >> shift;
+			if (shift > 8 - BITS_PER_LED) {
+				value |= (in[index + 1] & 0xFF) << (8 - shift);
+			}
+			states[from + i] = (byte) (value & (STATE_COUNT - 1));
+		}
+	}
+
+	private static void putTime(final byte[] out, final int offset,
+			final int time) {
+		for (int i = 0; i < 4; i++) {
+			out[offset + i] = (byte) (time >>> (8 * i));
+		}
+	}
+
+	private static int getTime(final byte[] in, final int offset) {
+		int time = 0;
+		for (int i = 0; i < 4; i++) {
+			time |= (in[offset + i] & 0xFF) << (8 * i);
+		}
+		return time;
+	}
+
+	/**
+	 * Application side of the codec. Remembers the last frame sent so it can
+	 * send only what changed.
+	 */
+	public static final class Encoder {
+
+		private final int keyframeInterval;
+		private final byte[] previous = new byte[LED_COUNT];
+		private boolean hasPrevious = false;
+		private int sequence = 0;
+		private int framesSinceKeyframe = 0;
+
+		/**
+		 * @param keyframeInterval
+		 *            the most delta frames sent in a row before a keyframe is
+		 *            forced, which bounds how long a decoder that lost a frame
+		 *            stays dark
+		 */
+		public Encoder(final int keyframeInterval) {
+			this.keyframeInterval = keyframeInterval;
+		}
+
+		/**
+		 * Encodes the current LED states.
+		 * 
+		 * @param states
+		 *            the state of every LED, '0' through '7' or 0 through 7
+		 * @param out
+		 *            the array to write the frame to; needs
+		 *            {@link LedFrameCodec#MAX_FRAME_LENGTH} bytes of room
+		 * @param outOffset
+		 *            the index in <tt>out</tt> to start writing at
+		 * @return the number of bytes written, or 0 if nothing changed since
+		 *         the previous frame and nothing needs to be sent
+		 */
+		public int encode(final byte[] states, final byte[] out,
+				final int outOffset) {
+			return encode(states, false, 0, out, outOffset);
+		}
+
+		/**
+		 * Encodes the current LED states as a timed frame.
+		 * 
+		 * @param states
+		 *            the state of every LED, '0' through '7' or 0 through 7
+		 * @param displayTime
+		 *            the application clock at which the model should show
+		 *            the frame
+		 * @param out
+		 *            the array to write the frame to; needs
+		 *            {@link LedFrameCodec#MAX_FRAME_LENGTH} bytes of room
+		 * @param outOffset
+		 *            the index in <tt>out</tt> to start writing at
+		 * @return the number of bytes written, or 0 if nothing changed since
+		 *         the previous frame and nothing needs to be sent
+		 * @see ClockSync#appClock(long)
+		 */
+		public int encode(final byte[] states, final int displayTime,
+				final byte[] out, final int outOffset) {
+			return encode(states, true, displayTime, out, outOffset);
+		}
+
+		private int encode(final byte[] states, final boolean timed,
+				final int time, final byte[] out, final int outOffset) {
+			if (!hasPrevious || framesSinceKeyframe >= keyframeInterval) {
+				return encodeKeyframe(states, timed, time, out, outOffset);
+			}
+
+			final int header = timed ? TIMED_HEADER_LENGTH : HEADER_LENGTH;
+			final int keyframeLength = timed ? TIMED_KEYFRAME_LENGTH
+					: KEYFRAME_LENGTH;
+			int pos = outOffset + header;
+			int i = 0;
+			while (i < LED_COUNT) {
+				if (((states[i] ^ previous[i]) & (STATE_COUNT - 1)) == 0) {
+					i++;
+					continue;
+				}
+
+				final int start = i;
+				int lastChanged = i;
+				for (int j = i + 1; j < LED_COUNT
+						&& j - lastChanged <= MAX_GAP; j++) {
+					if (((states[j] ^ previous[j]) & (STATE_COUNT - 1)) != 0) {
+						lastChanged = j;
+					}
+				}
+				final int count = lastChanged - start + 1;
+
+				final int runLength = RUN_HEADER_LENGTH + packedLength(count);
+				if (pos - outOffset + runLength >= keyframeLength) {
+					return encodeKeyframe(states, timed, time, out, outOffset);
+				}
+				out[pos] = (byte) start;
+				out[pos + 1] = (byte) count;
+				pack(states, start, count, out, pos + RUN_HEADER_LENGTH);
+				pos += runLength;
+
+				i = lastChanged + 1;
+			}
+
+			if (pos == outOffset + header) {
+				return 0;
+			}
+
+			out[outOffset] = timed ? TIMED_DELTA : DELTA;
+			out[outOffset + 1] = (byte) next();
+			if (timed) {
+				putTime(out, outOffset + HEADER_LENGTH, time);
+			}
+			remember(states);
+			framesSinceKeyframe++;
+			return pos - outOffset;
+		}
+
+		private int encodeKeyframe(final byte[] states, final boolean timed,
+				final int time, final byte[] out, final int outOffset) {
+			final int header = timed ? TIMED_HEADER_LENGTH : HEADER_LENGTH;
+			out[outOffset] = timed ? TIMED_KEYFRAME : KEYFRAME;
+			out[outOffset + 1] = (byte) next();
+			if (timed) {
+				putTime(out, outOffset + HEADER_LENGTH, time);
+			}
+			pack(states, 0, LED_COUNT, out, outOffset + header);
+			remember(states);
+			framesSinceKeyframe = 0;
+			return timed ? TIMED_KEYFRAME_LENGTH : KEYFRAME_LENGTH;
+		}
+
+		private int next() {
+			sequence = (sequence + 1) & 0xFF;
+			return sequence;
+		}
+
+		private void remember(final byte[] states) {
+			for (int i = 0; i < LED_COUNT; i++) {
+				previous[i] = (byte) (states[i] & (STATE_COUNT - 1));
+			}
+			hasPrevious = true;
+		}
+
+		/**
+		 * Forces the next frame to be a keyframe, such as after a reconnect.
+		 */
+		public void reset() {
+			hasPrevious = false;
+		}
+	}
+
+	/**
+	 * Model side of the codec. Rebuilds the LED states from a stream of
+	 * frames.
+	 */
+	public static final class Decoder {
+
+		private final byte[] states = new byte[LED_COUNT];
+		private int sequence = -1;
+		private boolean timed = false;
+		private int displayTime = 0;
+
+		private long keyframes = 0;
+		private long deltas = 0;
+		private long dropped = 0;
+
+		/**
+		 * Applies one LED frame.
+		 * 
+		 * @param in
+		 *            the array holding the frame
+		 * @param offset
+		 *            the index of the first byte of the frame
+		 * @param length
+		 *            the length of the frame
+		 * @return <tt>true</tt> if the frame was applied, <tt>false</tt> if it
+		 *         was malformed or was a delta against a frame this decoder
+		 *         never saw
+		 */
+		public boolean decode(final byte[] in, final int offset,
+				final int length) {
+			final byte kind = length > 0 ? in[offset] : 0;
+			final boolean hasTime = kind == TIMED_KEYFRAME
+					|| kind == TIMED_DELTA;
+			final int header = hasTime ? TIMED_HEADER_LENGTH : HEADER_LENGTH;
+			if (length < header) {
+				dropped++;
+				return false;
+			}
+
+			final int seq = in[offset + 1] & 0xFF;
+			if (kind == KEYFRAME || kind == TIMED_KEYFRAME) {
+				if (length != header + packedLength(LED_COUNT)) {
+					dropped++;
+					return false;
+				}
+				unpack(in, offset + header, states, 0, LED_COUNT);
+				sequence = seq;
+				stamp(in, offset, hasTime);
+				keyframes++;
+				return true;
+			}
+
+			if ((kind != DELTA && kind != TIMED_DELTA) || sequence < 0
+					|| seq != ((sequence + 1) & 0xFF)) {
+				dropped++;
+				return false;
+			}
+
+			final int end = offset + length;
+			int pos = offset + header;
+			while (pos < end) {
+				if (pos + RUN_HEADER_LENGTH > end) {
+					break;
+				}
+				final int start = in[pos] & 0xFF;
+				final int count = in[pos + 1] & 0xFF;
+				if (start + count > LED_COUNT
+						|| pos + RUN_HEADER_LENGTH + packedLength(count) > end) {
+					break;
+				}
+				unpack(in, pos + RUN_HEADER_LENGTH, states, start, count);
+				pos += RUN_HEADER_LENGTH + packedLength(count);
+			}
+			if (pos != end) {
+				// Part of the frame may already be applied; wait for a
+				// keyframe rather than show a half-updated strip
+				sequence = -1;
+				dropped++;
+				return false;
+			}
+
+			sequence = seq;
+			stamp(in, offset, hasTime);
+			deltas++;
+			return true;
+		}
+
+		private void stamp(final byte[] in, final int offset,
+				final boolean hasTime) {
+			timed = hasTime;
+			if (hasTime) {
+				displayTime = getTime(in, offset + HEADER_LENGTH);
+			}
+		}
+
+		/**
+		 * Returns <tt>true</tt> if the last frame applied was timed.
+		 */
+		public boolean isTimed() {
+			return timed;
+		}
+
+		/**
+		 * Returns the application clock at which the last timed frame should
+		 * be shown.
+		 */
+		public int getDisplayTime() {
+			return displayTime;
+		}
+
+		/**
+		 * Returns <tt>true</tt> once a keyframe has been received and the
+		 * states are meaningful.
+		 */
+		public boolean isSynchronized() {
+			return sequence >= 0;
+		}
+
+		/**
+		 * Returns the state of one LED, 0 through 7.
+		 * 
+		 * @param led
+		 *            the LED index, starting from 0
+		 */
+		public int getState(final int led) {
+			return states[led];
+		}
+
+		/**
+		 * Returns the live state array. Do not modify it.
+		 */
+		public byte[] getStates() {
+			return states;
+		}
+
+		public long getKeyframes() {
+			return keyframes;
+		}
+
+		public long getDeltas() {
+			return deltas;
+		}
+
+		public long getDropped() {
+			return dropped;
+		}
+	}
+
+	/**
+	 * Model side buffer that holds decoded frames until they are due.
+	 * <p>
+	 * Frames are {@link #offer(byte[], int)}ed in the order they were
+	 * decoded, with their display time already converted to the model's
+	 * clock; {@link #poll(int, byte[])} hands out the newest frame that is
+	 * due, skipping any older due frames it makes pointless. A full buffer
+	 * drops its oldest frame. Times wrap like the clocks they come from.
+	 * <p>
+	 * Nothing is allocated after construction. A playout buffer is not
+	 * thread safe.
+	 */
+	public static final class Playout {
+
+		private final byte[][] frames;
+		private final int[] times;
+		private int head = 0;
+		private int size = 0;
+
+		private int playedTime = 0;
+		private long played = 0;
+		private long skipped = 0;
+
+		/**
+		 * @param capacity
+		 *            the most frames held at once
+		 */
+		public Playout(final int capacity) {
+			frames = new byte[capacity][LED_COUNT];
+			times = new int[capacity];
+		}
+
+		/**
+		 * Holds a copy of a frame until it is due.
+		 * 
+		 * @param states
+		 *            the decoded LED states
+		 * @param time
+		 *            the model clock at which to show them
+		 */
+		public void offer(final byte[] states, final int time) {
+			if (size == frames.length) {
+				head = (head + 1) % frames.length;
+				size--;
+				skipped++;
+			}
+			final int slot = (head + size) % frames.length;
+			System.arraycopy(states, 0, frames[slot], 0, LED_COUNT);
+			times[slot] = time;
+			size++;
+		}
+
+		/**
+		 * Takes the newest frame that is due.
+		 * 
+		 * @param now
+		 *            the model clock now
+		 * @param into
+		 *            the array to copy the frame's states into
+		 * @return <tt>true</tt> if a frame was due and copied
+		 */
+		public boolean poll(final int now, final byte[] into) {
+			int due = -1;
+			while (size > 0 && now - times[head] >= 0) {
+				if (due >= 0) {
+					skipped++;
+				}
+				due = head;
+				head = (head + 1) % frames.length;
+				size--;
+			}
+			if (due < 0) {
+				return false;
+			}
+			System.arraycopy(frames[due], 0, into, 0, LED_COUNT);
+			playedTime = times[due];
+			played++;
+			return true;
+		}
+
+		/**
+		 * Returns how long until the next frame is due, in milliseconds, or
+		 * -1 if the buffer is empty.
+		 */
+		public int getWait(final int now) {
+			return size == 0 ? -1 : Math.max(0, times[head] - now);
+		}
+
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Returns the time the frame last handed out by
+		 * {@link #poll(int, byte[])} was due.
+		 */
+		public int getPlayedTime() {
+			return playedTime;
+		}
+
+		public long getPlayed() {
+			return played;
+		}
+
+		public long getSkipped() {
+			return skipped;
+		}
+	}
+}
@@ -2,544 +2,425 @@
 
 package org.sdsu.intelligrid.network;
 
-import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.sdsu.intelligrid.Global;
 import org.sdsu.intelligrid.graphics.ui.LightAnimation;
 import org.sdsu.intelligrid.graphics.ui.LightAnimation.LightStates;
+import org.sdsu.intelligrid.simulation.Simulation.SimInfo;
 
 /**
  * Main network handler class for the application.
  */
 public class MainNetworkHandler {
 
-	private NetworkInterface network;
-
-	public static enum PacketTypes {
-
-		SOLAR_GENERATION_LEVEL("S", new SolarGenHandler(), 3, 1), WIND_GENERATION_LEVEL(
-				"W", new WindTurbineHandler(), 2, 3), BATTERY_STORAGE_LEVEL(
-				"B", new BatteryHandler(), 2, 3), TIME_OF_DAY("T",
-				new TimeHandler(), 2, 5), POWER_OUTAGE("P",
-				new OutageHandler(), 3, 3), CAR_DETECT("E",
-				new ElectricCarHandler(), 3, 1), SOLAR_DETECT("R",
-				new SolarPanelHandler(), 3, 1), BALLOON_DETECT_RESET("M",
-				new MylarBalloonHandler(), 2, 5), DIG_DETECT_RESET("D",
-				new DigFaultHandler(), 2, 5), LIGHT_ANIMATION("L",
-				new LEDHandler(), 178, 1);
-
-		private final String prefix;
-		private final PacketHandler handler;
-
-		public final int expectedLength;
-		public final int repeat;
-
-		private PacketTypes(final String prefix, final PacketHandler handler,
-				final int expectedLength, final int repeat) {
-			this.prefix = prefix;
-			this.handler = handler;
-			this.expectedLength = expectedLength;
-			this.repeat = repeat;
-		}
-
-		public String getPrefix() {
-			return new String(prefix);
-		}
-
-		public void input(final String message) {
-			handler.input(message);
-		}
+	/**
+	 * Wire format spoken to the model. Leave on ASCII for model firmware that
+	 * does not understand frames.
+	 */
+	private static final ProtocolMode PROTOCOL_MODE = ProtocolMode.ASCII;
 
-		public String output(final Object param) {
-			return handler.output(param);
-		}
-	}
+	/**
+	 * Whether to send heartbeats, which detect a dead link within a second
+	 * and let the link come up as soon as the model answers. Model firmware
+	 * that speaks the framed protocol also answers heartbeats.
+	 */
+	private static final boolean ENABLE_HEARTBEAT = PROTOCOL_MODE == ProtocolMode.FRAMED;
 
-	private static interface PacketHandler {
+	/**
+	 * Whether LED frames carry the time the model should show them, so it
+	 * can play them back evenly whatever the network jitter. Needs the framed
+	 * protocol; model firmware without a playout buffer shows timed frames
+	 * on arrival.
+	 */
+	private static final boolean ENABLE_LED_SCHEDULING = PROTOCOL_MODE == ProtocolMode.FRAMED;
 
-		public void input(final String message);
+	/**
+	 * Whether control packets are numbered and sent again until the model
+	 * acknowledges them, so an outage or fault reset lost to a corrupt frame
+	 * still arrives. Needs the framed protocol and model firmware that
+	 * acknowledges; see {@link DeliveryWindow}.
+	 */
+	private static final boolean ENABLE_ACKNOWLEDGED_DELIVERY = PROTOCOL_MODE == ProtocolMode.FRAMED;
 
-		public String output(final Object param);
-	}
+	/**
+	 * Whether a model that connects is brought up to date with one state
+	 * snapshot packet rather than a packet per setting. Needs the framed
+	 * protocol and model firmware that knows the snapshot; see
+	 * {@link StateSnapshot}.
+	 */
+	private static final boolean ENABLE_STATE_SNAPSHOT = PROTOCOL_MODE == ProtocolMode.FRAMED;
 
-	private static class BasePacketHandler implements PacketHandler {
+	/**
+	 * How far ahead scheduled LED frames are shown, in milliseconds. Must
+	 * cover the worst delay of the network, or late frames are shown late.
+	 */
+	private static final int LED_PLAYOUT_DELAY_MS = 150;
 
-		@Override
-		public void input(final String message) {
-		}
+	/**
+	 * Seconds between link telemetry reports in the log, or 0 for none.
+	 */
+	private static final float TELEMETRY_LOG_INTERVAL = 60.0f;
 
-		@Override
-		public String output(final Object param) {
-			return null;
-		}
-	}
+	/**
+	 * Whether to time sensor readings through the simulation and light
+	 * animation to the LED frame that shows them, for the telemetry log. See
+	 * {@link LatencyTrace}. A diagnostic; it adds clock reads and atomic
+	 * updates to every frame.
+	 */
+	private static final boolean ENABLE_LATENCY_TRACE = false;
 
-	private static final class SolarGenHandler extends BasePacketHandler {
+	/**
+	 * TCP port on which secondary dashboards can follow the simulation, or 0
+	 * for none. The server listens on every interface and asks for no
+	 * credentials, so only set a port, such as 9800, on a trusted network.
+	 */
+	private static final int DASHBOARD_PORT = 0;
 
-		@Override
-		public void input(final String message) {
-			if (message.length() < 2) {
-				return;
-			}
+	/**
+	 * Updates sent to each dashboard per second.
+	 */
+	private static final float DASHBOARD_RATE = 10.0f;
 
-			char code = message.charAt(1);
-			final double solarLevel;
-			switch (code) {
-			case '0':
-				solarLevel = 0.0;
-				break;
-			case '1':
-				solarLevel = 1.0 / 2.0;
-				break;
-			case '2':
-				solarLevel = 1.0;
-				break;
-			default:
-				return;
-			}
+	private ConnectionManager network;
+	private DashboardServer dashboard;
+	private final double[] dashboardValues = new double[SimInfo.FIELDS.length];
+	private final byte[] dashboardLeds = new byte[LedFrameCodec.LED_COUNT];
+	private float timeSinceDashboard = 0.0f;
 
-			code = message.charAt(0);
-			switch (code) {
-			case '2':
-				Global.getGlobalSimulation().data.lowerSolarLevel
-						.changeOverTime(solarLevel, 2.0, false);
-				break;
-			case '1':
-				Global.getGlobalSimulation().data.middleSolarLevel
-						.changeOverTime(solarLevel, 2.0, false);
-				break;
-			case '0':
-				Global.getGlobalSimulation().data.renewableSolarLevel
-						.changeOverTime(solarLevel, 2.0, false);
-				break;
-			default:
-				return;
-			}
-		}
-	}
+	// Every outgoing packet is built in these on the GL thread, then copied
+	// to the output buffer of each model, so sending allocates nothing
+	private static final byte[] body = new byte[FrameCodec.MAX_PAYLOAD_LENGTH];
+	private static final byte[] packet = new byte[FrameCodec.MAX_FRAME_LENGTH];
 
-	private static final class WindTurbineHandler extends BasePacketHandler {
+	// Force an LED keyframe about every two seconds
+	private static final int KEYFRAME_INTERVAL = 18;
 
-		@Override
-		public void input(final String message) {
-			if (message.length() < 1) {
-				return;
-			}
+	private static final byte[] ledStates = new byte[LedFrameCodec.LED_COUNT];
+	private static final LedFrameCodec.Encoder ledEncoder = new LedFrameCodec.Encoder(
+			KEYFRAME_INTERVAL);
 
-			final char code = message.charAt(0);
-			final double windLevel;
-			switch (code) {
-			case '0':
-				windLevel = 0.0;
-				break;
-			case '1':
-				windLevel = 1.0 / 3.0;
-				break;
-			case '2':
-				windLevel = 2.0 / 3.0;
-				break;
-			case '3':
-				windLevel = 1.0;
-				break;
-			default:
-				return;
-			}
-
-			Global.getGlobalSimulation().data.windGenerationLevel
-					.changeOverTime(windLevel, 1.0, false);
-		}
-
-		// param == integer representing the wind generation level
-		@Override
-		public String output(final Object param) {
-			final int val = (int) param;
-			final String out;
-			switch (val) {
-			case 0:
-				out = "0";
-				break;
-			case 1:
-				out = "1";
-				break;
-			case 2:
-				out = "2";
-				break;
-			case 3:
-				out = "3";
-				break;
-			case 4:
-				out = "4";
-				break;
-			case 5:
-				out = "5";
-				break;
-			default:
-				return null;
-			}
-
-			return out;
+	/**
+	 * Reads the current state of every LED as an ASCII digit.
+	 */
+	private static void readLedStates(final byte[] states) {
+		int i = 0;
+		for (LightStates state : LightAnimation.getStates().values()) {
+			states[i] = (byte) state.signal;
+			i++;
 		}
 	}
 
-	private static final class BatteryHandler extends BasePacketHandler {
-
-		// param == integer representing the battery storage level
-		@Override
-		public String output(final Object param) {
-			final int val = (int) param;
-			final String out;
-			switch (val) {
-			case 0:
-				out = "0";
-				break;
-			case 1:
-				out = "1";
-				break;
-			case 2:
-				out = "2";
-				break;
-			case 3:
-				out = "3";
-				break;
-			default:
-				return null;
-			}
+	private float timeSinceReport = 0.0f;
 
-			return out;
+	/**
+	 * This is the initialization function for the handler.
+	 */
+	public void init() {
+		network = Global.getConnectionManager();
+		network.setProtocol(PROTOCOL_MODE);
+		network.setClockSync(ENABLE_LED_SCHEDULING);
+		network.setAcknowledgedDelivery(ENABLE_ACKNOWLEDGED_DELIVERY);
+		if (ENABLE_LATENCY_TRACE) {
+			network.setLatencyTrace(new LatencyTrace());
 		}
-	}
-
-	private static final class TimeHandler extends BasePacketHandler {
 
-		// param == boolean; true means night, false means day
-		@Override
-		public String output(final Object param) {
-			final boolean night = (boolean) param;
-			final String out = night ? "1" : "0";
+		if (ENABLE_HEARTBEAT) {
+			// The network interface tracks answers itself, since any bytes
+			// from the model show it is alive
+			final byte[] heartbeat = new byte[FrameCodec.MAX_FRAME_LENGTH];
+			body[0] = '0';
+			final int length = frame(PacketTypes.HEARTBEAT, 1, heartbeat);
+			network.setHeartbeat(heartbeat, length);
+		}
 
-			return out;
+		if (DASHBOARD_PORT > 0) {
+			dashboard = new DashboardServer(DASHBOARD_PORT, DASHBOARD_RATE,
+					SimInfo.FIELDS);
+			final Thread thread = new Thread(dashboard, "Dashboard");
+			thread.setDaemon(true);
+			thread.start();
 		}
 	}
 
-	public static final class OutageData {
-
-		int load;
-		boolean on;
-
-		public OutageData(final int load, final boolean on) {
-			this.load = load;
-			this.on = on;
+	/**
+	 * Wraps the first <tt>length</tt> bytes of {@link #body} into a complete
+	 * packet, as it goes on the wire.
+	 * 
+	 * @return the number of bytes written to <tt>out</tt>
+	 */
+	private static int frame(final PacketTypes type, final int length,
+			final byte[] out) {
+		if (PROTOCOL_MODE == ProtocolMode.FRAMED) {
+			return FrameCodec.encode(type, body, 0, length, out, 0);
 		}
+		out[0] = (byte) type.getPrefixChar();
+		System.arraycopy(body, 0, out, 1, length);
+		return length + 1;
 	}
 
-	private static final class OutageHandler extends BasePacketHandler {
-
-		// param == OutageData object
-		@Override
-		public String output(final Object param) {
-			final OutageData data = (OutageData) param;
-			String out = "";
-			if (data.on) {
-				out = out + "1";
-			} else {
-				out = out + "0";
+	/**
+	 * This is the primary step driver for the handler. Call all time-based
+	 * functions from here.
+	 * 
+	 * @param amount
+	 *            the amount of time that has passed since the previous frame,
+	 *            in seconds
+	 */
+	public void advance(final float amount) {
+		// Packets from the model are applied by the simulation as commands
+		if (dashboard != null) {
+			timeSinceDashboard += amount;
+			if (timeSinceDashboard >= 1.0f / DASHBOARD_RATE) {
+				timeSinceDashboard = 0.0f;
+				SimInfo.snapshot(dashboardValues);
+				readLedStates(dashboardLeds);
+				dashboard.publish(dashboardValues, dashboardLeds);
 			}
-
-			switch (data.load) {
-			case 1:
-				out = out + "1";
-				break;
-			case 2:
-				out = out + "2";
-				break;
-			case 3:
-				out = out + "3";
-				break;
-			case 4:
-				out = out + "4";
-				break;
-			case 5:
-				out = out + "5";
-				break;
-			case 6:
-				out = out + "6";
-				break;
-			default:
-				return null;
+		}
+		if (TELEMETRY_LOG_INTERVAL > 0.0f) {
+			timeSinceReport += amount;
+			if (timeSinceReport >= TELEMETRY_LOG_INTERVAL) {
+				timeSinceReport = 0.0f;
+				Logger.getGlobal().log(
+						Level.INFO,
+						"Network telemetry for "
+								+ network.report()
+								+ "\ncollapsed commands "
+								+ Global.getGlobalSimulation()
+										.getCollapsedCommands()
+								+ traceReport() + dashboardReport());
 			}
-
-			return out;
 		}
 	}
 
-	private static final class ElectricCarHandler extends BasePacketHandler {
-
-		@Override
-		public void input(final String message) {
-			if (message.length() < 2) {
-				return;
-			}
-
-			char code = message.charAt(1);
-			final double state;
-			switch (code) {
-			case '0':
-				state = 0.0;
-				break;
-			case '1':
-				state = 1.0;
-				break;
-			default:
-				return;
-			}
+	private String traceReport() {
+		final LatencyTrace trace = network.getLatencyTrace();
+		return trace == null ? "" : "\n" + trace.report();
+	}
 
-			code = message.charAt(0);
-			switch (code) {
-			case '0':
-				Global.getGlobalSimulation().data.electricVehicleL1
-						.changeOverTime(state, 1.0, false);
-				break;
-			case '1':
-				Global.getGlobalSimulation().data.electricVehicleL2
-						.changeOverTime(state, 1.0, false);
-				break;
-			case '2':
-				Global.getGlobalSimulation().data.electricVehicleL3
-						.changeOverTime(state, 1.0, false);
-				break;
-			default:
-				return;
-			}
+	private String dashboardReport() {
+		if (dashboard == null) {
+			return "";
 		}
+		return "\ndashboards " + dashboard.getClientCount()
+				+ ", skipped updates " + dashboard.getSkippedUpdates()
+				+ ", bytes sent " + dashboard.getSentBytes();
 	}
 
-	private static final class SolarPanelHandler extends BasePacketHandler {
-
-		@Override
-		public void input(final String message) {
-			if (message.length() < 2) {
-				return;
+	/**
+	 * Decodes the inbound traffic of a journal and applies the resulting
+	 * commands straight to the simulation, as fast as it takes them, for
+	 * measuring decoding throughput against real traffic. Must be called
+	 * from the GL thread.
+	 * 
+	 * @param reader
+	 *            the journal to replay, from its current record on
+	 * @return the number of commands applied
+	 */
+	public long replay(final TrafficJournal.Reader reader) {
+		final PacketDecoder decoder = PROTOCOL_MODE.newDecoder();
+		final long[] applied = { 0 };
+		final PacketDecoder.Listener dispatcher = new PacketDecoder.Listener() {
+
+			@Override
+			public void onPacket(final PacketTypes type, final byte[] payload,
+					final int length) {
+				final ModelCommand command = ModelCommand.decode(type,
+						payload, length);
+				if (command != null) {
+					Global.getGlobalSimulation().apply(command);
+					applied[0]++;
+				}
 			}
+		};
 
-			char code = message.charAt(1);
-			final double state;
-			switch (code) {
-			case '0':
-				state = 0.0;
+		while (reader.next()) {
+			switch (reader.getKind()) {
+			case TrafficJournal.CONNECTED:
+				decoder.reset();
 				break;
-			case '1':
-				state = 1.0;
+			case TrafficJournal.INBOUND:
+				decoder.feed(reader.getData(), 0, reader.getLength(),
+						dispatcher);
 				break;
 			default:
-				return;
-			}
-
-			code = message.charAt(0);
-			switch (code) {
-			case '0':
-				Global.getGlobalSimulation().data.solarPanelM1.changeOverTime(
-						state, 1.0, false);
-				break;
-			case '1':
-				Global.getGlobalSimulation().data.solarPanelM2.changeOverTime(
-						state, 1.0, false);
-				break;
-			case '2':
-				Global.getGlobalSimulation().data.solarPanelL1.changeOverTime(
-						state, 1.0, false);
 				break;
-			case '3':
-				Global.getGlobalSimulation().data.solarPanelL2.changeOverTime(
-						state, 1.0, false);
-				break;
-			case '4':
-				Global.getGlobalSimulation().data.solarPanelL3.changeOverTime(
-						state, 1.0, false);
-				break;
-			default:
-				return;
 			}
 		}
+		return applied[0];
 	}
 
-	private static final class MylarBalloonHandler extends BasePacketHandler {
-
-		@Override
-		public void input(final String message) {
-			final char code = message.charAt(0);
-			switch (code) {
-			case '1':
-				if (!Global.getGlobalSimulation().faultManager
-						.isBalloonFaultOngoing()) {
-					Global.getGlobalSimulation().faultManager
-							.startBalloonFault();
-				}
-				break;
-			default:
-				return;
-			}
+	/**
+	 * Sends the first <tt>length</tt> bytes of {@link #body} to every ready
+	 * model.
+	 * 
+	 * @param key
+	 *            the load number for {@link PacketTypes#POWER_OUTAGE}
+	 *            packets; ignored for other types
+	 */
+	private static void send(final PacketTypes type, final int key,
+			final int length) {
+		final ConnectionManager connections = Global.getConnectionManager();
+		if (!connections.isConnected()) {
+			return;
 		}
+		final int packetLength = frame(type, length, packet);
+		// Frames are checked, and acknowledged if need be, so only the ASCII
+		// protocol needs repeats
+		final int repeat = PROTOCOL_MODE == ProtocolMode.FRAMED ? 1
+				: type.repeat;
+		// Encoded once, then copied to every model
+		connections.sendMessage(type, key, packet, packetLength, repeat);
+	}
+
+	private static byte digit(final int value) {
+		return (byte) ('0' + value);
+	}
 
-		// param == boolean; true means start fault, false means end fault
-		@Override
-		public String output(final Object param) {
-			final boolean start = (boolean) param;
-			final String out = start ? "1" : "0";
+	private static byte flag(final boolean value) {
+		return (byte) (value ? '1' : '0');
+	}
 
-			return out;
+	/**
+	 * Sends the wind generation level.
+	 * 
+	 * @param level
+	 *            the level, from 0 to 5; anything else is not sent
+	 */
+	public static void sendWindGenerationLevel(final int level) {
+		if (level < 0 || level > 5) {
+			return;
 		}
+		body[0] = digit(level);
+		send(PacketTypes.WIND_GENERATION_LEVEL, 0, 1);
 	}
 
-	private static final class DigFaultHandler extends BasePacketHandler {
-
-		@Override
-		public void input(final String message) {
-			final char code = message.charAt(0);
-			switch (code) {
-			case '1':
-				if (!Global.getGlobalSimulation().faultManager
-						.isDigFaultOngoing()) {
-					Global.getGlobalSimulation().faultManager.startDigFault();
-				}
-				break;
-			default:
-				return;
-			}
+	/**
+	 * Sends the battery storage level.
+	 * 
+	 * @param level
+	 *            the level, from 0 to 3; anything else is not sent
+	 */
+	public static void sendBatteryStorageLevel(final int level) {
+		if (level < 0 || level > 3) {
+			return;
 		}
+		body[0] = digit(level);
+		send(PacketTypes.BATTERY_STORAGE_LEVEL, 0, 1);
+	}
 
-		// param == boolean; true means start fault, false means end fault
-		@Override
-		public String output(final Object param) {
-			final boolean start = (boolean) param;
-			final String out = start ? "1" : "0";
+	/**
+	 * Sends the time of day.
+	 * 
+	 * @param night
+	 *            <tt>true</tt> for night, <tt>false</tt> for day
+	 */
+	public static void sendTimeOfDay(final boolean night) {
+		body[0] = flag(night);
+		send(PacketTypes.TIME_OF_DAY, 0, 1);
+	}
 
-			return out;
+	/**
+	 * Sends whether a load has power.
+	 * 
+	 * @param load
+	 *            the load, from 1 to 6; anything else is not sent
+	 * @param on
+	 *            <tt>true</tt> if the load has power
+	 */
+	public static void sendPowerOutage(final int load, final boolean on) {
+		if (load < 1 || load > 6) {
+			return;
 		}
+		body[0] = flag(on);
+		body[1] = digit(load);
+		send(PacketTypes.POWER_OUTAGE, load, 2);
 	}
 
-	private static final class LEDHandler extends BasePacketHandler {
-
-		// param == null
-		@Override
-		public String output(final Object param) {
-			final char[] out = new char[177];
-			int i = 0;
-			Iterator<LightStates> iter = LightAnimation.getStates().values()
-					.iterator();
-			while (iter.hasNext()) {
-				out[i] = iter.next().signal;
-				i++;
+	/**
+	 * Sends the whole state shown by the model, for a model that has just
+	 * connected, as found by {@link ConnectionManager#checkNewConnections()}.
+	 * Without snapshots, the time of day, loads and levels are sent one
+	 * packet each and the faults are left out.
+	 * <p>
+	 * The next LED frame is a keyframe, since the new model has not seen the
+	 * frames later deltas would build on.
+	 */
+	public static void sendState(final StateSnapshot state) {
+		ledEncoder.reset();
+		if (!ENABLE_STATE_SNAPSHOT) {
+			sendTimeOfDay(state.night);
+			for (int load = 1; load <= StateSnapshot.LOADS; load++) {
+				sendPowerOutage(load, state.isLoadOn(load));
 			}
-			return String.valueOf(out);
+			sendBatteryStorageLevel(state.battery);
+			sendWindGenerationLevel(state.wind);
+			return;
 		}
+		send(PacketTypes.STATE_SNAPSHOT, 0, state.encode(body, 0));
 	}
 
 	/**
-	 * This is the initialization function for the handler.
+	 * Sends the start or end of a balloon fault.
 	 */
-	public void init() {
-		network = Global.getNetworkInterface();
+	public static void sendBalloonFault(final boolean start) {
+		body[0] = flag(start);
+		send(PacketTypes.BALLOON_DETECT_RESET, 0, 1);
 	}
 
-	private String partialMessage = "";
-
 	/**
-	 * This is the primary step driver for the handler. Call all time-based
-	 * functions from here.
-	 * 
-	 * @param amount
-	 *            the amount of time that has passed since the previous frame,
-	 *            in seconds
+	 * Sends the start or end of a dig fault.
 	 */
-	public void advance(final float amount) {
-		// Retrieve packets
-		while (true) {
-			final IntelliGridPacket packet = network.retrieveMessage();
-			if (packet == null) {
-				break;
-			}
-
-			String packetMessage = partialMessage + packet.message;
-			// Logger.getGlobal().log(Level.INFO,
-			// "Parsing packet: " + packetMessage);
-			partialMessage = "";
-			if (packetMessage.length() > 60000 || packetMessage.isEmpty()) {
-				return; // NOPE.
-			}
-
-			while (true) {
-				String message = null;
-				PacketTypes type = null;
-				for (PacketTypes prefix : PacketTypes.values()) {
-					if (packetMessage.startsWith(prefix.getPrefix())) {
-						if (packetMessage.length() < prefix.expectedLength) {
-							partialMessage = packetMessage;
-							// Logger.getGlobal().log(
-							// Level.INFO,
-							// "Message broken between lines (done parsing): "
-							// + partialMessage);
-							break;
-						} else {
-							message = new String(packetMessage.substring(prefix
-									.getPrefix().length(),
-									prefix.expectedLength));
-							// Logger.getGlobal().log(Level.INFO,
-							// "Parsing message: " + message);
-						}
-						type = prefix;
-						if (packetMessage.length() <= prefix.expectedLength) {
-							packetMessage = null;
-						} else {
-							packetMessage = packetMessage
-									.substring(prefix.expectedLength);
-						}
-						break;
-					}
-				}
-				if (message == null
-						&& (partialMessage == null || partialMessage.isEmpty())) {
-					if (packetMessage != null && packetMessage.length() > 1) {
-						partialMessage = new String(packetMessage.substring(1));
-					}
-					break;
-				}
+	public static void sendDigFault(final boolean start) {
+		body[0] = flag(start);
+		send(PacketTypes.DIG_DETECT_RESET, 0, 1);
+	}
 
-				if (type == null || message == null) {
-					break;
-				}
+	/**
+	 * Sends the current state of the LEDs. On the framed protocol, only the
+	 * LEDs that changed since the last frame are sent, but for a keyframe
+	 * after every new connection and every {@link #KEYFRAME_INTERVAL}
+	 * frames.
+	 */
+	public static void sendLightAnimation() {
+		final ConnectionManager connections = Global.getConnectionManager();
+		if (!connections.isConnected()) {
+			return;
+		}
+		if (PROTOCOL_MODE != ProtocolMode.FRAMED) {
+			readLedStates(body);
+			markQueued(connections);
+			send(PacketTypes.LIGHT_ANIMATION, 0, LedFrameCodec.LED_COUNT);
+			return;
+		}
 
-				// Logger.getGlobal().log(
-				// Level.INFO,
-				// "Running input type " + type.name() + ": " + "\""
-				// + message + "\"");
-				type.input(message);
+		// A delta replacing an unsent delta would leave the model with a
+		// gap, so hold off until the previous frame is on the wire
+		if (connections.isPending(PacketTypes.LIGHT_ANIMATION)) {
+			return;
+		}
 
-				if (packetMessage == null || packetMessage.isEmpty()) {
-					// Logger.getGlobal().log(Level.INFO, "Done parsing");
-					break;
-				}
-				// Logger.getGlobal().log(Level.INFO,
-				// "Remaining packet: " + packetMessage);
-			}
+		readLedStates(ledStates);
+		final int length;
+		if (ENABLE_LED_SCHEDULING) {
+			final int displayTime = ClockSync.appClock(System.nanoTime())
+					+ LED_PLAYOUT_DELAY_MS;
+			length = ledEncoder.encode(ledStates, displayTime, body, 0);
+		} else {
+			length = ledEncoder.encode(ledStates, body, 0);
+		}
+		if (length > 0) {
+			markQueued(connections);
+			send(PacketTypes.LIGHT_ANIMATION, 0, length);
 		}
 	}
 
-	/**
-	 * Constructs a packet for the network to send to the model.
-	 * 
-	 * @param type
-	 *            the type of packet to be sending
-	 * @param param
-	 *            custom parameters for the packet; define individual packet
-	 *            code accordingly
-	 */
-	public static void constructAndSendPacket(final PacketTypes type,
-			final Object param) {
-		final String out = type.output(param);
-		if (out != null && !out.isEmpty()
-				&& Global.getNetworkInterface().isConnected()) {
-			Global.getNetworkInterface().sendMessage(type.getPrefix() + out,
-					type.repeat);
+	private static void markQueued(final ConnectionManager connections) {
+		final LatencyTrace trace = connections.getLatencyTrace();
+		if (trace != null) {
+			trace.markQueued();
 		}
 	}
 }
@@ -0,0 +1,288 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Single producer, single consumer queue of byte records in a memory mapped
+ * file, so two processes can hand each other data without a system call.
+ * <p>
+ * The file holds a header and then the records, each a length and the bytes
+ * padded to a multiple of 4. A record that would run past the end of the
+ * file is written at the start instead, after a padding marker. Positions
+ * are 32 bit counters that wrap, written by one side each: the producer
+ * publishes the tail once a record is complete, the consumer publishes the
+ * head once it is done with one. Neither side ever waits for the other; a
+ * producer that finds the ring full drops the record and counts it, and a
+ * consumer that finds it empty comes back later.
+ * <p>
+ * Ordering between the processes is best effort. Java 7 has no ordered
+ * accesses to memory outside the heap, and the Java memory model promises
+ * nothing about how another process sees plain writes to a mapped buffer. A
+ * volatile write before publishing a position and a volatile read after
+ * reading one keep the compiler from moving buffer accesses across them,
+ * and HotSpot and ART emit barrier instructions for them, but on weakly
+ * ordered hardware such as ARM the other side may still see a new position
+ * before the record it covers. Positions are 32 bits so that every store is
+ * at least a single one even on 32 bit ARM.
+ * <p>
+ * So nothing relies on the ring alone: a record whose length makes no sense
+ * is not trusted, and the consumer skips everything waiting and counts it
+ * (see {@link #getCorruptCount()}), and the users of the ring check the
+ * kind and length of every record and the liveness of the other side. What
+ * is left is a record now and then that holds stale bytes but looks valid.
+ * <p>
+ * The header also holds {@link #STATUS_WORDS} status words, written by the
+ * producer only, for state that is read as a whole rather than queued.
+ * <p>
+ * An instance must only ever be used as the producer or as the consumer,
+ * each from one thread; {@link #isEmpty()} and {@link #getStatus(int)} may
+ * be called from either side.
+ */
+public final class MappedRing {
+
+	public static final int STATUS_WORDS = 16;
+
+	private static final int MAGIC = 0x49475231;
+
+	// Header fields, the positions on cache lines of their own
+	private static final int MAGIC_AT = 0;
+	private static final int CAPACITY_AT = 4;
+	private static final int TAIL_AT = 64;
+	private static final int HEAD_AT = 128;
+	private static final int STATUS_AT = 192;
+	private static final int DATA_AT = 256;
+
+	private static final int LENGTH_SIZE = 4;
+	private static final int PADDING = -1;
+
+	private final MappedByteBuffer buffer;
+	// Views for bulk copies, since Java 7 has no absolute bulk get or put
+	private final ByteBuffer writer;
+	private final ByteBuffer reader;
+	private final int capacity;
+	private final int mask;
+
+	private volatile int fence;
+
+	// Bytes taken by the record returned by the last peek, or 0
+	private int peeked = 0;
+	private long overflows = 0;
+	private long corrupt = 0;
+
+	private MappedRing(final MappedByteBuffer buffer, final int capacity) {
+		this.buffer = buffer;
+		writer = buffer.duplicate();
+		reader = buffer.duplicate();
+		this.capacity = capacity;
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Maps a ring file, creating it if it does not exist or does not have
+	 * the given capacity. Records left in an existing file are kept. Both
+	 * sides must agree on the capacity; whichever opens the file first
+	 * creates it.
+	 * 
+	 * @param capacity
+	 *            the number of bytes of records the file holds; must be a
+	 *            power of two
+	 */
+	public static MappedRing open(final File file, final int capacity)
+			throws IOException {
+		if (capacity < 64 || (capacity & (capacity - 1)) != 0) {
+			throw new IllegalArgumentException(
+					"Capacity must be a power of two: " + capacity);
+		}
+		final MappedByteBuffer buffer;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			final long size = DATA_AT + capacity;
+			final boolean fresh = raf.length() != size;
+			if (fresh) {
+				raf.setLength(size);
+			}
+			// The mapping stays valid once the file is closed
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					size);
+			buffer.order(ByteOrder.nativeOrder());
+			if (fresh || buffer.getInt(MAGIC_AT) != MAGIC
+					|| buffer.getInt(CAPACITY_AT) != capacity) {
+				for (int i = 0; i < DATA_AT; i += 4) {
+					buffer.putInt(i, 0);
+				}
+				buffer.putInt(CAPACITY_AT, capacity);
+				buffer.putInt(MAGIC_AT, MAGIC);
+			}
+		}
+		return new MappedRing(buffer, capacity);
+	}
+
+	/**
+	 * Returns the length of the longest record the ring takes.
+	 */
+	public int getMaxRecordLength() {
+		return capacity / 2 - LENGTH_SIZE;
+	}
+
+	/**
+	 * Appends a record. Producer only.
+	 * 
+	 * @return <tt>false</tt> if the ring was full and the record dropped
+	 */
+	public boolean offer(final byte[] data, final int offset, final int length) {
+		if (length > getMaxRecordLength()) {
+			throw new IllegalArgumentException("Record too long: " + length);
+		}
+		int tail = buffer.getInt(TAIL_AT);
+		final int head = buffer.getInt(HEAD_AT);
+		loadFence();
+		final int size = align(LENGTH_SIZE + length);
+		int at = tail & mask;
+		final int contiguous = capacity - at;
+		final int needed = size <= contiguous ? size : contiguous + size;
+		if (capacity - (tail - head) < needed) {
+			overflows++;
+			return false;
+		}
+		if (size > contiguous) {
+			buffer.putInt(DATA_AT + at, PADDING);
+			tail += contiguous;
+			at = 0;
+		}
+		buffer.putInt(DATA_AT + at, length);
+		writer.position(DATA_AT + at + LENGTH_SIZE);
+		writer.put(data, offset, length);
+		storeFence();
+		buffer.putInt(TAIL_AT, tail + size);
+		return true;
+	}
+
+	/**
+	 * Copies the oldest record without removing it. Call {@link #release()}
+	 * once done with it. Consumer only.
+	 * 
+	 * @param out
+	 *            where to copy the record; must hold the longest record the
+	 *            producer writes
+	 * @return the length of the record, or -1 if the ring is empty or the
+	 *         records waiting were skipped as corrupt
+	 */
+	public int peek(final byte[] out) {
+		int head = buffer.getInt(HEAD_AT);
+		final int tail = buffer.getInt(TAIL_AT);
+		loadFence();
+		if (head == tail) {
+			return -1;
+		}
+		int at = head & mask;
+		int length = buffer.getInt(DATA_AT + at);
+		if (length == PADDING) {
+			head += capacity - at;
+			buffer.putInt(HEAD_AT, head);
+			if (head == tail) {
+				return -1;
+			}
+			at = 0;
+			length = buffer.getInt(DATA_AT);
+		}
+		if (length < 0 || length > getMaxRecordLength()
+				|| length > out.length
+				|| at + LENGTH_SIZE + length > capacity) {
+			// Torn or seen out of order; nothing after it can be trusted
+			// either
+			corrupt++;
+			buffer.putInt(HEAD_AT, tail);
+			return -1;
+		}
+		reader.position(DATA_AT + at + LENGTH_SIZE);
+		reader.get(out, 0, length);
+		peeked = align(LENGTH_SIZE + length);
+		return length;
+	}
+
+	/**
+	 * Removes the record returned by the last {@link #peek(byte[])}.
+	 * Consumer only.
+	 */
+	public void release() {
+		if (peeked == 0) {
+			return;
+		}
+		final int head = buffer.getInt(HEAD_AT);
+		storeFence();
+		buffer.putInt(HEAD_AT, head + peeked);
+		peeked = 0;
+	}
+
+	/**
+	 * Throws away every record waiting, such as those left over from before
+	 * a restart. Consumer only.
+	 */
+	public void discard() {
+		storeFence();
+		buffer.putInt(HEAD_AT, buffer.getInt(TAIL_AT));
+		peeked = 0;
+	}
+
+	/**
+	 * Returns <tt>true</tt> if every record written has been released. The
+	 * value may be stale.
+	 */
+	public boolean isEmpty() {
+		return buffer.getInt(HEAD_AT) == buffer.getInt(TAIL_AT);
+	}
+
+	/**
+	 * Returns a status word, 0 until the producer first sets it.
+	 */
+	public int getStatus(final int word) {
+		return buffer.getInt(STATUS_AT + word * 4);
+	}
+
+	/**
+	 * Sets a status word. Producer only.
+	 */
+	public void setStatus(final int word, final int value) {
+		buffer.putInt(STATUS_AT + word * 4, value);
+	}
+
+	/**
+	 * Returns the number of records dropped because the ring was full.
+	 * Producer only.
+	 */
+	public long getOverflowCount() {
+		return overflows;
+	}
+
+	/**
+	 * Returns the number of times the records waiting were skipped because
+	 * one was corrupt. Consumer only.
+	 */
+	public long getCorruptCount() {
+		return corrupt;
+	}
+
+	// Keeps buffer writes before this ahead of writes after it, as far as
+	// the runtime can; see the class documentation
+	private void storeFence() {
+		fence = 0;
+	}
+
+	// Keeps buffer reads after this behind reads before it, as far as the
+	// runtime can
+	private void loadFence() {
+		@SuppressWarnings("unused")
+		final int ignored = fence;
+	}
+
+	private static int align(final int length) {
+		return (length + 3) & ~3;
+	}
+}
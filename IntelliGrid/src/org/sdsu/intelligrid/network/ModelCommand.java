@@ -0,0 +1,165 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One decoded input from the model, such as "set solar panel M2 to on" or
+ * "start dig fault".
+ * <p>
+ * Commands are immutable and every possible one is created up front, so
+ * decoding on the network thread allocates nothing and the same instance
+ * may sit in a queue any number of times. The simulation applies them; see
+ * {@link CommandQueue}.
+ */
+public final class ModelCommand {
+
+	public static enum Kind {
+		/**
+		 * Target 0 is the renewable solar bank, 1 the middle and 2 the lower
+		 * one; value is the generation level from 0 to 1.
+		 */
+		SOLAR_LEVEL(PacketTypes.SOLAR_GENERATION_LEVEL),
+		/**
+		 * Value is the wind generation level from 0 to 1.
+		 */
+		WIND_LEVEL(PacketTypes.WIND_GENERATION_LEVEL),
+		/**
+		 * Target 0 to 2 is charger L1 to L3; value is 1 with a car present,
+		 * 0 without.
+		 */
+		ELECTRIC_VEHICLE(PacketTypes.CAR_DETECT),
+		/**
+		 * Target 0 to 4 is panel M1, M2, L1, L2 or L3; value is 1 for
+		 * covered, 0 for uncovered.
+		 */
+		SOLAR_PANEL(PacketTypes.SOLAR_DETECT),
+		BALLOON_FAULT(PacketTypes.BALLOON_DETECT_RESET),
+		DIG_FAULT(PacketTypes.DIG_DETECT_RESET);
+
+		public final PacketTypes packetType;
+
+		private Kind(final PacketTypes packetType) {
+			this.packetType = packetType;
+		}
+	}
+
+	/**
+	 * Upper bound on {@link #target} for every kind of command.
+	 */
+	public static final int MAX_TARGETS = 5;
+
+	// Every command, indexed by id; filled in as the tables below are built
+	private static final List<ModelCommand> all = new ArrayList<>();
+
+	public final Kind kind;
+	public final int target;
+	public final double value;
+	/**
+	 * Small number naming the command, the same in every process running
+	 * this code, for passing commands between processes.
+	 */
+	public final int id;
+
+	private ModelCommand(final Kind kind, final int target,
+			final double value) {
+		this.kind = kind;
+		this.target = target;
+		this.value = value;
+		id = all.size();
+		all.add(this);
+	}
+
+	private static final double[] SOLAR_LEVELS = { 0.0, 1.0 / 2.0, 1.0 };
+	private static final double[] WIND_LEVELS = { 0.0, 1.0 / 3.0, 2.0 / 3.0,
+			1.0 };
+	private static final double[] SWITCH_STATES = { 0.0, 1.0 };
+
+	// Indexed by target, then by the level digit sent by the model
+	private static final ModelCommand[][] solarLevel = table(Kind.SOLAR_LEVEL,
+			3, SOLAR_LEVELS);
+	private static final ModelCommand[][] windLevel = table(Kind.WIND_LEVEL,
+			1, WIND_LEVELS);
+	private static final ModelCommand[][] electricVehicle = table(
+			Kind.ELECTRIC_VEHICLE, 3, SWITCH_STATES);
+	private static final ModelCommand[][] solarPanel = table(
+			Kind.SOLAR_PANEL, 5, SWITCH_STATES);
+	private static final ModelCommand balloonFault = new ModelCommand(
+			Kind.BALLOON_FAULT, 0, 1.0);
+	private static final ModelCommand digFault = new ModelCommand(
+			Kind.DIG_FAULT, 0, 1.0);
+
+	private static ModelCommand[][] table(final Kind kind, final int targets,
+			final double[] values) {
+		final ModelCommand[][] table = new ModelCommand[targets][values.length];
+		for (int target = 0; target < targets; target++) {
+			for (int i = 0; i < values.length; i++) {
+				table[target][i] = new ModelCommand(kind, target, values[i]);
+			}
+		}
+		return table;
+	}
+
+	private static ModelCommand lookup(final ModelCommand[][] table,
+			final byte target, final byte value) {
+		final int t = target - '0';
+		final int v = value - '0';
+		if (t < 0 || t >= table.length || v < 0 || v >= table[t].length) {
+			return null;
+		}
+		return table[t][v];
+	}
+
+	/**
+	 * Turns the body of a packet from the model into a command.
+	 * 
+	 * @param type
+	 *            the type of the packet
+	 * @param payload
+	 *            the packet body, without the prefix
+	 * @param length
+	 *            the number of valid bytes in <tt>payload</tt>
+	 * @return the command, or <tt>null</tt> if the packet asks for nothing
+	 *         or is malformed
+	 */
+	public static ModelCommand decode(final PacketTypes type,
+			final byte[] payload, final int length) {
+		if (length < 1) {
+			return null;
+		}
+		switch (type) {
+		case SOLAR_GENERATION_LEVEL:
+			return length < 2 ? null : lookup(solarLevel, payload[0],
+					payload[1]);
+		case WIND_GENERATION_LEVEL:
+			return lookup(windLevel, (byte) '0', payload[0]);
+		case CAR_DETECT:
+			return length < 2 ? null : lookup(electricVehicle, payload[0],
+					payload[1]);
+		case SOLAR_DETECT:
+			return length < 2 ? null : lookup(solarPanel, payload[0],
+					payload[1]);
+		case BALLOON_DETECT_RESET:
+			return payload[0] == '1' ? balloonFault : null;
+		case DIG_DETECT_RESET:
+			return payload[0] == '1' ? digFault : null;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the command with the given {@link #id}, or <tt>null</tt> if
+	 * there is none.
+	 */
+	public static ModelCommand byId(final int id) {
+		return id >= 0 && id < all.size() ? all.get(id) : null;
+	}
+
+	@Override
+	public String toString() {
+		return kind + " " + target + " = " + value;
+	}
+}
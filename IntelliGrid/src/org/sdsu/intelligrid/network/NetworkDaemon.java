@@ -0,0 +1,295 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the link to a model in a process of its own, so neither a stalled
+ * network thread nor a garbage collection in the application holds up the
+ * other.
+ * <p>
+ * The daemon owns a {@link NetworkInterface} and talks to the application's
+ * {@link DaemonEndpoint} through two {@link MappedRing}s in a shared
+ * directory. The outbound ring carries the application's packets and
+ * settings, each record a kind byte and then:
+ * 
+ * <pre>
+ * packet:       type[1] key[1] repeat[1] data...
+ * protocol:     mode[1]             (255 for none)
+ * heartbeat:    data...
+ * clock sync:   enabled[1]
+ * acknowledged: enabled[1]
+ * </pre>
+ * 
+ * The inbound ring carries the model's commands, little endian:
+ * 
+ * <pre>
+ * command: id[2] time[8]
+ * </pre>
+ * 
+ * where <tt>id</tt> is the {@link ModelCommand#id} and <tt>time</tt> the
+ * {@link System#nanoTime()} when it was read, which on Linux and Android is
+ * the system monotonic clock and so comparable across processes. The status
+ * words of the inbound ring hold the state of the link; see the
+ * <tt>STATUS_</tt> constants.
+ * <p>
+ * The pump thread never blocks on the application: it moves whatever is
+ * waiting in either direction, then spins, yields and finally parks while
+ * both rings stay empty, for {@link #MIN_PARK_NANOS} at first and twice as
+ * long each time up to {@link #MAX_PARK_NANOS}, so an idle daemon hardly
+ * ever wakes. The park time starts over as soon as either ring has data.
+ * 
+ * <pre>
+ * java org.sdsu.intelligrid.network.NetworkDaemon DIRECTORY [HOST PORT]
+ * </pre>
+ */
+public final class NetworkDaemon implements Runnable {
+
+	static final String OUTBOUND_FILE = "outbound.ring";
+	static final String INBOUND_FILE = "inbound.ring";
+	static final int RING_CAPACITY = 1 << 16;
+	static final int MAX_RECORD_LENGTH = 4 + FrameCodec.MAX_FRAME_LENGTH;
+
+	// Record kinds
+	static final byte PACKET = 'P';
+	static final byte PROTOCOL = 'R';
+	static final byte HEARTBEAT = 'H';
+	static final byte CLOCK_SYNC = 'C';
+	static final byte ACKNOWLEDGED = 'A';
+	static final byte COMMAND = 'M';
+	static final int COMMAND_LENGTH = 11;
+	static final int NO_PROTOCOL = 255;
+
+	/**
+	 * Status words of the inbound ring. INSTANCE is a random number picked
+	 * by every daemon that starts, and ALIVE the daemon's clock in
+	 * milliseconds, updated every pass. CONNECTIONS is the instance plus the
+	 * connection count, so it changes when the daemon restarts too. PENDING
+	 * has bit n set while a packet of the type with ordinal n is unsent.
+	 * ANALOG plus the channel holds the newest filtered analog reading as
+	 * float bits with the sign bit set, so 0 means none yet; readings are
+	 * never negative.
+	 */
+	static final int STATUS_INSTANCE = 0;
+	static final int STATUS_ALIVE = 1;
+	static final int STATUS_CONNECTED = 2;
+	static final int STATUS_CONNECTIONS = 3;
+	static final int STATUS_PENDING = 4;
+	static final int STATUS_DROPPED_SENDS = 5;
+	static final int STATUS_INPUT_OVERFLOWS = 6;
+	static final int STATUS_ANALOG = 7;
+	static final int ANALOG_SIGN = 0x80000000;
+
+	private static final int SPIN_PASSES = 100;
+	private static final int YIELD_PASSES = 100;
+	private static final long MIN_PARK_NANOS = 500000L;
+	private static final long MAX_PARK_NANOS = 32000000L;
+	private static final int REPORT_INTERVAL_MS = 60000;
+
+	// Cached, since values() copies the array
+	private static final PacketTypes[] TYPES = PacketTypes.values();
+	private static final ProtocolMode[] MODES = ProtocolMode.values();
+
+	private final NetworkInterface network;
+	private final MappedRing outbound;
+	private final MappedRing inbound;
+	private final int instance;
+
+	private final byte[] record = new byte[MAX_RECORD_LENGTH];
+	private final byte[] command = new byte[COMMAND_LENGTH];
+	private long ringOverflows = 0;
+
+	/**
+	 * @param directory
+	 *            the directory holding the rings, created if need be
+	 * @param network
+	 *            the interface to drive; its thread is started by the
+	 *            caller
+	 */
+	public NetworkDaemon(final File directory, final NetworkInterface network)
+			throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create " + directory);
+		}
+		this.network = network;
+		outbound = MappedRing.open(new File(directory, OUTBOUND_FILE),
+				RING_CAPACITY);
+		inbound = MappedRing.open(new File(directory, INBOUND_FILE),
+				RING_CAPACITY);
+		int id;
+		do {
+			id = new Random().nextInt();
+		} while (id == 0);
+		instance = id;
+	}
+
+	public static void main(final String[] args) {
+		if (args.length != 1 && args.length != 3) {
+			System.err.println("Usage: NetworkDaemon DIRECTORY [HOST PORT]");
+			System.exit(2);
+			return;
+		}
+		final NetworkInterface network;
+		try {
+			network = args.length == 3 ? new NetworkInterface(args[1],
+					Integer.parseInt(args[2])) : new NetworkInterface();
+		} catch (NumberFormatException e) {
+			System.err.println("Bad port: " + args[2]);
+			System.exit(2);
+			return;
+		}
+		final NetworkDaemon daemon;
+		try {
+			daemon = new NetworkDaemon(new File(args[0]), network);
+		} catch (IOException e) {
+			System.err.println("Cannot open rings: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+		final Thread thread = new Thread(network, "Network "
+				+ network.getName());
+		thread.setDaemon(true);
+		thread.start();
+		daemon.run();
+	}
+
+	@Override
+	public void run() {
+		Logger.getGlobal().log(Level.INFO,
+				"Network daemon " + Integer.toHexString(instance) + " for "
+						+ network.getName());
+		// Whatever a previous daemon left unread was meant for it; the
+		// endpoint writes its settings again once it sees the new instance
+		outbound.discard();
+		inbound.setStatus(STATUS_INSTANCE, instance);
+		final CommandQueue commands = network.getCommands();
+		long nextReport = now() + REPORT_INTERVAL_MS;
+		int idle = 0;
+		long park = MIN_PARK_NANOS;
+		while (!Thread.currentThread().isInterrupted()) {
+			boolean busy = false;
+			int length;
+			while ((length = outbound.peek(record)) >= 0) {
+				apply(length);
+				// Pending must cover the packet before the ring stops doing so
+				publishStatus();
+				outbound.release();
+				busy = true;
+			}
+			ModelCommand next;
+			while ((next = commands.poll()) != null) {
+				forward(next, commands.getPolledTime());
+				busy = true;
+			}
+			publishStatus();
+
+			if (busy) {
+				idle = 0;
+				park = MIN_PARK_NANOS;
+			} else if (idle < SPIN_PASSES) {
+				idle++;
+			} else if (idle < SPIN_PASSES + YIELD_PASSES) {
+				idle++;
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(park);
+				park = Math.min(park * 2, MAX_PARK_NANOS);
+			}
+
+			final long now = now();
+			if (now >= nextReport) {
+				nextReport = now + REPORT_INTERVAL_MS;
+				Logger.getGlobal().log(Level.INFO,
+						network.report() + ", ring overflows " + ringOverflows
+								+ ", corrupt ring records "
+								+ outbound.getCorruptCount());
+			}
+		}
+	}
+
+	private void apply(final int length) {
+		if (length < 1) {
+			return;
+		}
+		switch (record[0]) {
+		case PACKET:
+			final int type = record[1] & 0xFF;
+			if (length >= 4 && type < TYPES.length) {
+				network.sendMessage(TYPES[type], record[2] & 0xFF,
+						copyOf(4, length), length - 4, record[3] & 0xFF);
+			}
+			break;
+		case PROTOCOL:
+			final int mode = length < 2 ? NO_PROTOCOL : record[1] & 0xFF;
+			network.setProtocol(mode < MODES.length ? MODES[mode] : null);
+			break;
+		case HEARTBEAT:
+			network.setHeartbeat(copyOf(1, length), length - 1);
+			break;
+		case CLOCK_SYNC:
+			network.setClockSync(length >= 2 && record[1] != 0);
+			break;
+		case ACKNOWLEDGED:
+			network.setAcknowledgedDelivery(length >= 2 && record[1] != 0);
+			break;
+		default:
+			Logger.getGlobal().log(Level.WARNING,
+					"Unknown ring record " + record[0]);
+		}
+	}
+
+	// Moves the body of the record to the front of the array, which the
+	// interface copies from anyway
+	private byte[] copyOf(final int offset, final int length) {
+		System.arraycopy(record, offset, record, 0, length - offset);
+		return record;
+	}
+
+	private void forward(final ModelCommand next, final long time) {
+		command[0] = COMMAND;
+		command[1] = (byte) next.id;
+		command[2] = (byte) (next.id >> 8);
+		for (int i = 0; i < 8; i++) {
+			command[3 + i] = (byte) (time >> (8 * i));
+		}
+		if (!inbound.offer(command, 0, COMMAND_LENGTH)) {
+			ringOverflows++;
+		}
+	}
+
+	private void publishStatus() {
+		int pending = 0;
+		for (int i = 0; i < TYPES.length; i++) {
+			if (network.isPending(TYPES[i])) {
+				pending |= 1 << i;
+			}
+		}
+		inbound.setStatus(STATUS_ALIVE, (int) now());
+		inbound.setStatus(STATUS_CONNECTED, network.isConnected() ? 1 : 0);
+		inbound.setStatus(STATUS_CONNECTIONS,
+				instance + network.getConnectionCount());
+		inbound.setStatus(STATUS_PENDING, pending);
+		for (int channel = 0; channel < AnalogIngest.CHANNELS; channel++) {
+			final float reading = network.pollAnalog(channel);
+			if (!Float.isNaN(reading)) {
+				inbound.setStatus(STATUS_ANALOG + channel,
+						Float.floatToIntBits(reading) | ANALOG_SIGN);
+			}
+		}
+		inbound.setStatus(STATUS_DROPPED_SENDS,
+				(int) network.getDroppedSends());
+		inbound.setStatus(STATUS_INPUT_OVERFLOWS,
+				(int) (network.getInputOverflows() + ringOverflows));
+	}
+
+	// Monotonic milliseconds, unaffected by changes to the wall clock
+	private static long now() {
+		return System.nanoTime() / 1000000L;
+	}
+}
@@ -2,159 +2,980 @@
 
 package org.sdsu.intelligrid.network;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.Socket;
-import java.util.Date;
-import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Network API for the application.
+ * <p>
+ * All socket I/O happens on the single thread running {@link #run()}, which
+ * waits on a {@link Selector} for connect, read and write readiness of a
+ * {@link Transport}: a reliable stream that carries every packet, and
+ * optionally a datagram lane that carries LED animation frames instead so a
+ * lost frame never holds up control packets. Only frames that stand on
+ * their own go on the lane: LED deltas stay on the stream, since a lost
+ * delta would leave the model's LEDs wrong until the next keyframe without
+ * the application ever knowing. Once a protocol is set, the
+ * same thread also decodes what the model sends into {@link ModelCommand}s
+ * for the simulation to apply. Other threads only touch the buffers, the
+ * command queue and the volatile connection state.
+ * <p>
+ * On framed links, control packets can be sent with acknowledged delivery
+ * instead of repeats: the network thread numbers them, keeps them in a
+ * {@link DeliveryWindow} until the model acknowledges them, and sends again
+ * only those not acknowledged within {@link #RETRANSMIT_TIMEOUT_MS}.
  */
-public class NetworkInterface implements Runnable {
+public class NetworkInterface implements Endpoint {
 
-	private static final int INPUT_BUFFER_CAPACITY = 10000;
-	private static final int OUTPUT_BUFFER_CAPACITY = 20;
+	private static final int OUTPUT_BUFFER_CAPACITY = 64;
+	private static final int OUTPUT_PACKET_SIZE = FrameCodec.MAX_FRAME_LENGTH;
+	private static final int COMMAND_QUEUE_CAPACITY = 256;
 
-	private static final int RETRY_CONNECTION_DELAY_MS = 5000;
-	private static final int TIME_BETWEEN_PACKETS_MS = 20;
+	private static final int READ_BUFFER_SIZE = 65536;
+	private static final int WRITE_BUFFER_SIZE = 65536;
 
+	/**
+	 * Bounds of the delay before a reconnect attempt. The delay doubles with
+	 * every failed attempt and is jittered so the application does not retry
+	 * in lockstep with the model's own recovery.
+	 */
+	private static final int RECONNECT_MIN_DELAY_MS = 100;
+	private static final int RECONNECT_MAX_DELAY_MS = 5000;
+	private static final int CONNECT_TIMEOUT_MS = 2000;
+
+	/**
+	 * How often a heartbeat is queued, and how long the model may stay silent
+	 * before the connection is treated as dead. Only used once a heartbeat
+	 * has been set with {@link #setHeartbeat(byte[], int)}.
+	 */
+	private static final int HEARTBEAT_INTERVAL_MS = 250;
+	private static final int HEARTBEAT_TIMEOUT_MS = 1000;
+
+	/**
+	 * How often the clock offset to the model is measured once known, and
+	 * until then. Only used once turned on with
+	 * {@link #setClockSync(boolean)} on a framed link.
+	 */
+	private static final int CLOCK_SYNC_INTERVAL_MS = 1000;
+	private static final int CLOCK_SYNC_FAST_INTERVAL_MS = 100;
+
+	/**
+	 * How long the model has to acknowledge a control packet before it is
+	 * sent again. Only used once turned on with
+	 * {@link #setAcknowledgedDelivery(boolean)} on a framed link.
+	 */
+	private static final int RETRANSMIT_TIMEOUT_MS = 200;
+
+	// Without heartbeats, a model that stays silent is assumed ready after
+	// this long
 	private static final int DELAY_AFTER_CONNECT_MS = 5000;
 
+	/**
+	 * Most bytes written to the model per second, or 0 for no limit. Packets
+	 * ready within the limit are batched into a single write. Only the stream
+	 * is limited; LED datagrams are never held back.
+	 */
+	private static final int MAX_BYTES_PER_SECOND = 0;
+	// How far ahead of the limit a batch may run after an idle period
+	private static final int MAX_BURST_BYTES = Math.max(
+			MAX_BYTES_PER_SECOND / 10, OUTPUT_PACKET_SIZE);
+
 	private static final boolean ENABLE_NETWORK = true;
 
-	private final Queue<IntelliGridPacket> outputBuffer = new ArrayBlockingQueue<>(
-			OUTPUT_BUFFER_CAPACITY);
-	private final Queue<IntelliGridPacket> inputBuffer = new ArrayBlockingQueue<>(
-			INPUT_BUFFER_CAPACITY);
+	// Written by the thread calling sendMessage, read by the network thread
+	private final PacketRing outputBuffer = new PacketRing(
+			OUTPUT_BUFFER_CAPACITY, OUTPUT_PACKET_SIZE);
+
+	// Owned by the network thread
+	private final OutboundScheduler scheduler = new OutboundScheduler(
+			OUTPUT_PACKET_SIZE);
+	private final IntelliGridPacket currentPacket = new IntelliGridPacket(
+			OUTPUT_PACKET_SIZE);
+	private final OutboundScheduler laneScheduler = new OutboundScheduler(
+			OUTPUT_PACKET_SIZE);
+	private final IntelliGridPacket lanePacket = new IntelliGridPacket(
+			OUTPUT_PACKET_SIZE);
+
+	// Packets of each type published to the output buffer but not yet
+	// written or replaced
+	private final AtomicIntegerArray unsent = new AtomicIntegerArray(
+			PacketTypes.values().length);
+	private volatile long droppedSends = 0;
+
+	private final NetworkTelemetry telemetry = new NetworkTelemetry();
+	private volatile TrafficJournal journal = null;
+	private volatile LatencyTrace trace = null;
+
+	// Written by the network thread, drained by the simulation
+	private final CommandQueue commands = new CommandQueue(
+			COMMAND_QUEUE_CAPACITY, telemetry);
+	private volatile ProtocolMode protocol = null;
+	// Owned by the network thread; follows protocol
+	private ProtocolMode decoderProtocol = null;
+	private PacketDecoder decoder = null;
+	// Read time of the chunk being decoded
+	private long receiveTime;
+
+	// Filtered on the network thread, polled by the simulation
+	private final AnalogIngest analog = new AnalogIngest();
+
+	private final PacketDecoder.Listener commandDecoder = new PacketDecoder.Listener() {
+
+		@Override
+		public void onPacket(final PacketTypes type, final byte[] payload,
+				final int length) {
+			telemetry.recordDecoded(type, decoderProtocol.wireLength(length));
+			if (type == PacketTypes.ACK) {
+				delivery.onAck(payload, length, receiveTime);
+				return;
+			}
+			if (type == PacketTypes.ANALOG_READING) {
+				analog.onPacket(payload, length);
+				return;
+			}
+			if (type == PacketTypes.CLOCK_SYNC) {
+				if (clock.onAnswer(payload, length, receiveTime)) {
+					queueClockPacket(clock.encodeOffset(clockPayload), 1);
+				}
+				return;
+			}
+			final ModelCommand command = ModelCommand.decode(type, payload,
+					length);
+			if (command != null) {
+				commands.offer(command, receiveTime);
+			}
+		}
+	};
 
 	/**
 	 * NETWORK CONFIGURATION
 	 */
 	private static final int SERVER_PORT = 9750;
 	private static final String SERVER_IP = "192.168.1.10";
+	/**
+	 * Send LED animation frames as UDP datagrams to the port after
+	 * SERVER_PORT rather than on the TCP stream. On framed links only
+	 * keyframes go as datagrams; deltas stay on the stream. Needs model
+	 * firmware that listens for them.
+	 */
+	private static final boolean ENABLE_LED_DATAGRAMS = false;
+	/**
+	 * File to journal all traffic to, or null for none. The journal stops
+	 * recording once JOURNAL_CAPACITY bytes are used.
+	 */
+	private static final String JOURNAL_PATH = null;
+	private static final int JOURNAL_CAPACITY = 64 << 20;
 	/**
 	 * END NETWORK CONFIGURATION
 	 */
 
-	private Socket clientSocket = null;
-	private BufferedReader reader = null;
-	private BufferedWriter writer = null;
+	private final Transport stream;
+	private final Transport lane;
+	private boolean laneOpen = false;
+
+	// Direct, so the channel reads and writes them in place rather than
+	// through a temporary buffer of its own
+	private final ByteBuffer readBuffer = ByteBuffer
+			.allocateDirect(READ_BUFFER_SIZE);
+	private final ByteBuffer writeBuffer = ByteBuffer
+			.allocateDirect(WRITE_BUFFER_SIZE);
+	private final ByteBuffer laneBuffer = ByteBuffer
+			.allocate(OUTPUT_PACKET_SIZE);
+
+	private volatile Selector selector = null;
+	// Set from the start of a connection attempt until the next disconnect
+	private volatile boolean opened = false;
+
+	private double sendBudget = MAX_BURST_BYTES;
+	private long sendBudgetTime = System.nanoTime();
+
+	private volatile IntelliGridPacket heartbeat = null;
+	private long lastHeartbeatTime;
+	private long lastReceiveTime;
+
+	private final ClockSync clock = new ClockSync();
+	private volatile boolean clockSync = false;
+	private final IntelliGridPacket clockPacket = new IntelliGridPacket(
+			OUTPUT_PACKET_SIZE);
+	private final byte[] clockPayload = new byte[ClockSync.ANSWER_LENGTH];
+	private long lastClockSyncTime;
+
+	private final DeliveryWindow delivery = new DeliveryWindow(
+			RETRANSMIT_TIMEOUT_MS, telemetry);
+	private volatile boolean acknowledgedDelivery = false;
+
+	private final Random random = new Random();
+	private int reconnectAttempts = 0;
+
+	private long connectStartTime;
+	private volatile boolean connected = false;
+	// Set once the model has sent something on the current connection
+	private volatile boolean ready = false;
+	private volatile long connectTime;
+	private volatile int connectionCount = 0;
+
+	/**
+	 * Creates an interface that connects to the demonstration model.
+	 */
+	public NetworkInterface() {
+		this(SERVER_IP, SERVER_PORT);
+	}
+
+	/**
+	 * Creates an interface that connects to the given address instead of the
+	 * demonstration model, such as a stand-in model on another machine.
+	 * 
+	 * @param serverAddress
+	 *            the host name or IP address to connect to
+	 * @param serverPort
+	 *            the TCP port to connect to
+	 */
+	public NetworkInterface(final String serverAddress, final int serverPort) {
+		this(new TcpTransport(serverAddress, serverPort),
+				ENABLE_LED_DATAGRAMS ? new UdpTransport(serverAddress,
+						serverPort + 1) : null);
+	}
 
-	private int waitAfterConnect = DELAY_AFTER_CONNECT_MS;
-	private long startTime;
+	/**
+	 * Creates an interface that talks to the model over the given
+	 * transports.
+	 * 
+	 * @param stream
+	 *            the reliable transport for every packet, or every packet
+	 *            but LED animation frames if there is a lane
+	 * @param lane
+	 *            the datagram transport for LED animation frames, or
+	 *            <tt>null</tt> to send them on the stream
+	 */
+	public NetworkInterface(final Transport stream, final Transport lane) {
+		this.stream = stream;
+		this.lane = lane;
+	}
 
 	/**
-	 * Pushes a network message to the output buffer to be sent at the earliest
-	 * opportunity. Will overwrite old messages if the buffer is full (such as
-	 * when the connection is down).
+	 * Pushes raw bytes to the output buffer to be sent at the earliest
+	 * opportunity. The bytes are copied, so the array may be reused. Replaces
+	 * any unsent message of the same type and key, so only the newest value
+	 * of each setting goes out.
 	 * <p>
-	 * Does nothing if the network is not connected.
+	 * Does nothing if the network is not connected. Must always be called
+	 * from the same thread (the GL thread).
 	 * 
-	 * @param message
-	 *            the message to send in the packet
+	 * @param type
+	 *            the type of packet being sent
+	 * @param key
+	 *            the load number for {@link PacketTypes#POWER_OUTAGE}
+	 *            packets; ignored for other types
+	 * @param data
+	 *            the bytes to send
+	 * @param length
+	 *            the number of bytes of <tt>data</tt> to send
 	 * @param repeat
-	 *            how many times to send the packet (error checking kludge)
+	 *            how many times to send the packet (error checking kludge);
+	 *            packets sent with acknowledged delivery go out once
 	 */
-	public void sendMessage(final String message, final int repeat) {
-		if (clientSocket == null) {
-			Logger.getGlobal().log(Level.INFO, "No client to send message!");
+	public void sendMessage(final PacketTypes type, final int key,
+			final byte[] data, final int length, final int repeat) {
+		final IntelliGridPacket packet = claimOutput();
+		if (packet == null) {
 			return;
 		}
-		if (outputBuffer.size() == OUTPUT_BUFFER_CAPACITY) {
-			outputBuffer.remove();
+		final int count = Math.min(length, packet.data.length);
+		System.arraycopy(data, 0, packet.data, 0, count);
+		publishOutput(packet, type, key, count, repeat);
+	}
+
+	private IntelliGridPacket claimOutput() {
+		if (!opened) {
+			Logger.getGlobal().log(Level.INFO, "No client to send message!");
+			droppedSends++;
+			return null;
+		}
+		final IntelliGridPacket packet = outputBuffer.claim();
+		if (packet == null) {
 			Logger.getGlobal().log(Level.INFO, "Buffer Full!");
 		}
-		outputBuffer.add(new IntelliGridPacket(message, new Date(), repeat));
+		return packet;
+	}
+
+	private void publishOutput(final IntelliGridPacket packet,
+			final PacketTypes type, final int key, final int length,
+			final int repeat) {
+		packet.type = type;
+		packet.key = key;
+		packet.length = length;
+		packet.repeat = repeat;
+		packet.time = System.nanoTime();
+		unsent.incrementAndGet(type.ordinal());
+		outputBuffer.publish();
+
+		final Selector s = selector;
+		if (s != null) {
+			s.wakeup();
+		}
 	}
 
 	/**
-	 * Pops off the first packet in the input buffer. Returns <tt>null</tt> if
-	 * the buffer is empty.
+	 * Turns on heartbeats. Once set, the given packet is sent every
+	 * {@link #HEARTBEAT_INTERVAL_MS} while connected, a connection counts as
+	 * ready as soon as the model answers, and a connection on which the model
+	 * stays silent for {@link #HEARTBEAT_TIMEOUT_MS} is dropped and remade.
+	 * <p>
+	 * Only turn heartbeats on for models that answer them; any bytes from the
+	 * model count as an answer.
 	 * 
-	 * @return the first packet in the input buffer, or <tt>null</tt> if the
-	 *         buffer is empty.
+	 * @param data
+	 *            the complete heartbeat packet, as it goes on the wire
+	 * @param length
+	 *            the number of bytes of <tt>data</tt> to send
 	 */
-	public IntelliGridPacket retrieveMessage() {
-		final IntelliGridPacket packet = inputBuffer.poll();
-		if (packet == null || packet.message == null
-				|| packet.message.isEmpty()) {
-			return null;
-		} else {
-			return packet;
+	public void setHeartbeat(final byte[] data, final int length) {
+		final IntelliGridPacket packet = new IntelliGridPacket(length);
+		System.arraycopy(data, 0, packet.data, 0, length);
+		packet.length = length;
+		packet.type = PacketTypes.HEARTBEAT;
+		packet.repeat = 1;
+		heartbeat = packet;
+	}
+
+	/**
+	 * Sets the wire format of the model's traffic. From the next read on,
+	 * the network thread decodes it and queues the resulting commands for
+	 * {@link #getCommands()}. Until a protocol is set, or once it is set to
+	 * <tt>null</tt>, the model's traffic is not decoded at all.
+	 */
+	public void setProtocol(final ProtocolMode protocol) {
+		this.protocol = protocol;
+	}
+
+	/**
+	 * Turns measuring the clock offset to the model on or off. Only has an
+	 * effect on framed links, since the ASCII protocol has no room for
+	 * times.
+	 * 
+	 * @see ClockSync
+	 */
+	public void setClockSync(final boolean enabled) {
+		clockSync = enabled;
+	}
+
+	/**
+	 * Turns acknowledged delivery of control packets on or off. Only has an
+	 * effect on framed links, and only turn it on for models that
+	 * acknowledge; otherwise control packets stop going out once
+	 * {@link DeliveryWindow#WINDOW} are waiting for acknowledgement.
+	 * 
+	 * @see DeliveryWindow
+	 */
+	public void setAcknowledgedDelivery(final boolean enabled) {
+		acknowledgedDelivery = enabled;
+	}
+
+	/**
+	 * Returns the clock offset estimate for the model.
+	 */
+	public ClockSync getClock() {
+		return clock;
+	}
+
+	/**
+	 * Returns the queue of commands decoded from the model's traffic. Only
+	 * the simulation may poll it.
+	 */
+	public CommandQueue getCommands() {
+		return commands;
+	}
+
+	@Override
+	public ModelCommand pollCommand() {
+		return commands.poll();
+	}
+
+	@Override
+	public long getPolledTime() {
+		return commands.getPolledTime();
+	}
+
+	/**
+	 * Takes the newest filtered reading of an analog channel. Only the
+	 * simulation may poll it.
+	 * 
+	 * @see AnalogIngest#poll(int)
+	 */
+	@Override
+	public float pollAnalog(final int channel) {
+		return analog.poll(channel);
+	}
+
+	/**
+	 * Returns the analog readings taken in from the model.
+	 */
+	public AnalogIngest getAnalog() {
+		return analog;
+	}
+
+	/**
+	 * Returns <tt>true</tt> if a packet of the given type has been sent but
+	 * has not reached the wire or been replaced by a newer one yet.
+	 */
+	public boolean isPending(final PacketTypes type) {
+		return unsent.get(type.ordinal()) > 0;
+	}
+
+	/**
+	 * Returns the number of outgoing packets replaced by a newer packet of
+	 * the same kind before they were sent.
+	 */
+	public long getCoalescedSends() {
+		return scheduler.getCoalescedCount();
+	}
+
+	/**
+	 * Returns the number of outgoing packets thrown away because there was
+	 * no connection or the output buffer was full.
+	 */
+	public long getDroppedSends() {
+		return droppedSends + outputBuffer.getOverflowCount();
+	}
+
+	/**
+	 * Returns the number of commands dropped because the command queue was
+	 * full.
+	 */
+	public long getInputOverflows() {
+		return commands.getOverflowCount();
+	}
+
+	/**
+	 * Returns the counters and latency histograms for the link.
+	 */
+	public NetworkTelemetry getTelemetry() {
+		return telemetry;
+	}
+
+	@Override
+	public String report() {
+		String text = getName() + ": " + telemetry.report()
+				+ "\ndropped sends " + getDroppedSends() + ", input overflows "
+				+ getInputOverflows();
+		if (analog.getSamples() > 0 || analog.getMalformed() > 0) {
+			text += ", analog samples " + analog.getSamples() + " ("
+					+ analog.getOutputs() + " filtered, "
+					+ analog.getMalformed() + " malformed)";
 		}
+		return text;
 	}
 
 	/**
-	 * Returns <tt>true</tt> if the model is connected to the application.
-	 * Returns <tt>false</tt> otherwise.
+	 * Starts recording all traffic and connection events to a journal, or
+	 * stops recording if <tt>null</tt>. The journal is written by the
+	 * network thread only.
+	 */
+	public void setJournal(final TrafficJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Sets the trace to tell when LED frames are written, or <tt>null</tt>
+	 * for none. The trace is told by the network thread.
+	 */
+	@Override
+	public void setLatencyTrace(final LatencyTrace trace) {
+		this.trace = trace;
+	}
+
+	/**
+	 * Returns <tt>true</tt> if the model is connected to the application and
+	 * ready for packets. Returns <tt>false</tt> otherwise.
+	 * <p>
+	 * A connection is ready once the model has sent anything over it or,
+	 * when heartbeats are off, once it has been open for
+	 * {@link #DELAY_AFTER_CONNECT_MS}.
 	 */
 	public boolean isConnected() {
-		return clientSocket != null && waitAfterConnect < 0;
+		if (!connected) {
+			return false;
+		}
+		return ready
+				|| (heartbeat == null && now() - connectTime > DELAY_AFTER_CONNECT_MS);
+	}
+
+	// Monotonic milliseconds, unaffected by changes to the wall clock
+	private static long now() {
+		return System.nanoTime() / 1000000L;
+	}
+
+	/**
+	 * Returns the address of the model, for the log.
+	 */
+	public String getName() {
+		return stream.getName();
 	}
 
-	private Socket connect() {
-		final Socket connection;
+	/**
+	 * Returns the number of connections made so far. A change in the value
+	 * means the model may have lost any state built up from earlier packets.
+	 */
+	public int getConnectionCount() {
+		return connectionCount;
+	}
+
+	private boolean connect() {
 		try {
-			connection = new Socket(SERVER_IP, SERVER_PORT);
+			opened = true;
+			connectStartTime = now();
+			if (stream.open(selector)) {
+				onConnected();
+			}
 		} catch (Exception e) {
 			Logger.getGlobal().log(Level.SEVERE,
 					"Connection failed: " + e.getMessage());
-			return null;
+			disconnect();
+			return false;
 		}
 
-		waitAfterConnect = DELAY_AFTER_CONNECT_MS;
-		startTime = System.currentTimeMillis();
-		return connection;
+		return true;
 	}
 
-	private class XBeeReader implements Runnable {
+	private void onConnected() {
+		writeBuffer.clear();
+		writeBuffer.flip();
+		connectTime = now();
+		lastReceiveTime = connectTime;
+		lastHeartbeatTime = connectTime - HEARTBEAT_INTERVAL_MS;
+		lastClockSyncTime = connectTime - CLOCK_SYNC_INTERVAL_MS;
+		// The model may have restarted its clock
+		clock.reset();
+		// and forgotten what it acknowledged
+		delivery.restart(connectTime);
+		analog.reset();
+		connectionCount++;
+		ready = false;
+		if (decoder != null) {
+			decoder.reset();
+		}
+		connected = true;
+		Logger.getGlobal().log(Level.INFO, "Connected to " + stream.getName());
+		final TrafficJournal j = journal;
+		if (j != null) {
+			j.record(TrafficJournal.CONNECTED, System.nanoTime());
+		}
 
-		@Override
-		public void run() {
-			while (!Thread.currentThread().isInterrupted()) {
-				if (clientSocket == null || reader == null) {
-					try {
-						Thread.sleep(RETRY_CONNECTION_DELAY_MS);
-					} catch (InterruptedException e) {
-						Logger.getGlobal().log(Level.SEVERE, e.getMessage());
-					}
-					continue;
+		if (lane != null) {
+			laneBuffer.clear();
+			laneBuffer.flip();
+			try {
+				lane.open(selector);
+				laneOpen = true;
+			} catch (IOException e) {
+				// LED frames go on the stream until the next connection
+				Logger.getGlobal().log(Level.SEVERE,
+						"Lane unavailable: " + e.getMessage());
+				lane.close();
+			}
+		}
+	}
+
+	private void disconnect() {
+		final TrafficJournal j = journal;
+		if (j != null && connected) {
+			j.record(TrafficJournal.DISCONNECTED, System.nanoTime());
+		}
+		connected = false;
+		ready = false;
+		opened = false;
+		stream.close();
+		if (laneOpen) {
+			lane.close();
+			laneOpen = false;
+			// Whatever is waiting for the lane goes on the stream if the lane
+			// does not come back
+			lanePacket.repeat = 0;
+			while (laneScheduler.poll(lanePacket)) {
+				if (scheduler.offer(lanePacket)) {
+					unsent.decrementAndGet(lanePacket.type.ordinal());
 				}
+			}
+		}
+	}
 
-				String in = null;
-				final char[] buffer = new char[1000];
-				try {
-					final int howMuch = reader.read(buffer, 0, 1000);
-					if (howMuch == -1) {
-						Logger.getGlobal().log(Level.SEVERE,
-								"Too much to read!");
-						continue;
-					}
-					in = String.valueOf(buffer).substring(0, howMuch);
-				} catch (IOException e) {
-					Logger.getGlobal().log(Level.SEVERE,
-							"Reader failed: " + e.getMessage());
-					clientSocket = null;
-					continue;
+	private void read() throws IOException {
+		readBuffer.clear();
+		final int howMuch = stream.read(readBuffer);
+		if (howMuch == -1) {
+			throw new IOException("Connection closed by model");
+		}
+		if (howMuch == 0) {
+			return;
+		}
+
+		telemetry.recordRead(howMuch);
+		lastReceiveTime = now();
+		if (!ready) {
+			ready = true;
+			Logger.getGlobal().log(Level.INFO,
+					"Model ready after " + (lastReceiveTime - connectTime)
+							+ " ms");
+		}
+		final long now = System.nanoTime();
+		readBuffer.flip();
+		final TrafficJournal j = journal;
+		if (j != null) {
+			j.record(TrafficJournal.INBOUND, null, readBuffer, now);
+		}
+
+		// Without a protocol the bytes are still read, so the model counts as
+		// ready and its socket never fills, but nothing is decoded
+		final ProtocolMode p = protocol;
+		if (p != null) {
+			decode(p, readBuffer, now);
+		}
+	}
+
+	private void decode(final ProtocolMode p, final ByteBuffer in,
+			final long now) {
+		if (p != decoderProtocol) {
+			decoder = p.newDecoder();
+			decoderProtocol = p;
+		}
+		receiveTime = now;
+		final long errors = decoder.getErrorCount();
+		decoder.feed(in, commandDecoder);
+		telemetry.recordParseFailures(decoder.getErrorCount() - errors);
+		if (decoder.hasPartialPacket()) {
+			telemetry.recordPartialCarry();
+		}
+		telemetry.sampleDepth(NetworkTelemetry.Queue.INPUT, commands.size());
+	}
+
+	// Nothing is expected back on the lane; drain it so its socket buffer
+	// never fills
+	private void drainLane() throws IOException {
+		do {
+			readBuffer.clear();
+		} while (lane.read(readBuffer) > 0);
+	}
+
+	/**
+	 * Moves everything published to the output buffer into the schedulers.
+	 */
+	private void drainOutput() {
+		telemetry.sampleDepth(NetworkTelemetry.Queue.OUTPUT,
+				outputBuffer.size());
+		while (true) {
+			final IntelliGridPacket packet = outputBuffer.peek();
+			if (packet == null) {
+				break;
+			}
+			final OutboundScheduler target = laneOpen
+					&& isLaneFrame(packet) ? laneScheduler : scheduler;
+			if (target.offer(packet)) {
+				unsent.decrementAndGet(packet.type.ordinal());
+				telemetry.recordEviction(packet.type);
+			}
+			outputBuffer.release();
+		}
+		telemetry.sampleDepth(NetworkTelemetry.Queue.SCHEDULER,
+				scheduler.size() + laneScheduler.size());
+	}
+
+	/**
+	 * Returns <tt>true</tt> for LED frames the model can show without the
+	 * frames before them: every ASCII frame and framed keyframes.
+	 */
+	private static boolean isLaneFrame(final IntelliGridPacket packet) {
+		if (packet.type != PacketTypes.LIGHT_ANIMATION) {
+			return false;
+		}
+		if (packet.data[0] != FrameCodec.SYNC) {
+			return true;
+		}
+		final int payload = FrameCodec.HEADER_LENGTH
+				+ (packet.data[1] == FrameCodec.VERSION_SEQUENCED ? FrameCodec.SEQUENCE_LENGTH
+						: 0);
+		final byte kind = packet.data[payload];
+		return kind == LedFrameCodec.KEYFRAME
+				|| kind == LedFrameCodec.TIMED_KEYFRAME;
+	}
+
+	private void write() throws IOException {
+		if (!writeBuffer.hasRemaining()) {
+			fillWriteBuffer();
+		}
+		if (writeBuffer.hasRemaining()) {
+			stream.write(writeBuffer);
+		}
+	}
+
+	/**
+	 * Sends the next lane packet as one datagram. A datagram the transport
+	 * has no room for is kept and tried again.
+	 */
+	private void writeLane() throws IOException {
+		if (!laneBuffer.hasRemaining()) {
+			if (lanePacket.repeat <= 0) {
+				if (!laneScheduler.poll(lanePacket)) {
+					return;
 				}
+				unsent.decrementAndGet(lanePacket.type.ordinal());
+			}
+			laneBuffer.clear();
+			laneBuffer.put(lanePacket.data, 0, lanePacket.length);
+			laneBuffer.flip();
+			lanePacket.repeat--;
+			final long now = System.nanoTime();
+			telemetry.recordSent(lanePacket.type, lanePacket.length,
+					lanePacket.time, now);
+			traceSent(lanePacket, now);
+			final TrafficJournal j = journal;
+			if (j != null) {
+				j.record(TrafficJournal.OUTBOUND, lanePacket.type,
+						lanePacket.data, 0, lanePacket.length, now);
+			}
+		}
+		lane.write(laneBuffer);
+	}
 
-				if (in != null) {
-					// Logger.getGlobal().log(Level.INFO, "Read: \"" + in +
-					// "\"");
-					if (inputBuffer.size() == INPUT_BUFFER_CAPACITY) {
-						inputBuffer.clear(); // Let's avoid some crash
-					}
-					inputBuffer.add(new IntelliGridPacket(in, new Date(), 1));
+	private boolean hasPendingLaneOutput() {
+		return laneBuffer.hasRemaining() || lanePacket.repeat > 0
+				|| !laneScheduler.isEmpty();
+	}
+
+	/**
+	 * Packs every queued packet that fits, in scheduler order, into the write
+	 * buffer so they go out in one write. Overdue retransmissions, being the
+	 * oldest packets, go first.
+	 */
+	private void fillWriteBuffer() {
+		refillSendBudget();
+		final long now = sendBudgetTime;
+		final long nowMs = now / 1000000L;
+		final boolean acknowledged = usesDelivery();
+		writeBuffer.clear();
+		while (acknowledged) {
+			final IntelliGridPacket resend = delivery.peekDue(nowMs);
+			if (resend == null || !fits(resend.length)) {
+				break;
+			}
+			put(resend, now);
+			delivery.markResent(nowMs);
+		}
+
+		while (true) {
+			if (currentPacket.repeat <= 0) {
+				if (!scheduler.poll(currentPacket)) {
+					break;
+				}
+				unsent.decrementAndGet(currentPacket.type.ordinal());
+			}
+
+			if (acknowledged && DeliveryWindow.isAcknowledged(currentPacket.type)) {
+				// Held back until the model acknowledges enough to make room
+				if (delivery.isFull()
+						|| !fits(currentPacket.length
+								+ FrameCodec.SEQUENCE_LENGTH)) {
+					break;
 				}
+				final IntelliGridPacket numbered = delivery.add(currentPacket,
+						nowMs);
+				put(numbered, now);
+				telemetry.recordSent(numbered.type, numbered.length,
+						numbered.time, now);
+				traceSent(numbered, now);
+				// The window sends it again if need be
+				currentPacket.repeat = 0;
+				continue;
+			}
+
+			final int length = currentPacket.length;
+			if (!fits(length)) {
+				break;
+			}
+			put(currentPacket, now);
+			telemetry.recordSent(currentPacket.type, length,
+					currentPacket.time, now);
+			traceSent(currentPacket, now);
+			currentPacket.repeat--;
+		}
+		writeBuffer.flip();
+	}
+
+	private void traceSent(final IntelliGridPacket packet, final long now) {
+		final LatencyTrace t = trace;
+		if (t != null && packet.type == PacketTypes.LIGHT_ANIMATION) {
+			t.markWritten(packet.time, now);
+		}
+	}
+
+	private boolean fits(final int length) {
+		return length <= writeBuffer.remaining()
+				&& (MAX_BYTES_PER_SECOND <= 0 || length <= sendBudget);
+	}
+
+	private void put(final IntelliGridPacket packet, final long now) {
+		writeBuffer.put(packet.data, 0, packet.length);
+		sendBudget -= packet.length;
+		final TrafficJournal j = journal;
+		if (j != null) {
+			j.record(TrafficJournal.OUTBOUND, packet.type, packet.data, 0,
+					packet.length, now);
+		}
+	}
+
+	private boolean usesDelivery() {
+		return acknowledgedDelivery && protocol == ProtocolMode.FRAMED;
+	}
+
+	private void refillSendBudget() {
+		final long now = System.nanoTime();
+		sendBudget = Math.min(MAX_BURST_BYTES, sendBudget
+				+ (now - sendBudgetTime) * (MAX_BYTES_PER_SECOND / 1e9));
+		sendBudgetTime = now;
+	}
+
+	/**
+	 * Returns how long to wait before the byte rate limit allows the next
+	 * packet out, or 0 if it can be written now.
+	 */
+	private long sendDelayMs() {
+		if (MAX_BYTES_PER_SECOND <= 0 || writeBuffer.hasRemaining()) {
+			return 0;
+		}
+		refillSendBudget();
+		final int needed = currentPacket.repeat > 0 ? currentPacket.length
+				: 1;
+		if (sendBudget >= needed) {
+			return 0;
+		}
+		return 1 + (long) ((needed - sendBudget) * 1000.0
+				/ MAX_BYTES_PER_SECOND);
+	}
+
+	/**
+	 * Queues a heartbeat when one is due and drops the connection if the
+	 * model has gone quiet.
+	 * 
+	 * @return how long until the next heartbeat is due or the connection
+	 *         times out, or 0 if heartbeats are off
+	 * @throws IOException
+	 *             if nothing has been received for too long
+	 */
+	private long checkHeartbeat() throws IOException {
+		final IntelliGridPacket packet = heartbeat;
+		if (packet == null) {
+			return 0;
+		}
+
+		final long now = now();
+		if (now - lastReceiveTime > HEARTBEAT_TIMEOUT_MS) {
+			throw new IOException("No answer from model for "
+					+ (now - lastReceiveTime) + " ms");
+		}
+		if (now - lastHeartbeatTime >= HEARTBEAT_INTERVAL_MS) {
+			queueInternal(packet);
+			lastHeartbeatTime = now;
+		}
+
+		final long next = Math.min(lastHeartbeatTime + HEARTBEAT_INTERVAL_MS,
+				lastReceiveTime + HEARTBEAT_TIMEOUT_MS + 1);
+		return Math.max(1, next - now);
+	}
+
+	/**
+	 * Queues a clock sync request when one is due.
+	 * 
+	 * @return how long until the next request is due, or 0 if clock sync is
+	 *         off
+	 */
+	private long checkClockSync() {
+		if (!clockSync || protocol != ProtocolMode.FRAMED) {
+			return 0;
+		}
+
+		final long now = now();
+		final long interval = clock.isSynchronized() ? CLOCK_SYNC_INTERVAL_MS
+				: CLOCK_SYNC_FAST_INTERVAL_MS;
+		if (now - lastClockSyncTime >= interval) {
+			queueClockPacket(
+					ClockSync.encodeRequest(System.nanoTime(), clockPayload),
+					0);
+			lastClockSyncTime = now;
+		}
+		return Math.max(1, lastClockSyncTime + interval - now);
+	}
+
+	/**
+	 * Returns how long until a control packet is overdue for
+	 * acknowledgement, or 0 if acknowledged delivery is off or nothing is
+	 * waiting. Overdue packets are sent again by the next write.
+	 */
+	private long checkRetransmit() {
+		if (!usesDelivery()) {
+			return 0;
+		}
+		return delivery.getWait(now());
+	}
+
+	private void queueClockPacket(final int length, final int key) {
+		clockPacket.type = PacketTypes.CLOCK_SYNC;
+		clockPacket.key = key;
+		clockPacket.length = FrameCodec.encode(PacketTypes.CLOCK_SYNC,
+				clockPayload, 0, length, clockPacket.data, 0);
+		clockPacket.repeat = 1;
+		queueInternal(clockPacket);
+	}
+
+	/**
+	 * Queues a packet made by the network thread itself.
+	 */
+	private void queueInternal(final IntelliGridPacket packet) {
+		packet.time = System.nanoTime();
+		unsent.incrementAndGet(packet.type.ordinal());
+		if (scheduler.offer(packet)) {
+			unsent.decrementAndGet(packet.type.ordinal());
+		}
+	}
+
+	// Combines two waits where 0 means no limit
+	private static long sooner(final long a, final long b) {
+		return a == 0 || b == 0 ? Math.max(a, b) : Math.min(a, b);
+	}
+
+	/**
+	 * Returns how long to wait before the next connection attempt and backs
+	 * off further for the one after it. A random half of the delay is taken
+	 * off.
+	 */
+	private long nextReconnectDelayMs() {
+		final long limit = Math.min(RECONNECT_MAX_DELAY_MS,
+				(long) RECONNECT_MIN_DELAY_MS << Math.min(reconnectAttempts, 16));
+		reconnectAttempts++;
+		return limit / 2 + (long) (random.nextDouble() * (limit / 2));
+	}
+
+	private boolean hasPendingOutput() {
+		if (writeBuffer.hasRemaining()) {
+			return true;
+		}
+		if (usesDelivery()) {
+			if (delivery.peekDue(now()) != null) {
+				return true;
+			}
+			// Nothing can go out until an acknowledgement makes room
+			if (currentPacket.repeat > 0 && delivery.isFull()
+					&& DeliveryWindow.isAcknowledged(currentPacket.type)) {
+				return false;
 			}
 		}
+		return currentPacket.repeat > 0 || !scheduler.isEmpty();
 	}
 
 	@Override
@@ -163,85 +984,129 @@ public class NetworkInterface implements Runnable {
 			return;
 		}
 
-		new Thread(new XBeeReader()).start();
+		try {
+			selector = Selector.open();
+		} catch (IOException e) {
+			Logger.getGlobal().log(Level.SEVERE,
+					"Failed to open selector: " + e.getMessage());
+			return;
+		}
+
+		// Only a journal opened here is closed here
+		TrafficJournal ownJournal = null;
+		if (JOURNAL_PATH != null && journal == null) {
+			try {
+				ownJournal = TrafficJournal.create(new File(JOURNAL_PATH),
+						JOURNAL_CAPACITY);
+				journal = ownJournal;
+			} catch (IOException e) {
+				Logger.getGlobal().log(Level.SEVERE,
+						"Failed to create journal: " + e.getMessage());
+			}
+		}
 
 		while (!Thread.currentThread().isInterrupted()) {
-			if (clientSocket != null) {
-				if (!clientSocket.isBound()) {
-					clientSocket = null;
-					Logger.getGlobal()
-							.log(Level.SEVERE, "Socket is not bound!");
-				} else if (clientSocket.isClosed()) {
-					clientSocket = null;
-					Logger.getGlobal().log(Level.SEVERE, "Socket is closed!");
-				} else if (!clientSocket.isConnected()) {
-					clientSocket = null;
-					Logger.getGlobal().log(Level.SEVERE,
-							"Socket is not connected!");
+			if (!opened) {
+				if (stream.isExhausted()) {
+					Logger.getGlobal().log(Level.INFO,
+							"No more traffic from " + stream.getName());
+					break;
 				}
-			}
-			if (clientSocket == null) {
 				Logger.getGlobal().log(Level.INFO, "Attempting connection...");
-				clientSocket = connect();
-				if (clientSocket == null) {
+				if (!connect()) {
 					try {
-						Thread.sleep(RETRY_CONNECTION_DELAY_MS);
+						Thread.sleep(nextReconnectDelayMs());
 					} catch (InterruptedException e) {
 						Logger.getGlobal().log(Level.SEVERE, e.getMessage());
+						break;
 					}
 					continue;
 				}
-				Logger.getGlobal().log(
-						Level.INFO,
-						"Connected to "
-								+ clientSocket.getInetAddress().getHostName());
-
-				try {
-					reader = new BufferedReader(new InputStreamReader(
-							clientSocket.getInputStream()), 65536);
-					writer = new BufferedWriter(new OutputStreamWriter(
-							clientSocket.getOutputStream()), 65536);
-				} catch (Exception e) {
-					Logger.getGlobal().log(Level.SEVERE,
-							"Failed to initialize r/w: " + e.getMessage());
-					clientSocket = null;
-					continue;
-				}
 			}
 
-			if (waitAfterConnect > 0) {
-				waitAfterConnect -= System.currentTimeMillis() - startTime;
-				startTime = System.currentTimeMillis();
-			}
+			try {
+				drainOutput();
+				if (connected) {
+					if (isConnected()) {
+						reconnectAttempts = 0;
+					}
+					final long timerDelay = sooner(
+							sooner(checkHeartbeat(), checkClockSync()),
+							checkRetransmit());
+					final long delay = hasPendingOutput() ? sendDelayMs() : 0;
+					stream.setWriteInterest(hasPendingOutput() && delay == 0);
+					if (laneOpen) {
+						lane.setWriteInterest(hasPendingLaneOutput());
+					}
+					// A timeout of 0 waits until woken
+					selector.select(sooner(delay, timerDelay));
+				} else {
+					final long remaining = CONNECT_TIMEOUT_MS
+							- (now() - connectStartTime);
+					if (remaining <= 0) {
+						throw new IOException("Connection timed out");
+					}
+					selector.select(remaining);
+				}
 
-			if (writer != null) {
-				final IntelliGridPacket packet = outputBuffer.peek();
+				final Iterator<SelectionKey> iter = selector.selectedKeys()
+						.iterator();
+				while (iter.hasNext()) {
+					final SelectionKey selected = iter.next();
+					iter.remove();
+					if (!selected.isValid()) {
+						continue;
+					}
 
-				if (packet != null) {
-					final String out = packet.message;
-					try {
-						packet.repeat--;
-						writer.write(out);
-						writer.flush();
-					} catch (Exception e) {
-						Logger.getGlobal().log(Level.SEVERE,
-								"Failed to write: " + e.getMessage());
-						clientSocket = null;
+					if (selected.attachment() == lane) {
+						if (selected.isReadable()) {
+							drainLane();
+						}
+						if (selected.isValid() && selected.isWritable()) {
+							writeLane();
+						}
 						continue;
 					}
-					if (packet.repeat <= 0) {
-						outputBuffer.poll();
+
+					if (selected.isConnectable() && stream.finishConnect()) {
+						onConnected();
+					}
+					if (selected.isValid() && selected.isReadable()) {
+						read();
+					}
+					if (selected.isValid() && selected.isWritable()) {
+						write();
 					}
-					// Logger.getGlobal().log(Level.INFO, "Sent \"" + out +
-					// "\"");
 				}
-
+			} catch (IOException e) {
+				Logger.getGlobal().log(Level.SEVERE,
+						"Network failure: " + e.getMessage());
+				disconnect();
 				try {
-					Thread.sleep(TIME_BETWEEN_PACKETS_MS);
-				} catch (InterruptedException e) {
-					Logger.getGlobal().log(Level.SEVERE, e.getMessage());
+					Thread.sleep(nextReconnectDelayMs());
+				} catch (InterruptedException e1) {
+					Logger.getGlobal().log(Level.SEVERE, e1.getMessage());
+					break;
 				}
 			}
 		}
+
+		disconnect();
+		try {
+			selector.close();
+		} catch (IOException e) {
+			Logger.getGlobal().log(Level.SEVERE, e.getMessage());
+		}
+		if (ownJournal != null) {
+			if (journal == ownJournal) {
+				journal = null;
+			}
+			try {
+				ownJournal.close();
+			} catch (IOException e) {
+				Logger.getGlobal().log(Level.SEVERE,
+						"Failed to close journal: " + e.getMessage());
+			}
+		}
 	}
 }
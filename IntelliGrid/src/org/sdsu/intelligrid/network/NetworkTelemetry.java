@@ -0,0 +1,318 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for the link to the model, broken down by
+ * {@link PacketTypes}.
+ * <p>
+ * Traffic figures are recorded by the network thread and dispatch latency
+ * by the thread applying decoded commands (the GL thread). Every update is a
+ * lock-free atomic operation, so any thread may read or {@link #report()} the
+ * telemetry at any time.
+ * <p>
+ * The two latencies split a stutter into its parts: enqueue-to-wire covers
+ * the output buffer, the scheduler and rate limiting; receive-to-dispatch
+ * covers the command queue and the wait for the next simulation tick.
+ * For packets sent with acknowledged delivery, enqueue-to-ack is recorded as
+ * well, retransmissions included.
+ */
+public final class NetworkTelemetry {
+
+	private static final int TYPE_COUNT = PacketTypes.values().length;
+
+	private final AtomicLongArray packetsOut = new AtomicLongArray(TYPE_COUNT);
+	private final AtomicLongArray bytesOut = new AtomicLongArray(TYPE_COUNT);
+	private final AtomicLongArray packetsIn = new AtomicLongArray(TYPE_COUNT);
+	private final AtomicLongArray bytesIn = new AtomicLongArray(TYPE_COUNT);
+	private final AtomicLongArray evictions = new AtomicLongArray(TYPE_COUNT);
+	private final AtomicLongArray retransmits = new AtomicLongArray(TYPE_COUNT);
+
+	private final LatencyHistogram[] wireLatency = new LatencyHistogram[TYPE_COUNT];
+	private final LatencyHistogram[] dispatchLatency = new LatencyHistogram[TYPE_COUNT];
+	private final LatencyHistogram[] deliveryLatency = new LatencyHistogram[TYPE_COUNT];
+
+	// Indices into link
+	private static final int BYTES_READ = 0;
+	private static final int READS = 1;
+	private static final int PARSE_FAILURES = 2;
+	private static final int PARTIAL_CARRIES = 3;
+	private static final int LINK_COUNTERS = 4;
+
+	private final AtomicLongArray link = new AtomicLongArray(LINK_COUNTERS);
+
+	/**
+	 * Queues whose depth is sampled by the network thread.
+	 */
+	public static enum Queue {
+		INPUT, OUTPUT, SCHEDULER
+	}
+
+	private final AtomicLongArray depth = new AtomicLongArray(
+			Queue.values().length);
+	private final AtomicLongArray maxDepth = new AtomicLongArray(
+			Queue.values().length);
+
+	public NetworkTelemetry() {
+		for (int i = 0; i < TYPE_COUNT; i++) {
+			wireLatency[i] = new LatencyHistogram();
+			dispatchLatency[i] = new LatencyHistogram();
+			deliveryLatency[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Records a packet handed to the socket.
+	 * 
+	 * @param type
+	 *            the type of the packet
+	 * @param length
+	 *            the number of bytes written, framing included
+	 * @param queuedTime
+	 *            {@link System#nanoTime()} when the packet was queued
+	 * @param now
+	 *            {@link System#nanoTime()} now
+	 */
+	public void recordSent(final PacketTypes type, final int length,
+			final long queuedTime, final long now) {
+		final int i = type.ordinal();
+		packetsOut.incrementAndGet(i);
+		bytesOut.addAndGet(i, length);
+		wireLatency[i].record(now - queuedTime);
+	}
+
+	/**
+	 * Records an outgoing packet replaced by a newer one before it was sent.
+	 */
+	public void recordEviction(final PacketTypes type) {
+		evictions.incrementAndGet(type.ordinal());
+	}
+
+	/**
+	 * Records a packet sent again because it was not acknowledged in time.
+	 * 
+	 * @param type
+	 *            the type of the packet
+	 * @param length
+	 *            the number of bytes written, framing included
+	 */
+	public void recordRetransmit(final PacketTypes type, final int length) {
+		final int i = type.ordinal();
+		retransmits.incrementAndGet(i);
+		bytesOut.addAndGet(i, length);
+	}
+
+	/**
+	 * Records the acknowledgement of a packet.
+	 * 
+	 * @param type
+	 *            the type of the packet
+	 * @param queuedTime
+	 *            {@link System#nanoTime()} when the packet was queued
+	 * @param now
+	 *            {@link System#nanoTime()} when the acknowledgement was read
+	 */
+	public void recordDelivered(final PacketTypes type, final long queuedTime,
+			final long now) {
+		deliveryLatency[type.ordinal()].record(now - queuedTime);
+	}
+
+	/**
+	 * Records one read from the socket.
+	 */
+	public void recordRead(final int length) {
+		link.incrementAndGet(READS);
+		link.addAndGet(BYTES_READ, length);
+	}
+
+	/**
+	 * Records a packet decoded from the model's traffic.
+	 * 
+	 * @param type
+	 *            the type of the packet
+	 * @param length
+	 *            the size of the packet on the wire, framing included
+	 */
+	public void recordDecoded(final PacketTypes type, final int length) {
+		final int i = type.ordinal();
+		packetsIn.incrementAndGet(i);
+		bytesIn.addAndGet(i, length);
+	}
+
+	/**
+	 * Records a decoded command applied to the simulation.
+	 * 
+	 * @param type
+	 *            the type of the packet the command came from
+	 * @param receiveTime
+	 *            {@link System#nanoTime()} when the bytes were read
+	 * @param now
+	 *            {@link System#nanoTime()} now
+	 */
+	public void recordDispatched(final PacketTypes type,
+			final long receiveTime, final long now) {
+		dispatchLatency[type.ordinal()].record(now - receiveTime);
+	}
+
+	/**
+	 * Records input the decoder had to throw away.
+	 * 
+	 * @param count
+	 *            the number of new errors reported by the decoder
+	 */
+	public void recordParseFailures(final long count) {
+		if (count > 0) {
+			link.addAndGet(PARSE_FAILURES, count);
+		}
+	}
+
+	/**
+	 * Records a chunk of input that ended part way through a packet, leaving
+	 * the rest to be carried over to the next chunk.
+	 */
+	public void recordPartialCarry() {
+		link.incrementAndGet(PARTIAL_CARRIES);
+	}
+
+	/**
+	 * Records the current depth of a queue. Must only be called from one
+	 * thread.
+	 */
+	public void sampleDepth(final Queue queue, final int size) {
+		final int i = queue.ordinal();
+		depth.lazySet(i, size);
+		if (size > maxDepth.get(i)) {
+			maxDepth.lazySet(i, size);
+		}
+	}
+
+	public long getPacketsOut(final PacketTypes type) {
+		return packetsOut.get(type.ordinal());
+	}
+
+	public long getBytesOut(final PacketTypes type) {
+		return bytesOut.get(type.ordinal());
+	}
+
+	public long getPacketsIn(final PacketTypes type) {
+		return packetsIn.get(type.ordinal());
+	}
+
+	public long getBytesIn(final PacketTypes type) {
+		return bytesIn.get(type.ordinal());
+	}
+
+	public long getEvictions(final PacketTypes type) {
+		return evictions.get(type.ordinal());
+	}
+
+	public long getRetransmits(final PacketTypes type) {
+		return retransmits.get(type.ordinal());
+	}
+
+	/**
+	 * Returns the time from {@link NetworkInterface#sendMessage} to the
+	 * socket for packets of the given type.
+	 */
+	public LatencyHistogram getWireLatency(final PacketTypes type) {
+		return wireLatency[type.ordinal()];
+	}
+
+	/**
+	 * Returns the time from the socket to the handler for packets of the
+	 * given type.
+	 */
+	public LatencyHistogram getDispatchLatency(final PacketTypes type) {
+		return dispatchLatency[type.ordinal()];
+	}
+
+	/**
+	 * Returns the time from {@link NetworkInterface#sendMessage} to the
+	 * model's acknowledgement for packets of the given type.
+	 */
+	public LatencyHistogram getDeliveryLatency(final PacketTypes type) {
+		return deliveryLatency[type.ordinal()];
+	}
+
+	public long getBytesRead() {
+		return link.get(BYTES_READ);
+	}
+
+	public long getReads() {
+		return link.get(READS);
+	}
+
+	public long getParseFailures() {
+		return link.get(PARSE_FAILURES);
+	}
+
+	public long getPartialCarries() {
+		return link.get(PARTIAL_CARRIES);
+	}
+
+	public int getDepth(final Queue queue) {
+		return (int) depth.get(queue.ordinal());
+	}
+
+	public int getMaxDepth(final Queue queue) {
+		return (int) maxDepth.get(queue.ordinal());
+	}
+
+	/**
+	 * Formats every non-zero figure for the log. Latencies are in
+	 * milliseconds.
+	 */
+	public String report() {
+		final StringBuilder out = new StringBuilder();
+		out.append("reads ").append(getReads()).append(" (")
+				.append(getBytesRead()).append(" B), parse failures ")
+				.append(getParseFailures()).append(", partial carries ")
+				.append(getPartialCarries());
+		for (Queue queue : Queue.values()) {
+			out.append(", ").append(queue.name().toLowerCase())
+					.append(" depth ").append(getDepth(queue)).append('/')
+					.append(getMaxDepth(queue));
+		}
+
+		for (PacketTypes type : PacketTypes.values()) {
+			final int i = type.ordinal();
+			if (packetsOut.get(i) == 0 && packetsIn.get(i) == 0
+					&& evictions.get(i) == 0) {
+				continue;
+			}
+			out.append('\n').append(type.name());
+			if (packetsOut.get(i) > 0 || evictions.get(i) > 0) {
+				out.append(" out ").append(packetsOut.get(i)).append(" (")
+						.append(bytesOut.get(i)).append(" B, evicted ")
+						.append(evictions.get(i)).append(", wire ");
+				appendLatency(out, wireLatency[i]);
+				if (deliveryLatency[i].getCount() > 0 || retransmits.get(i) > 0) {
+					out.append(", retransmitted ").append(retransmits.get(i))
+							.append(", delivered ");
+					appendLatency(out, deliveryLatency[i]);
+				}
+				out.append(')');
+			}
+			if (packetsIn.get(i) > 0) {
+				out.append(" in ").append(packetsIn.get(i)).append(" (")
+						.append(bytesIn.get(i)).append(" B, dispatch ");
+				appendLatency(out, dispatchLatency[i]);
+				out.append(')');
+			}
+		}
+		return out.toString();
+	}
+
+	private static void appendLatency(final StringBuilder out,
+			final LatencyHistogram histogram) {
+		out.append("p50 ").append(toMillis(histogram.getPercentile(0.5)))
+				.append(" p99 ").append(toMillis(histogram.getPercentile(0.99)))
+				.append(" max ").append(toMillis(histogram.getMax()));
+	}
+
+	private static double toMillis(final long nanos) {
+		return Math.round(nanos / 1e4) / 100.0;
+	}
+}
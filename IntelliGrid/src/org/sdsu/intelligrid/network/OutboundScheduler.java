@@ -0,0 +1,190 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+/**
+ * Outbound packet queue that only keeps the newest value of each packet.
+ * <p>
+ * Every packet type owns one slot, except {@link PacketTypes#POWER_OUTAGE}
+ * which owns one slot per load and {@link PacketTypes#CLOCK_SYNC} which owns
+ * one for requests and one for offsets. Offering a packet for a slot that already
+ * holds an unsent packet replaces it in place, so a burst of updates can
+ * never push out a packet of another kind. Control packets are handed out
+ * before LED animation frames; within each group, slots go out in the order
+ * they were first filled.
+ * <p>
+ * A {@link PacketTypes#STATE_SNAPSHOT} goes ahead of every other control
+ * packet. Each packet still queued for a single setting holds the newest
+ * value of that setting, at least as new as the snapshot's, so it has to be
+ * applied after the snapshot rather than be undone by it.
+ * <p>
+ * Packets are copied into buffers owned by the scheduler, so it allocates
+ * nothing after construction. It is not thread safe; only the network
+ * thread uses it.
+ */
+public final class OutboundScheduler {
+
+	private static final int OUTAGE_LOADS = 6;
+	private static final int CLOCK_SYNC_KINDS = 2;
+
+	private static final int[] firstSlot = new int[PacketTypes.values().length];
+	private static final int slotCount;
+
+	static {
+		int slot = 0;
+		for (PacketTypes type : PacketTypes.values()) {
+			firstSlot[type.ordinal()] = slot;
+			slot += slotsFor(type);
+		}
+		slotCount = slot;
+	}
+
+	private static int slotsFor(final PacketTypes type) {
+		switch (type) {
+		case POWER_OUTAGE:
+			return OUTAGE_LOADS + 1;
+		case CLOCK_SYNC:
+			return CLOCK_SYNC_KINDS;
+		default:
+			return 1;
+		}
+	}
+
+	/**
+	 * FIFO of slot numbers. Each slot is queued at most once, so the capacity
+	 * never needs to exceed the number of slots.
+	 */
+	private static final class SlotQueue {
+
+		private final int[] slots = new int[slotCount];
+		private int head = 0;
+		private int size = 0;
+
+		private void add(final int slot) {
+			slots[(head + size) % slots.length] = slot;
+			size++;
+		}
+
+		private void addFirst(final int slot) {
+			head = (head + slots.length - 1) % slots.length;
+			slots[head] = slot;
+			size++;
+		}
+
+		private int remove() {
+			final int slot = slots[head];
+			head = (head + 1) % slots.length;
+			size--;
+			return slot;
+		}
+	}
+
+	private final IntelliGridPacket[] pending = new IntelliGridPacket[slotCount];
+	private final boolean[] queued = new boolean[slotCount];
+	private final SlotQueue control = new SlotQueue();
+	private final SlotQueue animation = new SlotQueue();
+
+	private volatile long offered = 0;
+	private volatile long coalesced = 0;
+
+	/**
+	 * @param packetCapacity
+	 *            the largest packet, in bytes, the scheduler has to hold
+	 */
+	public OutboundScheduler(final int packetCapacity) {
+		for (int i = 0; i < slotCount; i++) {
+			pending[i] = new IntelliGridPacket(packetCapacity);
+		}
+	}
+
+	/**
+	 * Queues a copy of a packet, replacing any unsent packet with the same
+	 * type and key.
+	 * 
+	 * @param packet
+	 *            the packet to send; its type and key pick the slot. The key
+	 *            is the load number for {@link PacketTypes#POWER_OUTAGE}
+	 *            packets, 0 for clock sync requests and 1 for clock offsets,
+	 *            and is ignored for other types
+	 * @return <tt>true</tt> if an unsent packet was replaced
+	 */
+	public boolean offer(final IntelliGridPacket packet) {
+		final PacketTypes type = packet.type;
+		final int slot = slotOf(type, packet.key);
+
+		offered++;
+		pending[slot].copyFrom(packet);
+		if (queued[slot]) {
+			coalesced++;
+			return true;
+		}
+
+		queued[slot] = true;
+		if (type == PacketTypes.STATE_SNAPSHOT) {
+			control.addFirst(slot);
+		} else if (type.control) {
+			control.add(slot);
+		} else {
+			animation.add(slot);
+		}
+		return false;
+	}
+
+	private static int slotOf(final PacketTypes type, final int key) {
+		final int slots = slotsFor(type);
+		return firstSlot[type.ordinal()] + (key >= 0 && key < slots ? key : 0);
+	}
+
+	/**
+	 * Moves the next packet to send into the given packet.
+	 * 
+	 * @param into
+	 *            the packet to copy the next packet into
+	 * @return <tt>true</tt> if a packet was copied, <tt>false</tt> if
+	 *         nothing is queued
+	 */
+	public boolean poll(final IntelliGridPacket into) {
+		final SlotQueue queue;
+		if (control.size > 0) {
+			queue = control;
+		} else if (animation.size > 0) {
+			queue = animation;
+		} else {
+			return false;
+		}
+
+		final int slot = queue.remove();
+		queued[slot] = false;
+		into.copyFrom(pending[slot]);
+		return true;
+	}
+
+	/**
+	 * Returns <tt>true</tt> if no packet is waiting to be sent.
+	 */
+	public boolean isEmpty() {
+		return control.size == 0 && animation.size == 0;
+	}
+
+	/**
+	 * Returns the number of packets waiting to be sent.
+	 */
+	public int size() {
+		return control.size + animation.size;
+	}
+
+	/**
+	 * Returns the number of packets offered to the scheduler.
+	 */
+	public long getOfferedCount() {
+		return offered;
+	}
+
+	/**
+	 * Returns the number of packets replaced by a newer packet for the same
+	 * slot before they were sent.
+	 */
+	public long getCoalescedCount() {
+		return coalesced;
+	}
+}
@@ -0,0 +1,78 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns the byte stream received from the model back into packets.
+ * <p>
+ * Implementations are fed bytes in whatever chunks they arrive in and keep
+ * any partially received packet until the rest of it shows up.
+ */
+public interface PacketDecoder {
+
+	/**
+	 * Receives every complete packet found by a decoder.
+	 */
+	public static interface Listener {
+
+		/**
+		 * Called once per complete packet. The payload array is reused by the
+		 * decoder and is only valid for the duration of the call.
+		 * 
+		 * @param type
+		 *            the type of the packet
+		 * @param payload
+		 *            the packet body, without the prefix
+		 * @param length
+		 *            the number of valid bytes in <tt>payload</tt>
+		 */
+		public void onPacket(final PacketTypes type, final byte[] payload,
+				final int length);
+	}
+
+	/**
+	 * Decodes a chunk of received bytes.
+	 * 
+	 * @param data
+	 *            the array holding the received bytes
+	 * @param offset
+	 *            the index of the first byte to decode
+	 * @param count
+	 *            the number of bytes to decode
+	 * @param listener
+	 *            the listener to notify of complete packets
+	 */
+	public void feed(final byte[] data, final int offset, final int count,
+			final Listener listener);
+
+	/**
+	 * Decodes the received bytes from a buffer's position to its limit, then
+	 * moves its position to the limit. The buffer may be direct, so socket
+	 * reads need not be copied into an array first.
+	 * 
+	 * @param data
+	 *            the buffer holding the received bytes
+	 * @param listener
+	 *            the listener to notify of complete packets
+	 */
+	public void feed(final ByteBuffer data, final Listener listener);
+
+	/**
+	 * Returns <tt>true</tt> if the decoder is holding the start of a packet
+	 * whose remainder has not arrived yet.
+	 */
+	public boolean hasPartialPacket();
+
+	/**
+	 * Returns the number of times input had to be thrown away because it did
+	 * not form a valid packet.
+	 */
+	public long getErrorCount();
+
+	/**
+	 * Discards any partially received packet, such as after a reconnect.
+	 */
+	public void reset();
+}
@@ -0,0 +1,78 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental parser for the model's legacy ASCII protocol.
+ * <p>
+ * Bytes are fed in whatever chunks they arrive in. A packet split across
+ * reads is kept in a reusable buffer until the rest of it shows up, so no
+ * allocation happens while parsing. Bytes that do not start a known packet
+ * are skipped until the next recognised prefix; prefixes of types that only
+ * exist in the framed protocol are not recognised.
+ */
+public final class PacketParser implements PacketDecoder {
+
+	private final byte[] payload = new byte[PacketTypes.maxPayloadLength()];
+	private PacketTypes current = null;
+	private int length = 0;
+
+	private boolean skipping = false;
+	private long errors = 0;
+
+	@Override
+	public void feed(final byte[] data, final int offset, final int count,
+			final Listener listener) {
+		final int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			step(data[i], listener);
+		}
+	}
+
+	@Override
+	public void feed(final ByteBuffer data, final Listener listener) {
+		final int end = data.limit();
+		for (int i = data.position(); i < end; i++) {
+			step(data.get(i), listener);
+		}
+		data.position(end);
+	}
+
+	private void step(final byte b, final Listener listener) {
+		if (current == null) {
+			current = PacketTypes.fromAsciiPrefix(b);
+			length = 0;
+			// Count each run of garbage once
+			if (current == null && !skipping) {
+				errors++;
+			}
+			skipping = current == null;
+		} else {
+			payload[length++] = b;
+		}
+
+		if (current != null && length == current.payloadLength()) {
+			final PacketTypes type = current;
+			current = null;
+			listener.onPacket(type, payload, length);
+		}
+	}
+
+	@Override
+	public boolean hasPartialPacket() {
+		return current != null;
+	}
+
+	@Override
+	public long getErrorCount() {
+		return errors;
+	}
+
+	@Override
+	public void reset() {
+		current = null;
+		length = 0;
+	}
+}
@@ -0,0 +1,120 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer, single-consumer ring of preallocated packets.
+ * <p>
+ * The producer {@link #claim()}s a free slot, fills it in and
+ * {@link #publish()}es it; the consumer {@link #peek()}s at the oldest
+ * published slot and {@link #release()}s it when done. No locks are taken
+ * and nothing is allocated after construction. Each side must only ever be
+ * used from one thread.
+ * <p>
+ * A full ring never discards what it holds. The producer's claim fails
+ * instead and the failure is counted in {@link #getOverflowCount()}.
+ */
+public final class PacketRing {
+
+	private final IntelliGridPacket[] slots;
+	private final int mask;
+
+	// Next slot to read; written only by the consumer
+	private final AtomicLong head = new AtomicLong();
+	// Next slot to write; written only by the producer
+	private final AtomicLong tail = new AtomicLong();
+
+	private long headCache = 0;
+	private long tailCache = 0;
+
+	private volatile long overflows = 0;
+
+	/**
+	 * @param capacity
+	 *            the number of slots; must be a power of two
+	 * @param packetCapacity
+	 *            the number of bytes each slot can hold
+	 */
+	public PacketRing(final int capacity, final int packetCapacity) {
+		if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+			throw new IllegalArgumentException(
+					"Capacity must be a power of two: " + capacity);
+		}
+		slots = new IntelliGridPacket[capacity];
+		for (int i = 0; i < capacity; i++) {
+			slots[i] = new IntelliGridPacket(packetCapacity);
+		}
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Returns the next free slot for the producer to fill in, or
+	 * <tt>null</tt> if the ring is full. Producer only.
+	 */
+	public IntelliGridPacket claim() {
+		final long t = tail.get();
+		if (t - headCache >= slots.length) {
+			headCache = head.get();
+			if (t - headCache >= slots.length) {
+				overflows++;
+				return null;
+			}
+		}
+		return slots[(int) t & mask];
+	}
+
+	/**
+	 * Makes the slot returned by the last {@link #claim()} visible to the
+	 * consumer. Producer only.
+	 */
+	public void publish() {
+		tail.lazySet(tail.get() + 1);
+	}
+
+	/**
+	 * Returns the oldest published slot, or <tt>null</tt> if the ring is
+	 * empty. Consumer only.
+	 */
+	public IntelliGridPacket peek() {
+		final long h = head.get();
+		if (h >= tailCache) {
+			tailCache = tail.get();
+			if (h >= tailCache) {
+				return null;
+			}
+		}
+		return slots[(int) h & mask];
+	}
+
+	/**
+	 * Hands the slot returned by the last {@link #peek()} back to the
+	 * producer. Consumer only.
+	 */
+	public void release() {
+		head.lazySet(head.get() + 1);
+	}
+
+	/**
+	 * Returns the number of published slots not yet released. Safe to call
+	 * from any thread, though the value may be stale.
+	 */
+	public int size() {
+		return (int) (tail.get() - head.get());
+	}
+
+	/**
+	 * Returns the number of slots in the ring.
+	 */
+	public int capacity() {
+		return slots.length;
+	}
+
+	/**
+	 * Returns the number of times the producer found the ring full.
+	 */
+	public long getOverflowCount() {
+		return overflows;
+	}
+}
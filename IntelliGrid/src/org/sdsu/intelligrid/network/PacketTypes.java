@@ -0,0 +1,128 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+/**
+ * Packet types understood by the demonstration model.
+ * <p>
+ * Every packet starts with a one character prefix and is exactly
+ * {@link #expectedLength} bytes long, prefix included. Control packets are
+ * sent ahead of LED animation frames when both are waiting.
+ * <p>
+ * {@link #HEARTBEAT} is sent by both sides: the application sends "H0" and a
+ * model that supports heartbeats answers "H1". Heartbeats are only sent on
+ * framed links.
+ * <p>
+ * {@link #CLOCK_SYNC} packets are only sent on framed links and vary in
+ * length; see {@link ClockSync}. {@link #ACK} packets are only sent by the
+ * model, on framed links, to acknowledge control packets; see
+ * {@link DeliveryWindow}. {@link #STATE_SNAPSHOT} packets are only sent on
+ * framed links; see {@link StateSnapshot}. {@link #ANALOG_READING} packets
+ * are only sent by the model, on framed links, and vary in length; see
+ * {@link AnalogIngest}.
+ */
+public enum PacketTypes {
+
+	SOLAR_GENERATION_LEVEL('S', 3, 1, true, false), WIND_GENERATION_LEVEL(
+			'W', 2, 3, true, false), BATTERY_STORAGE_LEVEL('B', 2, 3, true,
+			false), TIME_OF_DAY('T', 2, 5, true, false), POWER_OUTAGE('P', 3,
+			3, true, false), CAR_DETECT('E', 3, 1, true, false), SOLAR_DETECT(
+			'R', 3, 1, true, false), BALLOON_DETECT_RESET('M', 2, 5, true,
+			false), DIG_DETECT_RESET('D', 2, 5, true, false), LIGHT_ANIMATION(
+			'L', 178, 1, false, false), HEARTBEAT('H', 2, 1, true, true), CLOCK_SYNC(
+			'C', 18, 1, true, true), ACK('A', 6, 1, true, true), STATE_SNAPSHOT(
+			'F', 7, 1, true, true), ANALOG_READING('N', 68, 1, false, true);
+
+	private static final PacketTypes[] byPrefix = new PacketTypes[128];
+	// Only the types of the legacy ASCII protocol
+	private static final PacketTypes[] byAsciiPrefix = new PacketTypes[128];
+	private static final int maxPayloadLength;
+
+	static {
+		int max = 0;
+		for (PacketTypes type : values()) {
+			byPrefix[type.prefix] = type;
+			if (!type.framedOnly) {
+				byAsciiPrefix[type.prefix] = type;
+			}
+			max = Math.max(max, type.expectedLength - 1);
+		}
+		maxPayloadLength = max;
+	}
+
+	private final char prefix;
+	private final String prefixString;
+
+	public final int expectedLength;
+	public final int repeat;
+	public final boolean control;
+	/**
+	 * Whether the type only exists in the framed protocol. The ASCII parser
+	 * does not know the prefixes of such types, so a stray byte on a legacy
+	 * link cannot swallow the packets after it.
+	 */
+	public final boolean framedOnly;
+
+	private PacketTypes(final char prefix, final int expectedLength,
+			final int repeat, final boolean control, final boolean framedOnly) {
+		this.prefix = prefix;
+		this.prefixString = String.valueOf(prefix);
+		this.expectedLength = expectedLength;
+		this.repeat = repeat;
+		this.control = control;
+		this.framedOnly = framedOnly;
+	}
+
+	public String getPrefix() {
+		return prefixString;
+	}
+
+	public char getPrefixChar() {
+		return prefix;
+	}
+
+	/**
+	 * Returns the length of the packet body, excluding the prefix.
+	 */
+	public int payloadLength() {
+		return expectedLength - 1;
+	}
+
+	/**
+	 * Looks up the packet type that starts with the given byte.
+	 * 
+	 * @param prefix
+	 *            the first byte of a packet
+	 * @return the matching packet type, or <tt>null</tt> if no packet starts
+	 *         with that byte
+	 */
+	public static PacketTypes fromPrefix(final int prefix) {
+		if (prefix < 0 || prefix >= byPrefix.length) {
+			return null;
+		}
+		return byPrefix[prefix];
+	}
+
+	/**
+	 * Looks up the packet type of the legacy ASCII protocol that starts with
+	 * the given byte. Types that are {@link #framedOnly} are not found.
+	 * 
+	 * @param prefix
+	 *            the first byte of a packet
+	 * @return the matching packet type, or <tt>null</tt> if no ASCII packet
+	 *         starts with that byte
+	 */
+	public static PacketTypes fromAsciiPrefix(final int prefix) {
+		if (prefix < 0 || prefix >= byAsciiPrefix.length) {
+			return null;
+		}
+		return byAsciiPrefix[prefix];
+	}
+
+	/**
+	 * Returns the longest packet body of any packet type.
+	 */
+	public static int maxPayloadLength() {
+		return maxPayloadLength;
+	}
+}
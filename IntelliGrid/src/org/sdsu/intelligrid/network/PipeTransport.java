@@ -0,0 +1,117 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * In-process byte stream over a pair of {@link Pipe}s, for driving
+ * {@link NetworkInterface} from a test harness without a socket.
+ * <p>
+ * Create one with {@link #create()}; the harness writes what the model
+ * would send to {@link #getModelSink()} and reads what the application sent
+ * from {@link #getModelSource()}. Closing the transport closes the
+ * application's ends only, so the harness sees end of stream.
+ * <p>
+ * A pipe transport does not support reopening: once closed, for example
+ * after {@link JournalReplay} closes the sink at the end of a journal, it
+ * is {@link #isExhausted()} and the interface stops.
+ */
+public final class PipeTransport implements Transport {
+
+	private final Pipe toApplication;
+	private final Pipe toModel;
+
+	private SelectionKey sourceKey = null;
+	private SelectionKey sinkKey = null;
+
+	private PipeTransport(final Pipe toApplication, final Pipe toModel) {
+		this.toApplication = toApplication;
+		this.toModel = toModel;
+	}
+
+	/**
+	 * Creates a transport with fresh pipes in both directions.
+	 */
+	public static PipeTransport create() throws IOException {
+		return new PipeTransport(Pipe.open(), Pipe.open());
+	}
+
+	/**
+	 * Returns the channel the harness writes the model's traffic to.
+	 */
+	public Pipe.SinkChannel getModelSink() {
+		return toApplication.sink();
+	}
+
+	/**
+	 * Returns the channel the harness reads the application's traffic from.
+	 */
+	public Pipe.SourceChannel getModelSource() {
+		return toModel.source();
+	}
+
+	@Override
+	public boolean open(final Selector selector) throws IOException {
+		if (!toApplication.source().isOpen()) {
+			throw new IOException("Pipe closed");
+		}
+		toApplication.source().configureBlocking(false);
+		toModel.sink().configureBlocking(false);
+		sourceKey = toApplication.source().register(selector,
+				SelectionKey.OP_READ, this);
+		sinkKey = toModel.sink().register(selector, 0, this);
+		return true;
+	}
+
+	@Override
+	public boolean finishConnect() {
+		return true;
+	}
+
+	@Override
+	public int read(final ByteBuffer buffer) throws IOException {
+		return toApplication.source().read(buffer);
+	}
+
+	@Override
+	public int write(final ByteBuffer buffer) throws IOException {
+		return toModel.sink().write(buffer);
+	}
+
+	@Override
+	public void setWriteInterest(final boolean write) {
+		sinkKey.interestOps(write ? SelectionKey.OP_WRITE : 0);
+	}
+
+	@Override
+	public boolean isDatagram() {
+		return false;
+	}
+
+	@Override
+	public boolean isExhausted() {
+		return !toApplication.source().isOpen();
+	}
+
+	@Override
+	public void close() {
+		sourceKey = null;
+		sinkKey = null;
+		try {
+			toApplication.source().close();
+			toModel.sink().close();
+		} catch (IOException e) {
+			// Nothing left to do with them
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "pipe";
+	}
+}
@@ -0,0 +1,46 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+/**
+ * Wire formats the application can speak to the model.
+ */
+public enum ProtocolMode {
+
+	/**
+	 * Bare fixed-length ASCII packets, resent {@link PacketTypes#repeat}
+	 * times. Required by model firmware that predates framing.
+	 */
+	ASCII,
+
+	/**
+	 * Length-prefixed, CRC-checked frames as defined by {@link FrameCodec}.
+	 * Every packet is sent once.
+	 */
+	FRAMED;
+
+	/**
+	 * Creates a decoder for inbound traffic in this format.
+	 */
+	public PacketDecoder newDecoder() {
+		switch (this) {
+		case FRAMED:
+			return new FrameDecoder();
+		default:
+			return new PacketParser();
+		}
+	}
+
+	/**
+	 * Returns the number of bytes a packet with the given body takes on the
+	 * wire in this format.
+	 */
+	public int wireLength(final int payloadLength) {
+		switch (this) {
+		case FRAMED:
+			return FrameCodec.frameLength(payloadLength);
+		default:
+			return payloadLength + 1;
+		}
+	}
+}
@@ -0,0 +1,128 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+/**
+ * Everything the model shows of the simulation, sent as one
+ * {@link PacketTypes#STATE_SNAPSHOT} packet when a model connects instead of
+ * a packet per setting, so a board that restarted is right again within one
+ * round trip.
+ * <p>
+ * The body is binary:
+ * 
+ * <pre>
+ * snapshot: version[1] night[1] loads[1] battery[1] wind[1] faults[1]
+ * </pre>
+ * 
+ * <tt>version</tt> is {@link #VERSION}. Bit <tt>n - 1</tt> of
+ * <tt>loads</tt> is set if load <tt>n</tt> has power. <tt>battery</tt> and
+ * <tt>wind</tt> are the levels sent by {@link PacketTypes#BATTERY_STORAGE_LEVEL}
+ * and {@link PacketTypes#WIND_GENERATION_LEVEL}. Bit 0 of <tt>faults</tt> is
+ * set during a balloon fault and bit 1 during a dig fault. Later versions
+ * only add fields at the end, so a decoder takes any version from 1 on and
+ * reads the fields it knows.
+ * <p>
+ * A snapshot is a plain mutable value; the GL thread fills one in and
+ * encodes it, and the model decodes into one of its own.
+ */
+public final class StateSnapshot {
+
+	public static final int VERSION = 1;
+	public static final int LENGTH = 6;
+	public static final int LOADS = 6;
+
+	public static final int MAX_BATTERY_LEVEL = 3;
+	public static final int MAX_WIND_LEVEL = 5;
+
+	private static final int BALLOON_FAULT = 1;
+	private static final int DIG_FAULT = 2;
+
+	public boolean night;
+	// Bit n - 1 for load n
+	private int loads;
+	public int battery;
+	public int wind;
+	public boolean balloonFault;
+	public boolean digFault;
+
+	/**
+	 * Sets whether a load has power.
+	 * 
+	 * @param load
+	 *            the load, from 1 to {@link #LOADS}
+	 */
+	public void setLoad(final int load, final boolean on) {
+		if (on) {
+			loads |= 1 << (load - 1);
+		} else {
+			loads &= ~(1 << (load - 1));
+		}
+	}
+
+	/**
+	 * Returns <tt>true</tt> if the load, from 1 to {@link #LOADS}, has power.
+	 */
+	public boolean isLoadOn(final int load) {
+		return (loads & 1 << (load - 1)) != 0;
+	}
+
+	/**
+	 * Writes the packet body.
+	 * 
+	 * @return the number of bytes written, {@link #LENGTH}
+	 */
+	public int encode(final byte[] out, final int offset) {
+		out[offset] = (byte) VERSION;
+		out[offset + 1] = (byte) (night ? 1 : 0);
+		out[offset + 2] = (byte) loads;
+		out[offset + 3] = (byte) battery;
+		out[offset + 4] = (byte) wind;
+		out[offset + 5] = (byte) ((balloonFault ? BALLOON_FAULT : 0)
+				| (digFault ? DIG_FAULT : 0));
+		return LENGTH;
+	}
+
+	/**
+	 * Reads a packet body. Model side.
+	 * 
+	 * @return <tt>false</tt>, with the snapshot unchanged, if the body is
+	 *         malformed
+	 */
+	public boolean decode(final byte[] payload, final int length) {
+		if (length < LENGTH || payload[0] < 1) {
+			return false;
+		}
+		final int flag = payload[1] & 0xFF;
+		final int batteryLevel = payload[3] & 0xFF;
+		final int windLevel = payload[4] & 0xFF;
+		if (flag > 1 || batteryLevel > MAX_BATTERY_LEVEL
+				|| windLevel > MAX_WIND_LEVEL) {
+			return false;
+		}
+		night = flag == 1;
+		loads = payload[2] & ((1 << LOADS) - 1);
+		battery = batteryLevel;
+		wind = windLevel;
+		balloonFault = (payload[5] & BALLOON_FAULT) != 0;
+		digFault = (payload[5] & DIG_FAULT) != 0;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder out = new StringBuilder();
+		out.append(night ? "night" : "day").append(", loads ");
+		for (int load = 1; load <= LOADS; load++) {
+			out.append(isLoadOn(load) ? '1' : '0');
+		}
+		out.append(", battery ").append(battery).append(", wind ")
+				.append(wind);
+		if (balloonFault) {
+			out.append(", balloon fault");
+		}
+		if (digFault) {
+			out.append(", dig fault");
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,102 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reliable, ordered byte stream to the model over TCP.
+ */
+public final class TcpTransport implements Transport {
+
+	private final String host;
+	private final int port;
+
+	private SocketChannel channel = null;
+	private SelectionKey key = null;
+	private boolean connected = false;
+
+	/**
+	 * @param host
+	 *            the host name or IP address of the model
+	 * @param port
+	 *            the TCP port of the model
+	 */
+	public TcpTransport(final String host, final int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	@Override
+	public boolean open(final Selector selector) throws IOException {
+		channel = SocketChannel.open();
+		channel.configureBlocking(false);
+		connected = channel.connect(new InetSocketAddress(host, port));
+		key = channel.register(selector, connected ? SelectionKey.OP_READ
+				: SelectionKey.OP_CONNECT, this);
+		return connected;
+	}
+
+	@Override
+	public boolean finishConnect() throws IOException {
+		if (!connected && channel.finishConnect()) {
+			connected = true;
+			key.interestOps(SelectionKey.OP_READ);
+		}
+		return connected;
+	}
+
+	@Override
+	public int read(final ByteBuffer buffer) throws IOException {
+		return channel.read(buffer);
+	}
+
+	@Override
+	public int write(final ByteBuffer buffer) throws IOException {
+		return channel.write(buffer);
+	}
+
+	@Override
+	public void setWriteInterest(final boolean write) {
+		if (connected) {
+			key.interestOps(write ? SelectionKey.OP_READ
+					| SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		}
+	}
+
+	@Override
+	public boolean isDatagram() {
+		return false;
+	}
+
+	@Override
+	public boolean isExhausted() {
+		return false;
+	}
+
+	@Override
+	public void close() {
+		connected = false;
+		key = null;
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				Logger.getGlobal().log(Level.SEVERE, e.getMessage());
+			}
+			channel = null;
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "tcp://" + host + ":" + port;
+	}
+}
@@ -0,0 +1,307 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only, memory-mapped record of the traffic between the application
+ * and the model, for reproducing problems offline.
+ * <p>
+ * The file is mapped at a fixed size when it is created and filled from the
+ * front. It starts with a {@link #HEADER_LENGTH} byte header, followed by
+ * records laid out as follows, little endian:
+ * 
+ * <pre>
+ * offset  size  field
+ * 0       1     kind: {@link #INBOUND}, {@link #OUTBOUND}, {@link #CONNECTED}
+ *               or {@link #DISCONNECTED}; 0 marks the end of the journal
+ * 1       1     packet type prefix for outbound packets, otherwise 0
+ * 2       2     reserved
+ * 4       4     length of the data in bytes
+ * 8       8     {@link System#nanoTime()} when the event happened
+ * 16      n     data: the bytes read for inbound records, the packet as
+ *               written for outbound records, nothing for connection events
+ * </pre>
+ * 
+ * Inbound data is journaled as raw reads, before parsing, so a replay
+ * exercises the parser the same way the live link did. Recording copies the
+ * bytes into the mapping and nothing else; the operating system writes them
+ * out in the background. Once the file is full, further records are counted
+ * and dropped.
+ * <p>
+ * Only one thread may record to a journal.
+ */
+public final class TrafficJournal {
+
+	public static final byte INBOUND = 1;
+	public static final byte OUTBOUND = 2;
+	public static final byte CONNECTED = 3;
+	public static final byte DISCONNECTED = 4;
+
+	private static final int MAGIC = 0x314A4749; // "IGJ1"
+	private static final int VERSION = 1;
+
+	public static final int HEADER_LENGTH = 16;
+	public static final int RECORD_HEADER_LENGTH = 16;
+
+	private static final byte[] NO_DATA = new byte[0];
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer buffer;
+
+	private volatile long dropped = 0;
+
+	private TrafficJournal(final RandomAccessFile file,
+			final MappedByteBuffer buffer) {
+		this.file = file;
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Creates a new journal, replacing any file already at the path.
+	 * 
+	 * @param path
+	 *            the file to record to
+	 * @param capacity
+	 *            the size of the file in bytes, which bounds how much can be
+	 *            recorded
+	 * @return the journal, ready to record to
+	 * @throws IOException
+	 *             if the file cannot be created or mapped
+	 */
+	public static TrafficJournal create(final File path, final int capacity)
+			throws IOException {
+		final RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			file.setLength(0);
+			file.setLength(capacity);
+			final MappedByteBuffer buffer = file.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, capacity);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putLong(System.nanoTime());
+			return new TrafficJournal(file, buffer);
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Appends one record.
+	 * 
+	 * @param kind
+	 *            what happened, such as {@link #INBOUND}
+	 * @param type
+	 *            the type of an outbound packet, or <tt>null</tt>
+	 * @param data
+	 *            the array holding the bytes to record
+	 * @param offset
+	 *            the index of the first byte to record
+	 * @param length
+	 *            the number of bytes to record
+	 * @param time
+	 *            {@link System#nanoTime()} when the event happened
+	 */
+	public void record(final byte kind, final PacketTypes type,
+			final byte[] data, final int offset, final int length,
+			final long time) {
+		final int start = buffer.position();
+		// Keep room for the zero kind byte that ends the journal
+		if (buffer.remaining() < RECORD_HEADER_LENGTH + length + 1) {
+			dropped++;
+			return;
+		}
+
+		// The kind goes in last so a reader never sees half a record
+		buffer.position(start + 1);
+		buffer.put(type == null ? 0 : (byte) type.getPrefixChar());
+		buffer.putShort((short) 0);
+		buffer.putInt(length);
+		buffer.putLong(time);
+		buffer.put(data, offset, length);
+		buffer.put(start, kind);
+	}
+
+	/**
+	 * Appends a record of the bytes from a buffer's position to its limit,
+	 * leaving the buffer's position untouched.
+	 * 
+	 * @see #record(byte, PacketTypes, byte[], int, int, long)
+	 */
+	public void record(final byte kind, final PacketTypes type,
+			final ByteBuffer data, final long time) {
+		final int start = buffer.position();
+		final int length = data.remaining();
+		if (buffer.remaining() < RECORD_HEADER_LENGTH + length + 1) {
+			dropped++;
+			return;
+		}
+
+		buffer.position(start + 1);
+		buffer.put(type == null ? 0 : (byte) type.getPrefixChar());
+		buffer.putShort((short) 0);
+		buffer.putInt(length);
+		buffer.putLong(time);
+		buffer.put(data.duplicate());
+		buffer.put(start, kind);
+	}
+
+	/**
+	 * Appends a record without data, such as a connection event.
+	 */
+	public void record(final byte kind, final long time) {
+		record(kind, null, NO_DATA, 0, 0, time);
+	}
+
+	/**
+	 * Returns the number of records dropped because the journal was full.
+	 */
+	public long getDroppedCount() {
+		return dropped;
+	}
+
+	/**
+	 * Returns the number of bytes recorded, header included.
+	 */
+	public int size() {
+		return buffer.position();
+	}
+
+	/**
+	 * Writes everything recorded so far to the file and closes it. The
+	 * journal must not be recorded to afterwards.
+	 */
+	public void close() throws IOException {
+		buffer.force();
+		file.close();
+	}
+
+	/**
+	 * Opens a journal for reading.
+	 * 
+	 * @param path
+	 *            the journal file
+	 * @throws IOException
+	 *             if the file cannot be read or is not a journal
+	 */
+	public static Reader open(final File path) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+			final MappedByteBuffer buffer = file.getChannel().map(
+					FileChannel.MapMode.READ_ONLY, 0, file.length());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if (buffer.remaining() < HEADER_LENGTH
+					|| buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new IOException("Not a traffic journal: " + path);
+			}
+			final long startTime = buffer.getLong();
+			return new Reader(buffer, startTime);
+		}
+	}
+
+	/**
+	 * Steps through the records of a journal in order.
+	 */
+	public static final class Reader {
+
+		private final MappedByteBuffer buffer;
+		private final long startTime;
+
+		private byte kind;
+		private PacketTypes type;
+		private long time;
+		private byte[] data = new byte[FrameCodec.MAX_FRAME_LENGTH];
+		private int length;
+
+		private Reader(final MappedByteBuffer buffer, final long startTime) {
+			this.buffer = buffer;
+			this.startTime = startTime;
+		}
+
+		/**
+		 * Moves to the next record.
+		 * 
+		 * @return <tt>true</tt> if there was another record,
+		 *         <tt>false</tt> at the end of the journal
+		 */
+		public boolean next() {
+			if (buffer.remaining() < RECORD_HEADER_LENGTH) {
+				return false;
+			}
+			final int start = buffer.position();
+			kind = buffer.get(start);
+			if (kind == 0) {
+				return false;
+			}
+
+			buffer.position(start + 1);
+			final byte prefix = buffer.get();
+			buffer.getShort();
+			length = buffer.getInt();
+			time = buffer.getLong();
+			if (length < 0 || length > buffer.remaining()) {
+				return false;
+			}
+			if (length > data.length) {
+				data = new byte[length];
+			}
+			buffer.get(data, 0, length);
+			type = prefix == 0 ? null : PacketTypes.fromPrefix(prefix);
+			return true;
+		}
+
+		/**
+		 * Goes back to the first record.
+		 */
+		public void rewind() {
+			buffer.position(HEADER_LENGTH);
+		}
+
+		public byte getKind() {
+			return kind;
+		}
+
+		/**
+		 * Returns the type of an outbound packet, or <tt>null</tt> for other
+		 * records.
+		 */
+		public PacketTypes getType() {
+			return type;
+		}
+
+		/**
+		 * Returns {@link System#nanoTime()} when the event was recorded. Only
+		 * differences between times in the same journal are meaningful.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * Returns {@link System#nanoTime()} when the journal was created.
+		 */
+		public long getStartTime() {
+			return startTime;
+		}
+
+		/**
+		 * Returns the data of the current record. The array is reused by
+		 * {@link #next()}.
+		 */
+		public byte[] getData() {
+			return data;
+		}
+
+		public int getLength() {
+			return length;
+		}
+	}
+}
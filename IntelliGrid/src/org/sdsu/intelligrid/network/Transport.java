@@ -0,0 +1,98 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * One way of moving bytes between the application and the model.
+ * <p>
+ * A transport is driven entirely by the network thread of
+ * {@link NetworkInterface}. It registers non-blocking channels with that
+ * thread's {@link Selector}, attaching itself to every key, and the thread
+ * calls back into it when a key is ready.
+ * <p>
+ * Being opened again after being closed, to reconnect, is optional. A
+ * transport that cannot be reopened throws an {@link IOException} from
+ * {@link #open(Selector)}, which the network thread treats as any other
+ * failed connection attempt, and reports itself {@link #isExhausted()} so
+ * the network thread stops retrying.
+ */
+public interface Transport {
+
+	/**
+	 * Starts connecting and registers the transport's channels with a
+	 * selector, with this transport as the attachment of every key.
+	 * 
+	 * @param selector
+	 *            the selector of the network thread
+	 * @return <tt>true</tt> if the transport is connected already,
+	 *         <tt>false</tt> if {@link #finishConnect()} has to be called once
+	 *         a key is ready for {@link SelectionKey#OP_CONNECT}
+	 * @throws IOException
+	 *             if the transport cannot be opened, including if it has
+	 *             been closed and does not support reopening
+	 */
+	public boolean open(final Selector selector) throws IOException;
+
+	/**
+	 * Completes a connection started by {@link #open(Selector)}.
+	 * 
+	 * @return <tt>true</tt> if the transport is now connected
+	 * @throws IOException
+	 *             if the connection failed
+	 */
+	public boolean finishConnect() throws IOException;
+
+	/**
+	 * Reads whatever has arrived into a buffer.
+	 * 
+	 * @return the number of bytes read, or -1 if the other end closed the
+	 *         connection
+	 * @throws IOException
+	 *             if the connection failed
+	 */
+	public int read(final ByteBuffer buffer) throws IOException;
+
+	/**
+	 * Writes as much of a buffer as the transport will take without
+	 * blocking. A datagram transport takes all of it, as one datagram, or
+	 * none of it.
+	 * 
+	 * @return the number of bytes written
+	 * @throws IOException
+	 *             if the connection failed
+	 */
+	public int write(final ByteBuffer buffer) throws IOException;
+
+	/**
+	 * Asks to be told, or to stop being told, when the transport can take
+	 * more bytes. Interest in reading is always kept.
+	 */
+	public void setWriteInterest(final boolean write);
+
+	/**
+	 * Returns <tt>true</tt> if every write is sent as a separate message that
+	 * may be lost or reordered.
+	 */
+	public boolean isDatagram();
+
+	/**
+	 * Returns <tt>true</tt> once the transport has been closed and cannot be
+	 * opened again, so there is no point in reconnecting.
+	 */
+	public boolean isExhausted();
+
+	/**
+	 * Closes the transport's channels. Never throws.
+	 */
+	public void close();
+
+	/**
+	 * Returns a description of the other end for the log.
+	 */
+	public String getName();
+}
@@ -0,0 +1,121 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Unreliable datagram lane to the model over UDP.
+ * <p>
+ * Each write goes out as one datagram. A datagram that is lost, or rejected
+ * because nothing listens on the model's port yet, is simply gone; nothing
+ * queued behind it waits for it. That suits packets that are superseded
+ * shortly after anyway, such as LED animation frames.
+ */
+public final class UdpTransport implements Transport {
+
+	private final String host;
+	private final int port;
+
+	private DatagramChannel channel = null;
+	private SelectionKey key = null;
+
+	private volatile long unreachable = 0;
+
+	/**
+	 * @param host
+	 *            the host name or IP address of the model
+	 * @param port
+	 *            the UDP port of the model
+	 */
+	public UdpTransport(final String host, final int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	@Override
+	public boolean open(final Selector selector) throws IOException {
+		channel = DatagramChannel.open();
+		channel.configureBlocking(false);
+		channel.connect(new InetSocketAddress(host, port));
+		key = channel.register(selector, SelectionKey.OP_READ, this);
+		return true;
+	}
+
+	@Override
+	public boolean finishConnect() {
+		return true;
+	}
+
+	@Override
+	public int read(final ByteBuffer buffer) throws IOException {
+		try {
+			return channel.read(buffer);
+		} catch (PortUnreachableException e) {
+			// Reported for an earlier datagram; the lane stays usable
+			unreachable++;
+			return 0;
+		}
+	}
+
+	@Override
+	public int write(final ByteBuffer buffer) throws IOException {
+		final int length = buffer.remaining();
+		try {
+			return channel.write(buffer);
+		} catch (PortUnreachableException e) {
+			unreachable++;
+			buffer.position(buffer.limit());
+			return length;
+		}
+	}
+
+	@Override
+	public void setWriteInterest(final boolean write) {
+		key.interestOps(write ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+				: SelectionKey.OP_READ);
+	}
+
+	@Override
+	public boolean isDatagram() {
+		return true;
+	}
+
+	@Override
+	public boolean isExhausted() {
+		return false;
+	}
+
+	@Override
+	public void close() {
+		key = null;
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				Logger.getGlobal().log(Level.SEVERE, e.getMessage());
+			}
+			channel = null;
+		}
+	}
+
+	/**
+	 * Returns the number of times the model's port was reported unreachable.
+	 */
+	public long getUnreachableCount() {
+		return unreachable;
+	}
+
+	@Override
+	public String getName() {
+		return "udp://" + host + ":" + port;
+	}
+}
@@ -3,8 +3,13 @@
 package org.sdsu.intelligrid.simulation;
 
 import org.sdsu.intelligrid.Global;
+import org.sdsu.intelligrid.network.AnalogIngest;
+import org.sdsu.intelligrid.network.CommandCoalescer;
+import org.sdsu.intelligrid.network.ConnectionManager;
+import org.sdsu.intelligrid.network.LatencyTrace;
 import org.sdsu.intelligrid.network.MainNetworkHandler;
-import org.sdsu.intelligrid.network.MainNetworkHandler.PacketTypes;
+import org.sdsu.intelligrid.network.ModelCommand;
+import org.sdsu.intelligrid.network.StateSnapshot;
 
 /**
  * Container for electrical simulation.
@@ -254,16 +259,14 @@ public class Simulation {
 				balloonFaultTimeOut -= hours;
 				if (balloonFaultTimeOut <= 0.0) {
 					Global.getMainUI().reportBalloonFaultEnded();
-					MainNetworkHandler.constructAndSendPacket(
-							PacketTypes.BALLOON_DETECT_RESET, false);
+					MainNetworkHandler.sendBalloonFault(false);
 				}
 			}
 			if (digFaultTimeOut > 0.0) {
 				digFaultTimeOut -= hours;
 				if (digFaultTimeOut <= 0.0) {
 					Global.getMainUI().reportDigFaultEnded();
-					MainNetworkHandler.constructAndSendPacket(
-							PacketTypes.DIG_DETECT_RESET, false);
+					MainNetworkHandler.sendDigFault(false);
 				}
 			}
 			if (genericFaultTimeOut > 0.0) {
@@ -481,7 +484,8 @@ public class Simulation {
 	public SimulationData data;
 	public FaultManager faultManager;
 
-	private boolean hasConnectionBeenMade = false;
+	private final CommandCoalescer coalescer = new CommandCoalescer();
+	private final StateSnapshot snapshot = new StateSnapshot();
 
 	/**
 	 * This is the initialization function for the simulation.
@@ -491,6 +495,123 @@ public class Simulation {
 		faultManager = new FaultManager();
 	}
 
+	/**
+	 * Returns the number of inputs from the models that were dropped because
+	 * a later reading of the same sensor arrived before the same tick.
+	 */
+	public long getCollapsedCommands() {
+		return coalescer.getCollapsedCount();
+	}
+
+	/**
+	 * Applies one input from the model.
+	 * 
+	 * @param command
+	 *            the decoded input
+	 */
+	public void apply(final ModelCommand command) {
+		switch (command.kind) {
+		case SOLAR_LEVEL:
+			switch (command.target) {
+			case 0:
+				data.renewableSolarLevel.changeOverTime(command.value, 2.0,
+						false);
+				break;
+			case 1:
+				data.middleSolarLevel.changeOverTime(command.value, 2.0, false);
+				break;
+			case 2:
+				data.lowerSolarLevel.changeOverTime(command.value, 2.0, false);
+				break;
+			default:
+				break;
+			}
+			break;
+		case WIND_LEVEL:
+			data.windGenerationLevel.changeOverTime(command.value, 1.0, false);
+			break;
+		case ELECTRIC_VEHICLE:
+			switch (command.target) {
+			case 0:
+				data.electricVehicleL1.changeOverTime(command.value, 1.0,
+						false);
+				break;
+			case 1:
+				data.electricVehicleL2.changeOverTime(command.value, 1.0,
+						false);
+				break;
+			case 2:
+				data.electricVehicleL3.changeOverTime(command.value, 1.0,
+						false);
+				break;
+			default:
+				break;
+			}
+			break;
+		case SOLAR_PANEL:
+			switch (command.target) {
+			case 0:
+				data.solarPanelM1.changeOverTime(command.value, 1.0, false);
+				break;
+			case 1:
+				data.solarPanelM2.changeOverTime(command.value, 1.0, false);
+				break;
+			case 2:
+				data.solarPanelL1.changeOverTime(command.value, 1.0, false);
+				break;
+			case 3:
+				data.solarPanelL2.changeOverTime(command.value, 1.0, false);
+				break;
+			case 4:
+				data.solarPanelL3.changeOverTime(command.value, 1.0, false);
+				break;
+			default:
+				break;
+			}
+			break;
+		case BALLOON_FAULT:
+			if (!faultManager.isBalloonFaultOngoing()) {
+				faultManager.startBalloonFault();
+			}
+			break;
+		case DIG_FAULT:
+			if (!faultManager.isDigFaultOngoing()) {
+				faultManager.startDigFault();
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Applies one filtered analog reading from the model.
+	 * 
+	 * @param channel
+	 *            the channel, as numbered by {@link AnalogIngest}
+	 * @param reading
+	 *            the generation level from 0 to 1
+	 */
+	public void applyAnalog(final int channel, final double reading) {
+		final double time = 1.0 / AnalogIngest.OUTPUT_RATE;
+		switch (channel) {
+		case AnalogIngest.SOLAR_RENEWABLE:
+			data.renewableSolarLevel.changeOverTime(reading, time, false);
+			break;
+		case AnalogIngest.SOLAR_MIDDLE:
+			data.middleSolarLevel.changeOverTime(reading, time, false);
+			break;
+		case AnalogIngest.SOLAR_LOWER:
+			data.lowerSolarLevel.changeOverTime(reading, time, false);
+			break;
+		case AnalogIngest.WIND:
+			data.windGenerationLevel.changeOverTime(reading, time, false);
+			break;
+		default:
+			break;
+		}
+	}
+
 	/**
 	 * This is the primary step driver for the simulation. Call all time-based
 	 * functions from here.
@@ -500,6 +621,39 @@ public class Simulation {
 	 *            in seconds
 	 */
 	public void advance(final float amount) {
+		// Input from the models, applied in one place before anything else.
+		// Only the last reading of each sensor since the previous tick counts.
+		final ConnectionManager connections = Global.getConnectionManager();
+		final LatencyTrace trace = connections.getLatencyTrace();
+		while (true) {
+			final ModelCommand command = connections.poll();
+			if (command == null) {
+				break;
+			}
+			if (trace != null) {
+				trace.markDispatched(connections.getPolledTime());
+			}
+			coalescer.add(command);
+		}
+		while (true) {
+			final ModelCommand command = coalescer.poll();
+			if (command == null) {
+				break;
+			}
+			apply(command);
+		}
+		if (trace != null) {
+			trace.markApplied();
+		}
+		// Filtered analog readings, at most one per channel per tick, each
+		// eased in over the time until the next
+		for (int channel = 0; channel < AnalogIngest.CHANNELS; channel++) {
+			final float reading = connections.pollAnalog(channel);
+			if (!Float.isNaN(reading)) {
+				applyAnalog(channel, reading);
+			}
+		}
+
 		final double hours = (double) amount * data.timeScale / 3600.0;
 
 		data.time += hours;
@@ -517,97 +671,33 @@ public class Simulation {
 
 		// Time of Day packet (sent on day/night switch)
 		if (data.time >= 6.0 && data.time - hours < 6.0) {
-			MainNetworkHandler.constructAndSendPacket(PacketTypes.TIME_OF_DAY,
-					false);
+			MainNetworkHandler.sendTimeOfDay(false);
 		} else if (data.time >= 19.5 && data.time - hours < 19.5) {
-			MainNetworkHandler.constructAndSendPacket(PacketTypes.TIME_OF_DAY,
-					true);
+			MainNetworkHandler.sendTimeOfDay(true);
 		}
 
-		// Time of Day packet (sent on connect)
-		if (Global.getNetworkInterface().isConnected()
-				&& !hasConnectionBeenMade) {
-			hasConnectionBeenMade = true;
-			if (data.time >= 6.0 && data.time < 19.5) {
-				MainNetworkHandler.constructAndSendPacket(
-						PacketTypes.TIME_OF_DAY, false);
-			} else {
-				MainNetworkHandler.constructAndSendPacket(
-						PacketTypes.TIME_OF_DAY, true);
-			}
-			if (data.load1WasOn) {
-				MainNetworkHandler.constructAndSendPacket(
-						PacketTypes.POWER_OUTAGE,
-						new MainNetworkHandler.OutageData(1, true));
-			} else {
-				MainNetworkHandler.constructAndSendPacket(
-						PacketTypes.POWER_OUTAGE,
-						new MainNetworkHandler.OutageData(1, false));
-			}
-			if (data.load2WasOn) {
-				MainNetworkHandler.constructAndSendPacket(
-						PacketTypes.POWER_OUTAGE,
-						new MainNetworkHandler.OutageData(2, true));
-			} else {
-				MainNetworkHandler.constructAndSendPacket(
-						PacketTypes.POWER_OUTAGE,
-						new MainNetworkHandler.OutageData(2, false));
-			}
-			if (data.load3WasOn) {
-				MainNetworkHandler.constructAndSendPacket(
-						PacketTypes.POWER_OUTAGE,
-						new MainNetworkHandler.OutageData(3, true));
-			} else {
-				MainNetworkHandler.constructAndSendPacket(
-						PacketTypes.POWER_OUTAGE,
-						new MainNetworkHandler.OutageData(3, false));
-			}
-			if (data.load4WasOn) {
-				MainNetworkHandler.constructAndSendPacket(
-						PacketTypes.POWER_OUTAGE,
-						new MainNetworkHandler.OutageData(4, true));
-			} else {
-				MainNetworkHandler.constructAndSendPacket(
-						PacketTypes.POWER_OUTAGE,
-						new MainNetworkHandler.OutageData(4, false));
-			}
-			if (data.load5WasOn) {
-				MainNetworkHandler.constructAndSendPacket(
-						PacketTypes.POWER_OUTAGE,
-						new MainNetworkHandler.OutageData(5, true));
-			} else {
-				MainNetworkHandler.constructAndSendPacket(
-						PacketTypes.POWER_OUTAGE,
-						new MainNetworkHandler.OutageData(5, false));
-			}
-			if (data.load6WasOn) {
-				MainNetworkHandler.constructAndSendPacket(
-						PacketTypes.POWER_OUTAGE,
-						new MainNetworkHandler.OutageData(6, true));
-			} else {
-				MainNetworkHandler.constructAndSendPacket(
-						PacketTypes.POWER_OUTAGE,
-						new MainNetworkHandler.OutageData(6, false));
-			}
-			MainNetworkHandler.constructAndSendPacket(
-					PacketTypes.BATTERY_STORAGE_LEVEL,
-					(int) linear(SimulationData.BatteryLevel, time));
+		// Full state, then an LED keyframe (sent whenever a model becomes ready)
+		if (connections.checkNewConnections()) {
+			snapshot.night = !(data.time >= 6.0 && data.time < 19.5);
+			snapshot.setLoad(1, data.load1WasOn);
+			snapshot.setLoad(2, data.load2WasOn);
+			snapshot.setLoad(3, data.load3WasOn);
+			snapshot.setLoad(4, data.load4WasOn);
+			snapshot.setLoad(5, data.load5WasOn);
+			snapshot.setLoad(6, data.load6WasOn);
+			snapshot.battery = (int) linear(SimulationData.BatteryLevel, time);
 			if (data.windGenerationLevel.get() < 0.1) {
-				MainNetworkHandler.constructAndSendPacket(
-						PacketTypes.WIND_GENERATION_LEVEL, 0);
+				snapshot.wind = 0;
 			} else if (data.windGenerationLevel.get() < 0.4) {
-				MainNetworkHandler.constructAndSendPacket(
-						PacketTypes.WIND_GENERATION_LEVEL, 1);
+				snapshot.wind = 1;
 			} else if (data.windGenerationLevel.get() < 0.7) {
-				MainNetworkHandler.constructAndSendPacket(
-						PacketTypes.WIND_GENERATION_LEVEL, 2);
+				snapshot.wind = 2;
 			} else {
-				MainNetworkHandler.constructAndSendPacket(
-						PacketTypes.WIND_GENERATION_LEVEL, 3);
+				snapshot.wind = 3;
 			}
-		} else if (!Global.getNetworkInterface().isConnected()
-				&& hasConnectionBeenMade) {
-			hasConnectionBeenMade = false;
+			snapshot.balloonFault = faultManager.isBalloonFaultOngoing();
+			snapshot.digFault = faultManager.isDigFaultOngoing();
+			MainNetworkHandler.sendState(snapshot);
 		}
 
 		// Update mutable values (do not touch)
@@ -993,64 +1083,52 @@ public class Simulation {
 
 		if (Load1a <= 0 && data.load1WasOn) {
 			data.load1WasOn = false;
-			MainNetworkHandler.constructAndSendPacket(PacketTypes.POWER_OUTAGE,
-					new MainNetworkHandler.OutageData(1, false));
+			MainNetworkHandler.sendPowerOutage(1, false);
 		}
 		if (Load2a <= 0 && data.load2WasOn) {
 			data.load2WasOn = false;
-			MainNetworkHandler.constructAndSendPacket(PacketTypes.POWER_OUTAGE,
-					new MainNetworkHandler.OutageData(2, false));
+			MainNetworkHandler.sendPowerOutage(2, false);
 		}
 		if (Load3a <= 0 && data.load3WasOn) {
 			data.load3WasOn = false;
-			MainNetworkHandler.constructAndSendPacket(PacketTypes.POWER_OUTAGE,
-					new MainNetworkHandler.OutageData(3, false));
+			MainNetworkHandler.sendPowerOutage(3, false);
 		}
 		if (Load4a <= 0 && data.load4WasOn) {
 			data.load4WasOn = false;
-			MainNetworkHandler.constructAndSendPacket(PacketTypes.POWER_OUTAGE,
-					new MainNetworkHandler.OutageData(4, false));
+			MainNetworkHandler.sendPowerOutage(4, false);
 		}
 		if (Load5a <= 0 && data.load5WasOn) {
 			data.load5WasOn = false;
-			MainNetworkHandler.constructAndSendPacket(PacketTypes.POWER_OUTAGE,
-					new MainNetworkHandler.OutageData(5, false));
+			MainNetworkHandler.sendPowerOutage(5, false);
 		}
 		if (Load6a <= 0 && data.load6WasOn) {
 			data.load6WasOn = false;
-			MainNetworkHandler.constructAndSendPacket(PacketTypes.POWER_OUTAGE,
-					new MainNetworkHandler.OutageData(6, false));
+			MainNetworkHandler.sendPowerOutage(6, false);
 		}
 
 		if (Load1a > 0 && !data.load1WasOn) {
 			data.load1WasOn = true;
-			MainNetworkHandler.constructAndSendPacket(PacketTypes.POWER_OUTAGE,
-					new MainNetworkHandler.OutageData(1, true));
+			MainNetworkHandler.sendPowerOutage(1, true);
 		}
 		if (Load2a > 0 && !data.load2WasOn) {
 			data.load2WasOn = true;
-			MainNetworkHandler.constructAndSendPacket(PacketTypes.POWER_OUTAGE,
-					new MainNetworkHandler.OutageData(2, true));
+			MainNetworkHandler.sendPowerOutage(2, true);
 		}
 		if (Load3a > 0 && !data.load3WasOn) {
 			data.load3WasOn = true;
-			MainNetworkHandler.constructAndSendPacket(PacketTypes.POWER_OUTAGE,
-					new MainNetworkHandler.OutageData(3, true));
+			MainNetworkHandler.sendPowerOutage(3, true);
 		}
 		if (Load4a > 0 && !data.load4WasOn) {
 			data.load4WasOn = true;
-			MainNetworkHandler.constructAndSendPacket(PacketTypes.POWER_OUTAGE,
-					new MainNetworkHandler.OutageData(4, true));
+			MainNetworkHandler.sendPowerOutage(4, true);
 		}
 		if (Load5a > 0 && !data.load5WasOn) {
 			data.load5WasOn = true;
-			MainNetworkHandler.constructAndSendPacket(PacketTypes.POWER_OUTAGE,
-					new MainNetworkHandler.OutageData(5, true));
+			MainNetworkHandler.sendPowerOutage(5, true);
 		}
 		if (Load6a > 0 && !data.load6WasOn) {
 			data.load6WasOn = true;
-			MainNetworkHandler.constructAndSendPacket(PacketTypes.POWER_OUTAGE,
-					new MainNetworkHandler.OutageData(6, true));
+			MainNetworkHandler.sendPowerOutage(6, true);
 		}
 
 		double transTotal = (trA + trM) * data.capacity;
@@ -1065,8 +1143,7 @@ public class Simulation {
 
 		if (Math.round(BatteryLevel) != data.lastBatteryLevel) {
 			data.lastBatteryLevel = (int) Math.round(BatteryLevel);
-			MainNetworkHandler.constructAndSendPacket(
-					PacketTypes.BATTERY_STORAGE_LEVEL, data.lastBatteryLevel);
+			MainNetworkHandler.sendBatteryStorageLevel(data.lastBatteryLevel);
 		}
 
 		// Total SDGE Power
@@ -1193,5 +1270,81 @@ public class Simulation {
 		public static boolean traJ;
 		public static boolean traL;
 		public static boolean tieG;
+
+		/**
+		 * Names of the values written by {@link #snapshot(double[])}, in
+		 * order.
+		 */
+		public static final String[] FIELDS = {
+				"Load1", "Load2", "Load3", "Load4", "Load5", "Load6", "Load1r",
+				"Load2r", "Load3r", "Load4r", "Load5r", "Load6r", "Load1a",
+				"Load2a", "Load3a", "Load4a", "Load5a", "Load6a", "trA", "trB",
+				"trC", "trD", "trE", "trF", "trG", "trH", "trI", "trJ", "trK",
+				"trL", "trM", "PowPlant", "WindTurbines", "BatteryStorage",
+				"BatteryLevel", "transTotal", "SDGE", "GenScale", "currentTime",
+				"timeScale", "swiABC", "swiCDE", "swiEFG", "swiIHG", "swiKJI",
+				"swiMLK", "traB", "traD", "traF", "traH", "traJ", "traL",
+				"tieG" };
+
+		/**
+		 * Copies every value into an array, in the order of {@link #FIELDS},
+		 * with switches as 1 for true and 0 for false.
+		 */
+		public static void snapshot(final double[] out) {
+			int i = 0;
+			out[i++] = Load1;
+			out[i++] = Load2;
+			out[i++] = Load3;
+			out[i++] = Load4;
+			out[i++] = Load5;
+			out[i++] = Load6;
+			out[i++] = Load1r;
+			out[i++] = Load2r;
+			out[i++] = Load3r;
+			out[i++] = Load4r;
+			out[i++] = Load5r;
+			out[i++] = Load6r;
+			out[i++] = Load1a;
+			out[i++] = Load2a;
+			out[i++] = Load3a;
+			out[i++] = Load4a;
+			out[i++] = Load5a;
+			out[i++] = Load6a;
+			out[i++] = trA;
+			out[i++] = trB;
+			out[i++] = trC;
+			out[i++] = trD;
+			out[i++] = trE;
+			out[i++] = trF;
+			out[i++] = trG;
+			out[i++] = trH;
+			out[i++] = trI;
+			out[i++] = trJ;
+			out[i++] = trK;
+			out[i++] = trL;
+			out[i++] = trM;
+			out[i++] = PowPlant;
+			out[i++] = WindTurbines;
+			out[i++] = BatteryStorage;
+			out[i++] = BatteryLevel;
+			out[i++] = transTotal;
+			out[i++] = SDGE;
+			out[i++] = GenScale;
+			out[i++] = currentTime;
+			out[i++] = timeScale;
+			out[i++] = swiABC;
+			out[i++] = swiCDE;
+			out[i++] = swiEFG;
+			out[i++] = swiIHG;
+			out[i++] = swiKJI;
+			out[i++] = swiMLK;
+			out[i++] = traB ? 1.0 : 0.0;
+			out[i++] = traD ? 1.0 : 0.0;
+			out[i++] = traF ? 1.0 : 0.0;
+			out[i++] = traH ? 1.0 : 0.0;
+			out[i++] = traJ ? 1.0 : 0.0;
+			out[i++] = traL ? 1.0 : 0.0;
+			out[i++] = tieG ? 1.0 : 0.0;
+		}
 	}
 }
@@ -0,0 +1,238 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.sdsu.intelligrid.network.DashboardCodec;
+import org.sdsu.intelligrid.network.DashboardServer;
+import org.sdsu.intelligrid.network.LedFrameCodec;
+
+/**
+ * Minimal secondary dashboard, for checking the application's dashboard
+ * stream from a desktop.
+ * <p>
+ * Connects to a {@link DashboardServer}, rebuilds the state from the stream
+ * and prints a summary at a fixed interval: the values, how many full
+ * snapshots and deltas arrived, and any gaps, which mean the stream is
+ * broken. A slow viewer can be imitated by pausing between reads, which
+ * makes the server skip updates for this client and resynchronise it with
+ * full snapshots.
+ * <p>
+ * With <tt>--demo on</tt> the client also starts a server of its own on the
+ * port, fed with made-up values and LED states, so the stream can be tried
+ * without the application.
+ * 
+ * <pre>
+ * java org.sdsu.intelligrid.tools.DashboardClient [--option value]...
+ * 
+ * --host NAME      server address (localhost)
+ * --port N         server port (9800)
+ * --slow MS        pause between reads of at most 64 bytes (0, no pause)
+ * --report S       seconds between reports (5)
+ * --demo on|off    serve made-up state on the port as well (off)
+ * --demo-rate HZ   updates per second sent by the demo server (10)
+ * </pre>
+ */
+public final class DashboardClient {
+
+	private static final int READ_SIZE = 4096;
+	private static final int SLOW_READ_SIZE = 64;
+	private static final int SLOW_RECEIVE_BUFFER = 1024;
+	private static final int DEMO_VALUES = 48;
+	private static final int DEMO_PUBLISH_MS = 16;
+
+	private String host = "localhost";
+	private int port = 9800;
+	private long slow = 0;
+	private double reportInterval = 5.0;
+	private boolean demo = false;
+	private float demoRate = 10.0f;
+
+	public static void main(final String[] args) {
+		final DashboardClient client = new DashboardClient();
+		try {
+			client.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(2);
+			return;
+		}
+		if (client.demo) {
+			client.startDemo();
+		}
+		client.follow();
+	}
+
+	private void parse(final String[] args) {
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for "
+						+ args[i]);
+			}
+			final String name = args[i];
+			final String value = args[i + 1];
+			try {
+				switch (name) {
+				case "--host":
+					host = value;
+					break;
+				case "--port":
+					port = Integer.parseInt(value);
+					break;
+				case "--slow":
+					slow = Long.parseLong(value);
+					break;
+				case "--report":
+					reportInterval = Double.parseDouble(value);
+					break;
+				case "--demo":
+					demo = value.equals("on");
+					break;
+				case "--demo-rate":
+					demoRate = Float.parseFloat(value);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option "
+							+ name);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad value for " + name
+						+ ": " + value);
+			}
+		}
+	}
+
+	/**
+	 * Starts a dashboard server on the port, published to by a thread that
+	 * changes a few values and LEDs at display rate.
+	 */
+	private void startDemo() {
+		final String[] names = new String[DEMO_VALUES];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = "Value" + i;
+		}
+		final DashboardServer server = new DashboardServer(port, demoRate,
+				names);
+		final Thread serverThread = new Thread(server, "Dashboard");
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		final Thread publisher = new Thread("Demo publisher") {
+
+			@Override
+			public void run() {
+				final double[] values = new double[DEMO_VALUES];
+				final byte[] leds = new byte[LedFrameCodec.LED_COUNT];
+				long tick = 0;
+				while (true) {
+					// A handful of values drift, the rest hold still
+					for (int i = 0; i < 6; i++) {
+						values[i] = Math.sin(tick * 0.01 + i);
+					}
+					Arrays.fill(leds, (byte) '0');
+					for (int i = 0; i < 8; i++) {
+						leds[(int) ((tick + i) % leds.length)] = '3';
+					}
+					server.publish(values, leds);
+					tick++;
+					try {
+						Thread.sleep(DEMO_PUBLISH_MS);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		};
+		publisher.setDaemon(true);
+		publisher.start();
+	}
+
+	private void follow() {
+		final DashboardCodec.Decoder decoder = new DashboardCodec.Decoder();
+		final byte[] buffer = new byte[READ_SIZE];
+		final int readSize = slow > 0 ? SLOW_READ_SIZE : READ_SIZE;
+		final long reportNanos = (long) (reportInterval * 1e9);
+
+		try (Socket socket = connect()) {
+			final InputStream in = socket.getInputStream();
+			long received = 0;
+			long nextReport = System.nanoTime() + reportNanos;
+			while (true) {
+				final int count = in.read(buffer, 0, readSize);
+				if (count < 0) {
+					System.out.println("Server closed the connection");
+					return;
+				}
+				received += count;
+				decoder.feed(ByteBuffer.wrap(buffer, 0, count));
+
+				final long now = System.nanoTime();
+				if (now - nextReport >= 0) {
+					nextReport = now + reportNanos;
+					report(decoder, received);
+				}
+				if (slow > 0) {
+					Thread.sleep(slow);
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Connection failed: " + e.getMessage());
+		} catch (InterruptedException e) {
+			return;
+		}
+	}
+
+	/**
+	 * Connects to the server, retrying for a while in case it is still
+	 * starting.
+	 */
+	private Socket connect() throws IOException, InterruptedException {
+		for (int attempt = 0;; attempt++) {
+			final Socket socket = new Socket();
+			if (slow > 0) {
+				// Otherwise the kernel soaks up minutes of updates first
+				socket.setReceiveBufferSize(SLOW_RECEIVE_BUFFER);
+			}
+			try {
+				socket.connect(new InetSocketAddress(host, port));
+				return socket;
+			} catch (IOException e) {
+				socket.close();
+				if (attempt >= 20) {
+					throw e;
+				}
+				Thread.sleep(250);
+			}
+		}
+	}
+
+	private static void report(final DashboardCodec.Decoder decoder,
+			final long received) {
+		final StringBuilder out = new StringBuilder();
+		out.append(decoder.isSynchronized() ? "in sync" : "out of sync")
+				.append(", sequence ").append(decoder.getSequence())
+				.append(", full ").append(decoder.getFulls())
+				.append(", deltas ").append(decoder.getDeltas())
+				.append(", gaps ").append(decoder.getGaps())
+				.append(", bytes ").append(received).append('\n');
+
+		final String[] names = decoder.getNames();
+		final float[] values = decoder.getValues();
+		for (int i = 0; i < names.length; i++) {
+			out.append("  ").append(names[i]).append(" = ").append(values[i]);
+			if (i % 4 == 3 || i == names.length - 1) {
+				out.append('\n');
+			}
+		}
+		out.append("  LEDs ").append(
+				new String(decoder.getLeds(), StandardCharsets.US_ASCII));
+		System.out.println(out);
+	}
+}
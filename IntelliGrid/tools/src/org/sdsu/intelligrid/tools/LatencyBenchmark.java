@@ -0,0 +1,443 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import org.sdsu.intelligrid.network.ConnectionManager;
+import org.sdsu.intelligrid.network.FrameCodec;
+import org.sdsu.intelligrid.network.LatencyHistogram;
+import org.sdsu.intelligrid.network.LatencyTrace;
+import org.sdsu.intelligrid.network.LedFrameCodec;
+import org.sdsu.intelligrid.network.ModelCommand;
+import org.sdsu.intelligrid.network.NetworkInterface;
+import org.sdsu.intelligrid.network.PacketDecoder;
+import org.sdsu.intelligrid.network.PacketTypes;
+import org.sdsu.intelligrid.network.ProtocolMode;
+
+/**
+ * Measures how long a sensor reading takes to show on the model's LEDs, end
+ * to end over the loopback interface.
+ * <p>
+ * A stand-in model sends car sensor readings, one at a time, to a
+ * {@link NetworkInterface} and watches the LED frames that come back for the
+ * marker LED that follows the car. On the application's side, a tick loop
+ * does what the simulation and the main UI do with a reading: takes it from
+ * the {@link ConnectionManager}, applies it, advances the LED states at the
+ * main UI's LED packet interval and sends the frame as
+ * <tt>MainNetworkHandler</tt> does. The tick loop marks the same
+ * {@link LatencyTrace} stages as the application, so the report gives the
+ * latency distribution of every stage from the network thread's read, plus
+ * the model's own measurement from sending the reading to seeing the frame.
+ * <p>
+ * The real simulation and light animation need Android, so their work is
+ * left out; what is measured is the waiting between the stages, which is
+ * what the tick and LED intervals make long.
+ * 
+ * <pre>
+ * java org.sdsu.intelligrid.tools.LatencyBenchmark [--option value]...
+ * 
+ * --mode M          ascii or framed (ascii)
+ * --port N          loopback port of the stand-in model (9795)
+ * --events N        readings to send (300)
+ * --interval MS     average time between readings (250)
+ * --tick HZ         simulation ticks per second (60)
+ * --led-interval S  seconds between LED frames (1/9, as in MainUI)
+ * --seed N          random seed (1)
+ * </pre>
+ */
+public final class LatencyBenchmark {
+
+	// LED that shows whether the traced car is present
+	private static final int MARKER_LED = 0;
+	// Readings whose frame has not come back by then count as lost
+	private static final long EVENT_TIMEOUT_NANOS = 2000000000L;
+	private static final long CONNECT_TIMEOUT_NANOS = 10000000000L;
+	// Force an LED keyframe about every two seconds, as the application does
+	private static final int KEYFRAME_INTERVAL = 18;
+
+	private ProtocolMode mode = ProtocolMode.ASCII;
+	private int port = 9795;
+	private int events = 300;
+	private double interval = 250.0;
+	private double tick = 60.0;
+	private double ledInterval = 1.0 / 9.0;
+	private long seed = 1;
+
+	public static void main(final String[] args) {
+		final LatencyBenchmark benchmark = new LatencyBenchmark();
+		try {
+			benchmark.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(2);
+			return;
+		}
+		try {
+			benchmark.run();
+		} catch (IOException e) {
+			System.err.println("Stand-in model failed: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	private void parse(final String[] args) {
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for "
+						+ args[i]);
+			}
+			final String name = args[i];
+			final String value = args[i + 1];
+			try {
+				switch (name) {
+				case "--mode":
+					mode = ProtocolMode.valueOf(value.toUpperCase());
+					break;
+				case "--port":
+					port = Integer.parseInt(value);
+					break;
+				case "--events":
+					events = Integer.parseInt(value);
+					break;
+				case "--interval":
+					interval = Double.parseDouble(value);
+					break;
+				case "--tick":
+					tick = Double.parseDouble(value);
+					break;
+				case "--led-interval":
+					ledInterval = Double.parseDouble(value);
+					break;
+				case "--seed":
+					seed = Long.parseLong(value);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option "
+							+ name);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad value for " + name
+						+ ": " + value);
+			}
+		}
+	}
+
+	/**
+	 * Writes a packet as it goes on the wire.
+	 * 
+	 * @return the number of bytes written
+	 */
+	private static int encode(final ProtocolMode mode, final PacketTypes type,
+			final byte[] body, final int length, final byte[] out) {
+		if (mode == ProtocolMode.FRAMED) {
+			return FrameCodec.encode(type, body, 0, length, out, 0);
+		}
+		out[0] = (byte) type.getPrefixChar();
+		System.arraycopy(body, 0, out, 1, length);
+		return length + 1;
+	}
+
+	/**
+	 * The model's side: sends car readings that toggle the car at slot 0 and
+	 * times each until an LED frame shows the marker LED to match.
+	 */
+	private final class StandInModel implements Runnable {
+
+		private final ServerSocket server;
+		private volatile Socket socket = null;
+
+		final LatencyHistogram endToEnd = new LatencyHistogram();
+		volatile long sent = 0;
+		volatile long lost = 0;
+
+		// Set by the sending thread, cleared by the reading thread
+		private volatile boolean waiting = false;
+		private volatile byte expected = '0';
+		private volatile long sendTime;
+
+		StandInModel() throws IOException {
+			server = new ServerSocket();
+			server.setReuseAddress(true);
+			server.bind(new InetSocketAddress("127.0.0.1", port));
+		}
+
+		/**
+		 * Sends the readings, then closes the connection.
+		 */
+		@Override
+		public void run() {
+			final Random random = new Random(seed);
+			final byte[] body = new byte[2];
+			final byte[] packet = new byte[FrameCodec.MAX_FRAME_LENGTH];
+			try {
+				socket = server.accept();
+				socket.setTcpNoDelay(true);
+				final OutputStream out = socket.getOutputStream();
+				final Thread reader = new Thread(new Runnable() {
+
+					@Override
+					public void run() {
+						read();
+					}
+				}, "Stand-in model reader");
+				reader.setDaemon(true);
+				reader.start();
+
+				// Shows the application the model is there: a heartbeat
+				// answer, or on ASCII links, which have none, the car's
+				// starting state
+				final int hello;
+				if (mode == ProtocolMode.FRAMED) {
+					body[0] = '1';
+					hello = encode(mode, PacketTypes.HEARTBEAT, body, 1, packet);
+				} else {
+					body[0] = '0';
+					body[1] = '0';
+					hello = encode(mode, PacketTypes.CAR_DETECT, body, 2, packet);
+				}
+				out.write(packet, 0, hello);
+				out.flush();
+
+				boolean present = false;
+				for (int i = 0; i < events; i++) {
+					// Uneven spacing, so readings do not line up with ticks
+					final long pause = (long) (interval * 1e6 * (0.5 + random
+							.nextDouble()));
+					LockSupport.parkNanos(pause);
+
+					present = !present;
+					body[0] = '0';
+					body[1] = (byte) (present ? '1' : '0');
+					final int length = encode(mode, PacketTypes.CAR_DETECT,
+							body, 2, packet);
+					expected = body[1];
+					sendTime = System.nanoTime();
+					waiting = true;
+					out.write(packet, 0, length);
+					out.flush();
+					sent++;
+
+					final long deadline = sendTime + EVENT_TIMEOUT_NANOS;
+					while (waiting && System.nanoTime() - deadline < 0) {
+						LockSupport.parkNanos(100000L);
+					}
+					if (waiting) {
+						waiting = false;
+						lost++;
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("Stand-in model: " + e.getMessage());
+			} finally {
+				close();
+			}
+		}
+
+		private void read() {
+			final byte[] buffer = new byte[4096];
+			final PacketDecoder decoder = mode.newDecoder();
+			final LedFrameCodec.Decoder leds = new LedFrameCodec.Decoder();
+			final PacketDecoder.Listener listener = new PacketDecoder.Listener() {
+
+				@Override
+				public void onPacket(final PacketTypes type,
+						final byte[] payload, final int length) {
+					if (type != PacketTypes.LIGHT_ANIMATION) {
+						return;
+					}
+					final byte marker;
+					if (mode == ProtocolMode.FRAMED) {
+						if (!leds.decode(payload, 0, length)) {
+							return;
+						}
+						marker = (byte) ('0' + leds.getState(MARKER_LED));
+					} else if (length > MARKER_LED) {
+						marker = payload[MARKER_LED];
+					} else {
+						return;
+					}
+					if (waiting && marker == expected) {
+						endToEnd.record(System.nanoTime() - sendTime);
+						waiting = false;
+					}
+				}
+			};
+			try {
+				final InputStream in = socket.getInputStream();
+				int count;
+				while ((count = in.read(buffer)) > 0) {
+					decoder.feed(buffer, 0, count, listener);
+				}
+			} catch (IOException e) {
+				// Closed once the readings are sent
+			}
+		}
+
+		void close() {
+			try {
+				server.close();
+				final Socket s = socket;
+				if (s != null) {
+					s.close();
+				}
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+			}
+		}
+	}
+
+	private void run() throws IOException {
+		final StandInModel model = new StandInModel();
+		final Thread modelThread = new Thread(model, "Stand-in model");
+		modelThread.setDaemon(true);
+		modelThread.start();
+
+		final NetworkInterface network = new NetworkInterface("127.0.0.1",
+				port);
+		network.setProtocol(mode);
+		final ConnectionManager connections = new ConnectionManager(network);
+		final LatencyTrace trace = new LatencyTrace();
+		connections.setLatencyTrace(trace);
+		connections.start();
+
+		final long connectDeadline = System.nanoTime() + CONNECT_TIMEOUT_NANOS;
+		// On ASCII links the model's first packet is a car reading, taken
+		// here so it is not traced
+		boolean helloTaken = mode == ProtocolMode.FRAMED;
+		while (!connections.isConnected() || !helloTaken) {
+			if (connections.isConnected()) {
+				helloTaken = connections.poll() != null;
+			}
+			if (System.nanoTime() - connectDeadline > 0) {
+				System.err.println("No connection to the stand-in model");
+				model.close();
+				System.exit(1);
+				return;
+			}
+			LockSupport.parkNanos(1000000L);
+		}
+
+		System.out.println(String.format(
+				"%d car readings over %s, %.0f ticks/s, LED frame every %.1f ms",
+				events, mode.name().toLowerCase(), tick, ledInterval * 1e3));
+
+		final long tickNanos = (long) (1e9 / tick);
+		final byte[] states = new byte[LedFrameCodec.LED_COUNT];
+		final byte[] body = new byte[FrameCodec.MAX_PAYLOAD_LENGTH];
+		final byte[] packet = new byte[FrameCodec.MAX_FRAME_LENGTH];
+		final LedFrameCodec.Encoder encoder = new LedFrameCodec.Encoder(
+				KEYFRAME_INTERVAL);
+		final int repeat = mode == ProtocolMode.FRAMED ? 1
+				: PacketTypes.LIGHT_ANIMATION.repeat;
+		for (int i = 0; i < states.length; i++) {
+			states[i] = '0';
+		}
+		boolean carPresent = false;
+		int chase = 0;
+		double ledTimer = ledInterval;
+		long nextTick = System.nanoTime();
+
+		while (modelThread.isAlive()) {
+			// Simulation.advance: take the model's commands, then apply them
+			ModelCommand command;
+			while ((command = connections.poll()) != null) {
+				trace.markDispatched(connections.getPolledTime());
+				if (command.kind == ModelCommand.Kind.ELECTRIC_VEHICLE
+						&& command.target == 0) {
+					carPresent = command.value > 0.5;
+				}
+			}
+			trace.markApplied();
+
+			// MainUI.advance: advance the LEDs and send them every interval
+			ledTimer -= 1.0 / tick;
+			if (ledTimer <= 0.0) {
+				ledTimer = ledInterval;
+				states[MARKER_LED] = (byte) (carPresent ? '1' : '0');
+				states[1 + chase] = '0';
+				chase = (chase + 1) % (states.length - 1);
+				states[1 + chase] = '5';
+				trace.markAnimated();
+				sendLeds(connections, trace, encoder, states, body, packet,
+						repeat);
+			}
+
+			nextTick += tickNanos;
+			final long wait = nextTick - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			} else {
+				nextTick = System.nanoTime();
+			}
+		}
+
+		report(model, trace);
+		System.out.println();
+		System.out.println(network.report());
+	}
+
+	/**
+	 * Sends the LED states as MainNetworkHandler.sendLightAnimation() does.
+	 */
+	private void sendLeds(final ConnectionManager connections,
+			final LatencyTrace trace, final LedFrameCodec.Encoder encoder,
+			final byte[] states, final byte[] body, final byte[] packet,
+			final int repeat) {
+		if (!connections.isConnected()) {
+			return;
+		}
+		final int length;
+		if (mode == ProtocolMode.FRAMED) {
+			// A delta replacing an unsent delta would leave a gap
+			if (connections.isPending(PacketTypes.LIGHT_ANIMATION)) {
+				return;
+			}
+			length = encoder.encode(states, body, 0);
+			if (length == 0) {
+				return;
+			}
+		} else {
+			System.arraycopy(states, 0, body, 0, states.length);
+			length = states.length;
+		}
+		trace.markQueued();
+		connections.sendMessage(PacketTypes.LIGHT_ANIMATION, 0, packet,
+				encode(mode, PacketTypes.LIGHT_ANIMATION, body, length, packet),
+				repeat);
+	}
+
+	private static void report(final StandInModel model,
+			final LatencyTrace trace) {
+		System.out.println(String.format("readings sent %d, shown %d, lost %d,"
+				+ " traced %d, abandoned %d", model.sent,
+				model.endToEnd.getCount(), model.lost, trace.getCompleted(),
+				trace.getAbandoned()));
+		System.out.println();
+		System.out.println(String.format("%-22s %8s %8s %8s %8s %8s %8s",
+				"latency ms", "count", "p50", "p90", "p99", "p99.9", "max"));
+		for (LatencyTrace.Stage stage : LatencyTrace.Stage.values()) {
+			line("read to " + stage.name().toLowerCase(),
+					trace.getHistogram(stage));
+		}
+		line("model to model", model.endToEnd);
+	}
+
+	private static void line(final String name,
+			final LatencyHistogram histogram) {
+		System.out.println(String.format(
+				"%-22s %8d %8.2f %8.2f %8.2f %8.2f %8.2f", name,
+				histogram.getCount(), histogram.getPercentile(0.5) / 1e6,
+				histogram.getPercentile(0.9) / 1e6,
+				histogram.getPercentile(0.99) / 1e6,
+				histogram.getPercentile(0.999) / 1e6,
+				histogram.getMax() / 1e6));
+	}
+}
@@ -0,0 +1,824 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.sdsu.intelligrid.network.AnalogIngest;
+import org.sdsu.intelligrid.network.ClockSync;
+import org.sdsu.intelligrid.network.DeliveryWindow;
+import org.sdsu.intelligrid.network.FrameCodec;
+import org.sdsu.intelligrid.network.FrameDecoder;
+import org.sdsu.intelligrid.network.LedFrameCodec;
+import org.sdsu.intelligrid.network.PacketDecoder;
+import org.sdsu.intelligrid.network.PacketTypes;
+import org.sdsu.intelligrid.network.ProtocolMode;
+import org.sdsu.intelligrid.network.StateSnapshot;
+
+/**
+ * Stand-in for the demonstration model, for exercising the network code
+ * without the hardware.
+ * <p>
+ * Listens on a local port for the application to connect, then plays the
+ * model's side of the protocol: it generates solar, wind, electric vehicle,
+ * balloon and dig sensor packets at configurable rates, optionally in bursts
+ * and split across writes, and checks every LED frame the application sends
+ * back, on the stream or as datagrams on the UDP port after the stream port.
+ * Heartbeats from the application are answered unless turned off. Counts
+ * are printed at a fixed interval.
+ * <p>
+ * On framed links the emulator also answers clock sync requests, against a
+ * clock of its own that can be skewed from the local one, and plays timed
+ * LED frames from a playout buffer when they are due, reporting how evenly
+ * and how punctually it shows them. Numbered control packets are put back
+ * in order and acknowledged; a fraction of them can be thrown away unseen to
+ * exercise retransmission.
+ * <p>
+ * The emulator keeps the state a board would show, built from the state
+ * snapshot and single setting packets the application sends. Like a board
+ * that restarts, it forgets the state on every new connection, so the
+ * report shows whether the application brought it back.
+ * <p>
+ * On framed links the emulator can also stream analog solar and wind
+ * readings: a slow swing with sensor noise on top, at a high sample rate,
+ * sent in packets of a few samples each.
+ * <p>
+ * Point the application at it by constructing its
+ * {@link org.sdsu.intelligrid.network.NetworkInterface} with the address of
+ * the machine running the emulator.
+ * 
+ * <pre>
+ * java org.sdsu.intelligrid.tools.ModelEmulator [--option value]...
+ * 
+ * --port N            port to listen on (9750)
+ * --mode ascii|framed wire format (ascii)
+ * --solar HZ          solar generation packets per second (1)
+ * --panel HZ          solar panel detect packets per second (1)
+ * --wind HZ           wind generation packets per second (0.5)
+ * --car HZ            electric vehicle detect packets per second (0.5)
+ * --balloon HZ        balloon fault packets per second (0.05)
+ * --dig HZ            dig fault packets per second (0.05)
+ * --analog HZ         analog samples per second per channel, framed only
+ *                     (0, none)
+ * --burst-size N      extra random packets per burst (0, no bursts)
+ * --burst-interval S  seconds between bursts (5)
+ * --split N           largest write, in bytes; 0 writes whole packets (0)
+ * --heartbeat on|off  answer heartbeats, as current firmware does (on)
+ * --lane-loss P       fraction of LED datagrams to throw away (0)
+ * --control-loss P    fraction of numbered control packets to throw away (0)
+ * --clock-skew MS     model clock minus local clock (0)
+ * --report S          seconds between reports (5)
+ * --seed N            random seed (current time)
+ * </pre>
+ */
+public final class ModelEmulator {
+
+	private static final PacketTypes[] SENSORS = {
+			PacketTypes.SOLAR_GENERATION_LEVEL, PacketTypes.SOLAR_DETECT,
+			PacketTypes.WIND_GENERATION_LEVEL, PacketTypes.CAR_DETECT,
+			PacketTypes.BALLOON_DETECT_RESET, PacketTypes.DIG_DETECT_RESET };
+
+	private static final int TYPE_COUNT = PacketTypes.values().length;
+
+	// State of a board that has just started: day, every load off
+	private static final byte[] BLANK_STATE = new byte[StateSnapshot.LENGTH];
+
+	static {
+		BLANK_STATE[0] = StateSnapshot.VERSION;
+	}
+
+	private static final int PLAYOUT_CAPACITY = 64;
+	// Analog samples are sent this often, in one packet per channel
+	private static final double ANALOG_BATCH_SECONDS = 0.02;
+	private static final double ANALOG_SWING_HZ = 0.1;
+	private static final double ANALOG_NOISE = 0.05;
+	// A frame shown this much after its time counts as late
+	private static final int LATE_MS = 2;
+
+	private int port = 9750;
+	private ProtocolMode mode = ProtocolMode.ASCII;
+	private final double[] rates = { 1.0, 1.0, 0.5, 0.5, 0.05, 0.05 };
+	private int analogRate = 0;
+	private int burstSize = 0;
+	private double burstInterval = 5.0;
+	private int split = 0;
+	private boolean heartbeat = true;
+	private double laneLoss = 0.0;
+	private double controlLoss = 0.0;
+	private int clockSkew = 0;
+	private double reportInterval = 5.0;
+	private long seed = System.nanoTime();
+
+	private final AtomicLongArray sent = new AtomicLongArray(TYPE_COUNT);
+	private final AtomicLongArray received = new AtomicLongArray(TYPE_COUNT);
+	private final AtomicLongArray invalid = new AtomicLongArray(TYPE_COUNT);
+
+	// Written by one thread at a time, read by the reporter
+	private volatile long ledFrames = 0;
+	private volatile long ledIntervalTotal = 0;
+	private volatile long ledIntervalMax = 0;
+	private volatile long bytesIn = 0;
+	private volatile long bytesOut = 0;
+	// Written by the lane thread only
+	private volatile long datagrams = 0;
+	private volatile long datagramsLost = 0;
+
+	// Acknowledged delivery state of the current connection
+	private volatile DeliveryWindow.Receiver receiver = null;
+	// Written by the reader only
+	private volatile long controlLost = 0;
+
+	// State shown by the board; guarded by itself
+	private final StateSnapshot board = new StateSnapshot();
+
+	// Offset last announced by the application on the current connection
+	private volatile boolean hasClockOffset = false;
+	private volatile int clockOffset = 0;
+
+	// Guarded by itself; written by the readers, drained by the player
+	private final LedFrameCodec.Playout playout = new LedFrameCodec.Playout(
+			PLAYOUT_CAPACITY);
+	// Written by the player only
+	private volatile long framesShown = 0;
+	private volatile long framesLate = 0;
+	private volatile long lateMax = 0;
+	private volatile long showIntervalTotal = 0;
+	private volatile long showIntervalMax = 0;
+
+	private ModelEmulator() {
+	}
+
+	public static void main(final String[] args) {
+		final ModelEmulator emulator = new ModelEmulator();
+		try {
+			emulator.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(2);
+			return;
+		}
+		emulator.startReporter();
+		emulator.startPlayer();
+		emulator.startLane();
+		emulator.serve();
+	}
+
+	private void parse(final String[] args) {
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for "
+						+ args[i]);
+			}
+			final String name = args[i];
+			final String value = args[i + 1];
+			try {
+				switch (name) {
+				case "--port":
+					port = Integer.parseInt(value);
+					break;
+				case "--mode":
+					mode = ProtocolMode.valueOf(value.toUpperCase());
+					break;
+				case "--solar":
+					rates[0] = Double.parseDouble(value);
+					break;
+				case "--panel":
+					rates[1] = Double.parseDouble(value);
+					break;
+				case "--wind":
+					rates[2] = Double.parseDouble(value);
+					break;
+				case "--car":
+					rates[3] = Double.parseDouble(value);
+					break;
+				case "--balloon":
+					rates[4] = Double.parseDouble(value);
+					break;
+				case "--dig":
+					rates[5] = Double.parseDouble(value);
+					break;
+				case "--analog":
+					analogRate = Integer.parseInt(value);
+					break;
+				case "--burst-size":
+					burstSize = Integer.parseInt(value);
+					break;
+				case "--burst-interval":
+					burstInterval = Double.parseDouble(value);
+					break;
+				case "--split":
+					split = Integer.parseInt(value);
+					break;
+				case "--heartbeat":
+					heartbeat = !value.equals("off");
+					break;
+				case "--lane-loss":
+					laneLoss = Double.parseDouble(value);
+					break;
+				case "--control-loss":
+					controlLoss = Double.parseDouble(value);
+					break;
+				case "--clock-skew":
+					clockSkew = Integer.parseInt(value);
+					break;
+				case "--report":
+					reportInterval = Double.parseDouble(value);
+					break;
+				case "--seed":
+					seed = Long.parseLong(value);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option "
+							+ name);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad value for " + name
+						+ ": " + value);
+			}
+		}
+	}
+
+	/**
+	 * Accepts one application at a time, forever.
+	 */
+	private void serve() {
+		try (ServerSocket server = new ServerSocket()) {
+			server.setReuseAddress(true);
+			server.bind(new InetSocketAddress(port));
+			System.out.println("Emulating model on port " + port + " ("
+					+ mode.name().toLowerCase() + ")");
+
+			final Random random = new Random(seed);
+			while (true) {
+				try (Socket socket = server.accept()) {
+					socket.setTcpNoDelay(true);
+					System.out.println("Application connected from "
+							+ socket.getRemoteSocketAddress());
+					hasClockOffset = false;
+					synchronized (board) {
+						board.decode(BLANK_STATE, BLANK_STATE.length);
+					}
+					final Thread reader = startReader(
+							socket.getInputStream(), socket.getOutputStream());
+					generate(socket.getOutputStream(), random, reader);
+				} catch (IOException e) {
+					Logger.getGlobal().log(Level.INFO, "Connection lost", e);
+				}
+				System.out.println("Application disconnected");
+			}
+		} catch (IOException e) {
+			Logger.getGlobal().log(Level.SEVERE, "Cannot listen on port "
+					+ port, e);
+		}
+	}
+
+	/**
+	 * Writes sensor traffic until the connection fails or the reader sees
+	 * the application hang up.
+	 */
+	private void generate(final OutputStream out, final Random random,
+			final Thread reader) throws IOException {
+		final byte[] packet = new byte[FrameCodec.MAX_FRAME_LENGTH];
+		final long start = System.nanoTime();
+		final long[] next = new long[SENSORS.length];
+		for (int i = 0; i < SENSORS.length; i++) {
+			next[i] = rates[i] > 0 ? start + interval(rates[i], random)
+					: Long.MAX_VALUE;
+		}
+		long nextBurst = burstSize > 0 ? start
+				+ (long) (burstInterval * 1e9) : Long.MAX_VALUE;
+		final int batch = (int) Math.max(1, Math.min(AnalogIngest.MAX_SAMPLES,
+				Math.round(analogRate * ANALOG_BATCH_SECONDS)));
+		long nextAnalog = analogRate > 0 && mode == ProtocolMode.FRAMED ? start
+				: Long.MAX_VALUE;
+		long analogSample = 0;
+
+		while (reader.isAlive()) {
+			long wake = Math.min(nextBurst, nextAnalog);
+			for (long time : next) {
+				wake = Math.min(wake, time);
+			}
+			final long now = System.nanoTime();
+			if (wake > now) {
+				sleep(Math.min(wake - now, 100000000L));
+				continue;
+			}
+
+			for (int i = 0; i < SENSORS.length; i++) {
+				if (next[i] <= now) {
+					send(out, SENSORS[i], packet, random);
+					next[i] += interval(rates[i], random);
+				}
+			}
+			if (nextBurst <= now) {
+				for (int i = 0; i < burstSize; i++) {
+					send(out, SENSORS[random.nextInt(SENSORS.length)],
+							packet, random);
+				}
+				nextBurst += (long) (burstInterval * 1e9);
+			}
+			if (nextAnalog <= now) {
+				for (int channel = 0; channel < AnalogIngest.CHANNELS; channel++) {
+					sendAnalog(out, channel, analogSample, batch, packet, random);
+				}
+				analogSample += batch;
+				nextAnalog += (long) (batch * 1e9 / analogRate);
+			}
+		}
+	}
+
+	/**
+	 * Writes a packet of analog samples for one channel, starting at the
+	 * given sample number.
+	 */
+	private void sendAnalog(final OutputStream out, final int channel,
+			final long first, final int count, final byte[] packet,
+			final Random random) throws IOException {
+		final byte[] body = new byte[AnalogIngest.HEADER_LENGTH + 2 * count];
+		body[0] = (byte) channel;
+		body[1] = (byte) analogRate;
+		body[2] = (byte) (analogRate >> 8);
+		for (int i = 0; i < count; i++) {
+			final double time = (double) (first + i) / analogRate;
+			final double level = 0.5 + 0.4
+					* Math.sin(2.0 * Math.PI * ANALOG_SWING_HZ * time + channel)
+					+ ANALOG_NOISE * random.nextGaussian();
+			final int raw = (int) Math.round(Math.max(0.0,
+					Math.min(1.0, level)) * 65535.0);
+			body[AnalogIngest.HEADER_LENGTH + 2 * i] = (byte) raw;
+			body[AnalogIngest.HEADER_LENGTH + 2 * i + 1] = (byte) (raw >> 8);
+		}
+		write(out, PacketTypes.ANALOG_READING, body, body.length, packet,
+				random);
+	}
+
+	// Jitter by up to a quarter of the period so sources drift apart
+	private static long interval(final double rate, final Random random) {
+		return (long) (1e9 / rate * (0.75 + random.nextDouble() / 2.0));
+	}
+
+	private void send(final OutputStream out, final PacketTypes type,
+			final byte[] packet, final Random random) throws IOException {
+		final byte[] body = new byte[type.payloadLength()];
+		switch (type) {
+		case SOLAR_GENERATION_LEVEL:
+			body[0] = digit(random, 3);
+			body[1] = digit(random, 3);
+			break;
+		case SOLAR_DETECT:
+			body[0] = digit(random, 5);
+			body[1] = digit(random, 2);
+			break;
+		case WIND_GENERATION_LEVEL:
+			body[0] = digit(random, 4);
+			break;
+		case CAR_DETECT:
+			body[0] = digit(random, 3);
+			body[1] = digit(random, 2);
+			break;
+		default:
+			body[0] = '1';
+			break;
+		}
+		write(out, type, body, body.length, packet, random);
+	}
+
+	/**
+	 * Writes one packet, split into pieces if asked to. Safe to call from the
+	 * generator and the reader at once.
+	 */
+	private void write(final OutputStream out, final PacketTypes type,
+			final byte[] body, final int bodyLength, final byte[] packet,
+			final Random random) throws IOException {
+		final int length;
+		if (mode == ProtocolMode.FRAMED) {
+			length = FrameCodec.encode(type, body, 0, bodyLength, packet, 0);
+		} else {
+			packet[0] = (byte) type.getPrefixChar();
+			System.arraycopy(body, 0, packet, 1, bodyLength);
+			length = bodyLength + 1;
+		}
+
+		synchronized (out) {
+			// Flushing each piece with Nagle off makes the pieces arrive in
+			// separate reads more often than not
+			int offset = 0;
+			while (offset < length) {
+				final int chunk = split > 0 ? Math.min(length - offset,
+						1 + random.nextInt(split)) : length - offset;
+				out.write(packet, offset, chunk);
+				out.flush();
+				offset += chunk;
+			}
+			sent.incrementAndGet(type.ordinal());
+			bytesOut += length;
+		}
+	}
+
+	private static byte digit(final Random random, final int count) {
+		return (byte) ('0' + random.nextInt(count));
+	}
+
+	private Thread startReader(final InputStream in, final OutputStream out) {
+		final Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				read(in, out);
+			}
+		}, "Emulator reader");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	private void read(final InputStream in, final OutputStream out) {
+		final PacketDecoder decoder = mode.newDecoder();
+		final PacketDecoder.Listener checker = newChecker(out);
+		final PacketDecoder.Listener listener = mode == ProtocolMode.FRAMED
+				? newSequencer((FrameDecoder) decoder, checker, out)
+				: checker;
+		final byte[] buffer = new byte[4096];
+		try {
+			while (true) {
+				final int count = in.read(buffer);
+				if (count < 0) {
+					return;
+				}
+				bytesIn += count;
+				decoder.feed(buffer, 0, count, listener);
+			}
+		} catch (IOException e) {
+			Logger.getGlobal().log(Level.FINE, "Read failed", e);
+		}
+	}
+
+	/**
+	 * Creates a listener that puts numbered control packets back in order
+	 * for the checker and acknowledges each, after throwing away the
+	 * configured fraction unseen. Packets without a number go straight to the
+	 * checker.
+	 * 
+	 * @param frames
+	 *            the decoder feeding the listener, which knows the number of
+	 *            the packet being decoded
+	 */
+	private PacketDecoder.Listener newSequencer(final FrameDecoder frames,
+			final PacketDecoder.Listener checker, final OutputStream out) {
+		final DeliveryWindow.Receiver window = new DeliveryWindow.Receiver();
+		receiver = window;
+		final byte[] ack = new byte[DeliveryWindow.ACK_LENGTH];
+		final byte[] packet = new byte[FrameCodec.MAX_FRAME_LENGTH];
+		final Random random = new Random(seed + 2);
+
+		return new PacketDecoder.Listener() {
+
+			@Override
+			public void onPacket(final PacketTypes type, final byte[] payload,
+					final int length) {
+				final int sequence = frames.getSequence();
+				if (sequence < 0) {
+					checker.onPacket(type, payload, length);
+					return;
+				}
+				if (random.nextDouble() < controlLoss) {
+					controlLost++;
+					return;
+				}
+				window.receive(sequence, type, payload, length, checker);
+				try {
+					write(out, PacketTypes.ACK, ack, window.encodeAck(ack),
+							packet, random);
+				} catch (IOException e) {
+					// The next read fails too and ends the connection
+				}
+			}
+		};
+	}
+
+	/**
+	 * Receives LED datagrams for as long as the emulator runs. Each datagram
+	 * holds whole packets.
+	 */
+	private void startLane() {
+		final Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				final PacketDecoder decoder = mode.newDecoder();
+				final PacketDecoder.Listener checker = newChecker(null);
+				final Random random = new Random(seed + 1);
+				final byte[] buffer = new byte[FrameCodec.MAX_FRAME_LENGTH];
+				final DatagramPacket datagram = new DatagramPacket(buffer,
+						buffer.length);
+				try (DatagramSocket socket = new DatagramSocket(port + 1)) {
+					while (true) {
+						socket.receive(datagram);
+						datagrams++;
+						if (random.nextDouble() < laneLoss) {
+							datagramsLost++;
+							continue;
+						}
+						decoder.reset();
+						decoder.feed(buffer, 0, datagram.getLength(), checker);
+					}
+				} catch (IOException e) {
+					Logger.getGlobal().log(Level.SEVERE,
+							"Cannot receive datagrams on port " + (port + 1),
+							e);
+				}
+			}
+		}, "Emulator lane");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Creates a listener that counts and checks packets from the
+	 * application.
+	 * 
+	 * @param out
+	 *            the stream to answer heartbeats and clock sync requests
+	 *            on, or <tt>null</tt>
+	 */
+	private PacketDecoder.Listener newChecker(final OutputStream out) {
+		final LedFrameCodec.Decoder leds = new LedFrameCodec.Decoder();
+		final long[] lastFrame = { 0 };
+		final byte[] answer = new byte[ClockSync.ANSWER_LENGTH];
+		final byte[] packet = new byte[FrameCodec.MAX_FRAME_LENGTH];
+		final Random random = new Random();
+
+		return new PacketDecoder.Listener() {
+
+			@Override
+			public void onPacket(final PacketTypes type, final byte[] payload,
+					final int length) {
+				received.incrementAndGet(type.ordinal());
+				if (type == PacketTypes.HEARTBEAT && heartbeat && out != null) {
+					answer[0] = '1';
+					answer(type, 1);
+				}
+				if (type == PacketTypes.CLOCK_SYNC) {
+					final int arrival = modelClock();
+					if (ClockSync.isOffset(payload, length)) {
+						clockOffset = ClockSync.readOffset(payload);
+						hasClockOffset = true;
+					} else if (out != null) {
+						final int answerLength = ClockSync.encodeAnswer(
+								payload, length, arrival, modelClock(),
+								answer);
+						if (answerLength > 0) {
+							answer(type, answerLength);
+						} else {
+							invalid.incrementAndGet(type.ordinal());
+						}
+					}
+					return;
+				}
+				if (type == PacketTypes.STATE_SNAPSHOT) {
+					final boolean valid;
+					synchronized (board) {
+						valid = board.decode(payload, length);
+					}
+					if (!valid) {
+						invalid.incrementAndGet(type.ordinal());
+					}
+					return;
+				}
+				if (type != PacketTypes.LIGHT_ANIMATION) {
+					if (!isDigits(payload, length)) {
+						invalid.incrementAndGet(type.ordinal());
+					} else {
+						show(type, payload);
+					}
+					return;
+				}
+
+				final boolean valid;
+				if (mode == ProtocolMode.FRAMED) {
+					valid = leds.decode(payload, 0, length);
+				} else {
+					valid = length == LedFrameCodec.LED_COUNT
+							&& isStates(payload, length);
+				}
+				if (!valid) {
+					invalid.incrementAndGet(type.ordinal());
+					return;
+				}
+
+				final long now = System.nanoTime();
+				if (lastFrame[0] != 0) {
+					final long gap = now - lastFrame[0];
+					ledIntervalTotal += gap;
+					ledIntervalMax = Math.max(ledIntervalMax, gap);
+				}
+				lastFrame[0] = now;
+				ledFrames++;
+
+				// Frames without a usable time are due at once
+				final int due = mode == ProtocolMode.FRAMED && leds.isTimed()
+						&& hasClockOffset ? leds.getDisplayTime()
+						+ clockOffset : modelClock();
+				synchronized (playout) {
+					playout.offer(leds.getStates(), due);
+				}
+			}
+
+			private void answer(final PacketTypes type, final int length) {
+				try {
+					write(out, type, answer, length, packet, random);
+				} catch (IOException e) {
+					// The next read fails too and ends the connection
+				}
+			}
+		};
+	}
+
+	/**
+	 * Applies a single setting packet to the board.
+	 */
+	private void show(final PacketTypes type, final byte[] payload) {
+		final int value = payload[0] - '0';
+		synchronized (board) {
+			switch (type) {
+			case TIME_OF_DAY:
+				board.night = value == 1;
+				break;
+			case POWER_OUTAGE:
+				final int load = payload[1] - '0';
+				if (load >= 1 && load <= StateSnapshot.LOADS) {
+					board.setLoad(load, value == 1);
+				}
+				break;
+			case BATTERY_STORAGE_LEVEL:
+				board.battery = value;
+				break;
+			case WIND_GENERATION_LEVEL:
+				board.wind = value;
+				break;
+			case BALLOON_DETECT_RESET:
+				board.balloonFault = value == 1;
+				break;
+			case DIG_DETECT_RESET:
+				board.digFault = value == 1;
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	private int modelClock() {
+		return ClockSync.appClock(System.nanoTime()) + clockSkew;
+	}
+
+	/**
+	 * Shows LED frames from the playout buffer as they fall due.
+	 */
+	private void startPlayer() {
+		final Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				final byte[] shown = new byte[LedFrameCodec.LED_COUNT];
+				long lastShown = 0;
+				while (true) {
+					final int now = modelClock();
+					final boolean due;
+					final int untilNext;
+					synchronized (playout) {
+						due = playout.poll(now, shown);
+						untilNext = playout.getWait(now);
+					}
+					if (due) {
+						final long time = System.nanoTime();
+						if (lastShown != 0) {
+							final long gap = time - lastShown;
+							showIntervalTotal += gap;
+							showIntervalMax = Math.max(showIntervalMax, gap);
+						}
+						lastShown = time;
+						final long late = now - playout.getPlayedTime();
+						if (late >= LATE_MS) {
+							framesLate++;
+						}
+						lateMax = Math.max(lateMax, late);
+						framesShown++;
+					}
+					sleep(untilNext > 0 ? Math.min(untilNext, 5) * 1000000L
+							: 1000000L);
+				}
+			}
+		}, "Emulator player");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static boolean isDigits(final byte[] data, final int length) {
+		for (int i = 0; i < length; i++) {
+			if (data[i] < '0' || data[i] > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isStates(final byte[] data, final int length) {
+		for (int i = 0; i < length; i++) {
+			if (data[i] < '0'
+					|| data[i] >= '0' + LedFrameCodec.STATE_COUNT) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void startReporter() {
+		final Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				while (true) {
+					sleep((long) (reportInterval * 1e9));
+					report();
+				}
+			}
+		}, "Emulator reporter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void report() {
+		final StringBuilder out = new StringBuilder();
+		out.append("bytes out ").append(bytesOut).append(", in ")
+				.append(bytesIn).append('\n');
+		if (datagrams > 0) {
+			out.append("  LED datagrams ").append(datagrams)
+					.append(", thrown away ").append(datagramsLost)
+					.append('\n');
+		}
+		for (PacketTypes type : PacketTypes.values()) {
+			final int i = type.ordinal();
+			if (sent.get(i) == 0 && received.get(i) == 0) {
+				continue;
+			}
+			out.append(String.format("  %-24s sent %8d  received %8d"
+					+ "  invalid %6d%n", type.name(), sent.get(i),
+					received.get(i), invalid.get(i)));
+		}
+		final long frames = ledFrames;
+		if (frames > 1) {
+			out.append(String.format(
+					"  LED frames %d, mean interval %.1f ms, max %.1f ms%n",
+					frames, ledIntervalTotal / 1e6 / (frames - 1),
+					ledIntervalMax / 1e6));
+		}
+		final long shown = framesShown;
+		if (shown > 1) {
+			final long skipped;
+			synchronized (playout) {
+				skipped = playout.getSkipped();
+			}
+			out.append(String.format("  LED frames shown %d, mean interval"
+					+ " %.1f ms, max %.1f ms, late %d (max %d ms),"
+					+ " skipped %d%n", shown, showIntervalTotal / 1e6
+					/ (shown - 1), showIntervalMax / 1e6, framesLate,
+					lateMax, skipped));
+		}
+		final DeliveryWindow.Receiver window = receiver;
+		if (window != null && (window.getDelivered() > 0 || controlLost > 0)) {
+			out.append("  numbered packets delivered ")
+					.append(window.getDelivered()).append(", thrown away ")
+					.append(controlLost).append(", duplicates ")
+					.append(window.getDuplicates()).append(", held back ")
+					.append(window.getHeldBack()).append('\n');
+		}
+		synchronized (board) {
+			out.append("  board shows ").append(board).append('\n');
+		}
+		if (hasClockOffset) {
+			out.append("  clock offset from application ").append(clockOffset)
+					.append(" ms\n");
+		}
+		System.out.print(out);
+	}
+
+	private static void sleep(final long nanos) {
+		try {
+			Thread.sleep(nanos / 1000000L, (int) (nanos % 1000000L));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,609 @@
+// Copyright 2014 Harrison Snodgrass and San Diego Gas and Electric, all rights reserved
+
+package org.sdsu.intelligrid.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.sdsu.intelligrid.network.ClockSync;
+import org.sdsu.intelligrid.network.FrameCodec;
+import org.sdsu.intelligrid.network.LatencyHistogram;
+import org.sdsu.intelligrid.network.LedFrameCodec;
+import org.sdsu.intelligrid.network.ModelCommand;
+import org.sdsu.intelligrid.network.NetworkInterface;
+import org.sdsu.intelligrid.network.PacketDecoder;
+import org.sdsu.intelligrid.network.PacketTypes;
+import org.sdsu.intelligrid.network.ProtocolMode;
+
+/**
+ * Throughput and latency benchmarks for the network code on its own, for
+ * comparing parser, codec and queue changes.
+ * <p>
+ * Each benchmark is a repeated operation, warmed up first and then run for a
+ * fixed time with every call timed:
+ * <ul>
+ * <li>parse: decoding a realistic mix of model traffic into
+ * {@link ModelCommand}s, as the network thread does, one read at a time,
+ * with reads holding whole packets or split at random points</li>
+ * <li>encode: building every packet the application sends, including the
+ * full 177 LED frame and LED keyframes, deltas and timed frames</li>
+ * <li>round trip: a packet sent through a {@link NetworkInterface} to a
+ * stand-in model on the loopback interface, which answers with a sensor
+ * packet, until the answer comes out of the command queue</li>
+ * </ul>
+ * For each, the report gives operations and units (packets or bytes) per
+ * second, bytes allocated per operation by the benchmark thread, and
+ * percentiles of the time per operation. Allocation is only measured on JVMs
+ * that report it per thread.
+ * 
+ * <pre>
+ * java org.sdsu.intelligrid.tools.ProtocolBenchmark [--option value]...
+ * 
+ * --warmup S    seconds of warm-up per benchmark (2)
+ * --time S      seconds of measurement per benchmark (5)
+ * --only TEXT   run only benchmarks whose name contains TEXT
+ * --split N     largest read, in bytes, for the split parse benchmarks (16)
+ * --port N      first loopback port for the round trip benchmarks (9790)
+ * --seed N      random seed (1)
+ * </pre>
+ */
+public final class ProtocolBenchmark {
+
+	// Model traffic generated up front and parsed over and over
+	private static final int TRAFFIC_PACKETS = 8192;
+	// Whole-packet reads take this many packets at most
+	private static final int PACKETS_PER_READ = 8;
+
+	private static final PacketTypes[] OUTBOUND = {
+			PacketTypes.WIND_GENERATION_LEVEL,
+			PacketTypes.BATTERY_STORAGE_LEVEL, PacketTypes.TIME_OF_DAY,
+			PacketTypes.POWER_OUTAGE, PacketTypes.BALLOON_DETECT_RESET,
+			PacketTypes.DIG_DETECT_RESET, PacketTypes.HEARTBEAT,
+			PacketTypes.LIGHT_ANIMATION };
+
+	private double warmup = 2.0;
+	private double time = 5.0;
+	private String only = null;
+	private int split = 16;
+	private int port = 9790;
+	private long seed = 1;
+
+	/**
+	 * One repeated operation.
+	 */
+	private abstract static class Benchmark {
+
+		final String name;
+		final String unit;
+
+		Benchmark(final String name, final String unit) {
+			this.name = name;
+			this.unit = unit;
+		}
+
+		void setUp() throws IOException {
+		}
+
+		/**
+		 * Runs the operation once.
+		 * 
+		 * @return the number of units processed
+		 */
+		abstract long run() throws IOException;
+
+		void tearDown() {
+		}
+	}
+
+	public static void main(final String[] args) {
+		final ProtocolBenchmark benchmark = new ProtocolBenchmark();
+		try {
+			benchmark.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(2);
+			return;
+		}
+		benchmark.runAll();
+	}
+
+	private void parse(final String[] args) {
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for "
+						+ args[i]);
+			}
+			final String name = args[i];
+			final String value = args[i + 1];
+			try {
+				switch (name) {
+				case "--warmup":
+					warmup = Double.parseDouble(value);
+					break;
+				case "--time":
+					time = Double.parseDouble(value);
+					break;
+				case "--only":
+					only = value;
+					break;
+				case "--split":
+					split = Integer.parseInt(value);
+					break;
+				case "--port":
+					port = Integer.parseInt(value);
+					break;
+				case "--seed":
+					seed = Long.parseLong(value);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option "
+							+ name);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad value for " + name
+						+ ": " + value);
+			}
+		}
+	}
+
+	private void runAll() {
+		final List<Benchmark> benchmarks = new ArrayList<>();
+		for (ProtocolMode mode : ProtocolMode.values()) {
+			final String m = mode.name().toLowerCase();
+			benchmarks.add(parseBenchmark("parse " + m + " whole", mode, 0));
+			benchmarks.add(parseBenchmark("parse " + m + " split", mode,
+					split));
+		}
+		for (ProtocolMode mode : ProtocolMode.values()) {
+			benchmarks.add(encodeBenchmark("encode "
+					+ mode.name().toLowerCase() + " all types", mode));
+		}
+		benchmarks.add(ledBenchmark("encode led keyframe", 0, false));
+		benchmarks.add(ledBenchmark("encode led delta", Integer.MAX_VALUE,
+				false));
+		benchmarks.add(ledBenchmark("encode led timed delta",
+				Integer.MAX_VALUE, true));
+		int nextPort = port;
+		for (ProtocolMode mode : ProtocolMode.values()) {
+			benchmarks.add(roundTripBenchmark("round trip "
+					+ mode.name().toLowerCase(), mode, nextPort++));
+		}
+
+		System.out.println(String.format(
+				"%-24s %10s %18s %7s %8s %8s %9s %9s", "benchmark", "ops/s",
+				"units/s", "B/op", "p50 us", "p99 us", "p99.9 us", "max us"));
+		for (Benchmark benchmark : benchmarks) {
+			if (only != null && !benchmark.name.contains(only)) {
+				continue;
+			}
+			try {
+				measure(benchmark);
+			} catch (IOException e) {
+				System.out.println(String.format("%-24s failed: %s",
+						benchmark.name, e.getMessage()));
+			} finally {
+				benchmark.tearDown();
+			}
+		}
+	}
+
+	private void measure(final Benchmark benchmark) throws IOException {
+		benchmark.setUp();
+
+		final long warmupEnd = System.nanoTime() + (long) (warmup * 1e9);
+		while (System.nanoTime() - warmupEnd < 0) {
+			benchmark.run();
+		}
+
+		final LatencyHistogram latency = new LatencyHistogram();
+		final long allocatedBefore = allocatedBytes();
+		final long start = System.nanoTime();
+		final long end = start + (long) (time * 1e9);
+		long ops = 0;
+		long units = 0;
+		long now = start;
+		while (now - end < 0) {
+			units += benchmark.run();
+			final long after = System.nanoTime();
+			latency.record(after - now);
+			now = after;
+			ops++;
+		}
+		final double seconds = (now - start) / 1e9;
+		final long allocatedAfter = allocatedBytes();
+
+		final String allocation = allocatedBefore < 0 ? "n/a" : String
+				.format("%.1f", (double) (allocatedAfter - allocatedBefore)
+						/ ops);
+		System.out.println(String.format(
+				"%-24s %10.0f %18s %7s %8.2f %8.2f %9.2f %9.2f",
+				benchmark.name, ops / seconds, String.format("%.0f %s",
+						units / seconds, benchmark.unit), allocation,
+				latency.getPercentile(0.5) / 1e3,
+				latency.getPercentile(0.99) / 1e3,
+				latency.getPercentile(0.999) / 1e3, latency.getMax() / 1e3));
+	}
+
+	/**
+	 * Returns the bytes allocated so far by this thread, or -1 if the JVM
+	 * does not say.
+	 */
+	private static long allocatedBytes() {
+		final java.lang.management.ThreadMXBean threads = ManagementFactory
+				.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/**
+	 * Writes a packet as it goes on the wire.
+	 * 
+	 * @return the number of bytes written
+	 */
+	private static int encode(final ProtocolMode mode, final PacketTypes type,
+			final byte[] body, final int length, final byte[] out,
+			final int offset) {
+		if (mode == ProtocolMode.FRAMED) {
+			return FrameCodec.encode(type, body, 0, length, out, offset);
+		}
+		out[offset] = (byte) type.getPrefixChar();
+		System.arraycopy(body, 0, out, offset + 1, length);
+		return length + 1;
+	}
+
+	/**
+	 * Fills in a valid body for a packet from the model, in about the mix the
+	 * model sends: mostly solar readings, some wind and car readings, rare
+	 * faults and, on framed links, a heartbeat answer now and then.
+	 * 
+	 * @return the type of the packet
+	 */
+	private static PacketTypes sensorPacket(final ProtocolMode mode,
+			final Random random, final byte[] body) {
+		final int pick = random.nextInt(100);
+		if (pick < 35) {
+			body[0] = (byte) ('0' + random.nextInt(3));
+			body[1] = (byte) ('0' + random.nextInt(3));
+			return PacketTypes.SOLAR_GENERATION_LEVEL;
+		} else if (pick < 70) {
+			body[0] = (byte) ('0' + random.nextInt(5));
+			body[1] = (byte) ('0' + random.nextInt(2));
+			return PacketTypes.SOLAR_DETECT;
+		} else if (pick < 80) {
+			body[0] = (byte) ('0' + random.nextInt(4));
+			return PacketTypes.WIND_GENERATION_LEVEL;
+		} else if (pick < 90) {
+			body[0] = (byte) ('0' + random.nextInt(3));
+			body[1] = (byte) ('0' + random.nextInt(2));
+			return PacketTypes.CAR_DETECT;
+		} else if (pick < 92) {
+			body[0] = '1';
+			return PacketTypes.BALLOON_DETECT_RESET;
+		} else if (pick < 94) {
+			body[0] = '1';
+			return PacketTypes.DIG_DETECT_RESET;
+		}
+		if (mode != ProtocolMode.FRAMED) {
+			body[0] = (byte) ('0' + random.nextInt(4));
+			return PacketTypes.WIND_GENERATION_LEVEL;
+		}
+		body[0] = '1';
+		return PacketTypes.HEARTBEAT;
+	}
+
+	/**
+	 * @param maxRead
+	 *            the largest read, split anywhere; 0 for reads of whole
+	 *            packets
+	 */
+	private Benchmark parseBenchmark(final String name,
+			final ProtocolMode mode, final int maxRead) {
+		return new Benchmark(name, "B") {
+
+			private byte[] traffic;
+			// Length of each read, in order, cycling
+			private int[] reads;
+			private int read = 0;
+			private int offset = 0;
+			private final PacketDecoder decoder = mode.newDecoder();
+			private long commands = 0;
+			private final PacketDecoder.Listener listener = new PacketDecoder.Listener() {
+
+				@Override
+				public void onPacket(final PacketTypes type,
+						final byte[] payload, final int length) {
+					if (ModelCommand.decode(type, payload, length) != null) {
+						commands++;
+					}
+				}
+			};
+
+			@Override
+			void setUp() {
+				final Random random = new Random(seed);
+				final byte[] body = new byte[FrameCodec.MAX_PAYLOAD_LENGTH];
+				final int[] packetEnds = new int[TRAFFIC_PACKETS];
+				traffic = new byte[TRAFFIC_PACKETS
+						* FrameCodec.MAX_FRAME_LENGTH];
+				int length = 0;
+				for (int i = 0; i < TRAFFIC_PACKETS; i++) {
+					final PacketTypes type = sensorPacket(mode, random, body);
+					length += encode(mode, type, body, type.payloadLength(),
+							traffic, length);
+					packetEnds[i] = length;
+				}
+
+				final List<Integer> lengths = new ArrayList<>();
+				if (maxRead > 0) {
+					for (int at = 0; at < length;) {
+						final int count = Math.min(length - at,
+								1 + random.nextInt(maxRead));
+						lengths.add(count);
+						at += count;
+					}
+				} else {
+					int previousEnd = 0;
+					for (int i = 0; i < TRAFFIC_PACKETS;) {
+						i = Math.min(TRAFFIC_PACKETS,
+								i + 1 + random.nextInt(PACKETS_PER_READ));
+						lengths.add(packetEnds[i - 1] - previousEnd);
+						previousEnd = packetEnds[i - 1];
+					}
+				}
+				reads = new int[lengths.size()];
+				for (int i = 0; i < reads.length; i++) {
+					reads[i] = lengths.get(i);
+				}
+			}
+
+			@Override
+			long run() {
+				final int count = reads[read];
+				decoder.feed(traffic, offset, count, listener);
+				offset += count;
+				if (++read == reads.length) {
+					read = 0;
+					offset = 0;
+				}
+				return count;
+			}
+
+			@Override
+			void tearDown() {
+				// Benchmark traffic is all valid, so anything else is a bug
+				if (decoder.getErrorCount() > 0
+						|| (reads != null && commands == 0)) {
+					System.out.println("  " + name + ": "
+							+ decoder.getErrorCount() + " parse errors, "
+							+ commands + " commands");
+				}
+			}
+		};
+	}
+
+	private Benchmark encodeBenchmark(final String name,
+			final ProtocolMode mode) {
+		return new Benchmark(name, "pkts") {
+
+			private final byte[] body = new byte[FrameCodec.MAX_PAYLOAD_LENGTH];
+			private final byte[] out = new byte[FrameCodec.MAX_FRAME_LENGTH];
+			private final LedFrameCodec.Encoder leds = new LedFrameCodec.Encoder(
+					0);
+			private final byte[] states = new byte[LedFrameCodec.LED_COUNT];
+			private int tick = 0;
+
+			@Override
+			long run() {
+				tick++;
+				long packets = 0;
+				for (PacketTypes type : OUTBOUND) {
+					if (type.framedOnly && mode != ProtocolMode.FRAMED) {
+						continue;
+					}
+					int length = type.payloadLength();
+					if (type == PacketTypes.LIGHT_ANIMATION) {
+						states[tick % states.length] = (byte) ('0'
+								+ (tick & 7));
+						if (mode == ProtocolMode.FRAMED) {
+							length = leds.encode(states, body, 0);
+						} else {
+							System.arraycopy(states, 0, body, 0, length);
+						}
+					} else {
+						for (int i = 0; i < length; i++) {
+							body[i] = (byte) ('0' + ((tick + i) & 1));
+						}
+					}
+					encode(mode, type, body, length, out, 0);
+					packets++;
+				}
+				if (mode == ProtocolMode.FRAMED) {
+					final int length = ClockSync.encodeRequest(
+							System.nanoTime(), body);
+					encode(mode, PacketTypes.CLOCK_SYNC, body, length, out, 0);
+					packets++;
+				}
+				return packets;
+			}
+		};
+	}
+
+	/**
+	 * @param keyframeInterval
+	 *            0 to encode every frame as a keyframe
+	 */
+	private Benchmark ledBenchmark(final String name,
+			final int keyframeInterval, final boolean timed) {
+		return new Benchmark(name, "B") {
+
+			private final LedFrameCodec.Encoder encoder = new LedFrameCodec.Encoder(
+					keyframeInterval);
+			private final byte[] states = new byte[LedFrameCodec.LED_COUNT];
+			private final byte[] frame = new byte[LedFrameCodec.MAX_FRAME_LENGTH];
+			private final byte[] out = new byte[FrameCodec.MAX_FRAME_LENGTH];
+			private int tick = 0;
+
+			@Override
+			long run() {
+				// A chase of eight lit LEDs moving one step per frame, the
+				// usual shape of the animation
+				tick++;
+				for (int i = 0; i < states.length; i++) {
+					states[i] = '0';
+				}
+				for (int i = 0; i < 8; i++) {
+					states[(tick + i) % states.length] = '5';
+				}
+				final int length = timed ? encoder.encode(states,
+						ClockSync.appClock(System.nanoTime()), frame, 0)
+						: encoder.encode(states, frame, 0);
+				return FrameCodec.encode(PacketTypes.LIGHT_ANIMATION, frame,
+						0, length, out, 0);
+			}
+		};
+	}
+
+	/**
+	 * Stand-in model for the round trip benchmarks: answers every time of
+	 * day packet with a solar panel packet.
+	 */
+	private static final class EchoModel implements Runnable {
+
+		private final ProtocolMode mode;
+		private final ServerSocket server;
+		private volatile Socket socket = null;
+
+		EchoModel(final ProtocolMode mode, final int port) throws IOException {
+			this.mode = mode;
+			server = new ServerSocket();
+			server.setReuseAddress(true);
+			server.bind(new InetSocketAddress("127.0.0.1", port));
+		}
+
+		@Override
+		public void run() {
+			final byte[] body = { '1', '1' };
+			final byte[] answer = new byte[FrameCodec.MAX_FRAME_LENGTH];
+			final int answerLength = encode(mode, PacketTypes.SOLAR_DETECT,
+					body, body.length, answer, 0);
+			final byte[] buffer = new byte[4096];
+			final PacketDecoder decoder = mode.newDecoder();
+			try {
+				socket = server.accept();
+				socket.setTcpNoDelay(true);
+				final InputStream in = socket.getInputStream();
+				final OutputStream out = socket.getOutputStream();
+				final int[] pending = { 0 };
+				final PacketDecoder.Listener listener = new PacketDecoder.Listener() {
+
+					@Override
+					public void onPacket(final PacketTypes type,
+							final byte[] payload, final int length) {
+						if (type == PacketTypes.TIME_OF_DAY) {
+							pending[0]++;
+						}
+					}
+				};
+				// Shows the application the model is there
+				out.write(answer, 0, answerLength);
+				out.flush();
+				int count;
+				while ((count = in.read(buffer)) > 0) {
+					decoder.feed(buffer, 0, count, listener);
+					for (; pending[0] > 0; pending[0]--) {
+						out.write(answer, 0, answerLength);
+					}
+					out.flush();
+				}
+			} catch (IOException e) {
+				// Closed by tearDown
+			}
+		}
+
+		void close() {
+			try {
+				server.close();
+				final Socket s = socket;
+				if (s != null) {
+					s.close();
+				}
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+			}
+		}
+	}
+
+	private Benchmark roundTripBenchmark(final String name,
+			final ProtocolMode mode, final int modelPort) {
+		return new Benchmark(name, "trips") {
+
+			private EchoModel model;
+			private NetworkInterface network;
+			private Thread networkThread;
+			private final byte[] packet = new byte[FrameCodec.MAX_FRAME_LENGTH];
+			private final byte[] body = new byte[1];
+			private int tick = 0;
+
+			@Override
+			void setUp() throws IOException {
+				model = new EchoModel(mode, modelPort);
+				final Thread modelThread = new Thread(model, "Echo model");
+				modelThread.setDaemon(true);
+				modelThread.start();
+
+				network = new NetworkInterface("127.0.0.1", modelPort);
+				network.setProtocol(mode);
+				networkThread = new Thread(network, "Network");
+				networkThread.setDaemon(true);
+				networkThread.start();
+
+				final long deadline = System.nanoTime() + 5000000000L;
+				while (!network.isConnected()
+						|| network.getCommands().poll() == null) {
+					if (System.nanoTime() - deadline > 0) {
+						throw new IOException(
+								"Stand-in model never answered");
+					}
+					Thread.yield();
+				}
+			}
+
+			@Override
+			long run() throws IOException {
+				body[0] = (byte) ('0' + (++tick & 1));
+				final int length = encode(mode, PacketTypes.TIME_OF_DAY, body,
+						1, packet, 0);
+				network.sendMessage(PacketTypes.TIME_OF_DAY, 0, packet,
+						length, 1);
+				final long deadline = System.nanoTime() + 1000000000L;
+				while (network.getCommands().poll() == null) {
+					if (System.nanoTime() - deadline > 0) {
+						throw new IOException("No answer within a second");
+					}
+				}
+				return 1;
+			}
+
+			@Override
+			void tearDown() {
+				if (networkThread != null) {
+					networkThread.interrupt();
+				}
+				if (model != null) {
+					model.close();
+				}
+			}
+		};
+	}
+}